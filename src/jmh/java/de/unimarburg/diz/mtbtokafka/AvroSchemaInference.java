@@ -0,0 +1,146 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Infers an Avro schema from sample MTB files, so Avro can be benchmarked without a curated
+ * schema. Objects become records with nullable fields, array elements are merged.
+ */
+public final class AvroSchemaInference {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private enum Kind {NULL, BOOLEAN, INT, LONG, DOUBLE, STRING, ARRAY, RECORD}
+
+    private AvroSchemaInference() {
+    }
+
+    /**
+     * @param sample MTB file
+     * @return Avro schema as JSON
+     */
+    public static String infer(JsonNode sample) {
+        final var counter = new int[1];
+        final var schema = toSchema(shapeOf(sample), counter);
+        try {
+            return MAPPER.writeValueAsString(schema);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Shape shapeOf(JsonNode node) {
+        final var shape = new Shape();
+        if (node.isObject()) {
+            shape.kind = Kind.RECORD;
+            node.fields().forEachRemaining(
+                field -> shape.fields.put(field.getKey(), shapeOf(field.getValue())));
+        } else if (node.isArray()) {
+            shape.kind = Kind.ARRAY;
+            for (JsonNode element : node) {
+                shape.items = merge(shape.items, shapeOf(element));
+            }
+        } else if (node.isInt()) {
+            shape.kind = Kind.INT;
+        } else if (node.isIntegralNumber()) {
+            shape.kind = Kind.LONG;
+        } else if (node.isNumber()) {
+            shape.kind = Kind.DOUBLE;
+        } else if (node.isBoolean()) {
+            shape.kind = Kind.BOOLEAN;
+        } else if (node.isNull()) {
+            shape.kind = Kind.NULL;
+        } else {
+            shape.kind = Kind.STRING;
+        }
+        return shape;
+    }
+
+    private static Shape merge(Shape a, Shape b) {
+        if (a == null || a.kind == Kind.NULL) {
+            return b;
+        }
+        if (b == null || b.kind == Kind.NULL) {
+            return a;
+        }
+        if (a.kind == Kind.RECORD && b.kind == Kind.RECORD) {
+            b.fields.forEach((name, shape) -> a.fields.merge(name, shape,
+                AvroSchemaInference::merge));
+            return a;
+        }
+        if (a.kind == Kind.ARRAY && b.kind == Kind.ARRAY) {
+            a.items = merge(a.items, b.items);
+            return a;
+        }
+        if (a.kind != b.kind) {
+            a.kind = !isNumber(a) || !isNumber(b) ? Kind.STRING
+                : a.kind == Kind.DOUBLE || b.kind == Kind.DOUBLE ? Kind.DOUBLE : Kind.LONG;
+        }
+        return a;
+    }
+
+    private static boolean isNumber(Shape shape) {
+        return shape.kind == Kind.INT || shape.kind == Kind.LONG || shape.kind == Kind.DOUBLE;
+    }
+
+    private static JsonNode toSchema(Shape shape, int[] counter) {
+        final var factory = JsonNodeFactory.instance;
+        return switch (shape == null ? Kind.NULL : shape.kind) {
+            case NULL -> factory.textNode("null");
+            case BOOLEAN -> factory.textNode("boolean");
+            case INT -> factory.textNode("int");
+            case LONG -> factory.textNode("long");
+            case DOUBLE -> factory.textNode("double");
+            case STRING -> factory.textNode("string");
+            case ARRAY -> factory.objectNode().put("type", "array")
+                .set("items", nullable(shape.items, counter));
+            case RECORD -> {
+                final ObjectNode record = factory.objectNode().put("type", "record")
+                    .put("name", "Record" + counter[0]++);
+                final ArrayNode fields = record.putArray("fields");
+                shape.fields.forEach((name, field) -> fields.addObject().put("name", name)
+                    .putNull("default").set("type", nullable(field, counter)));
+                yield record;
+            }
+        };
+    }
+
+    private static JsonNode nullable(Shape shape, int[] counter) {
+        if (shape == null || shape.kind == Kind.NULL) {
+            return JsonNodeFactory.instance.textNode("null");
+        }
+        return JsonNodeFactory.instance.arrayNode().add("null").add(toSchema(shape, counter));
+    }
+
+    private static final class Shape {
+
+        private Kind kind;
+        private final Map<String, Shape> fields = new LinkedHashMap<>();
+        private Shape items;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+
+/**
+ * {@link MtbProducer} for benchmarks not sending to Kafka. No producer is created as long as
+ * nothing is sent.
+ */
+public final class BenchmarkProducer {
+
+    private BenchmarkProducer() {
+    }
+
+    public static MtbProducer create() {
+        final var producerFactory = new DefaultKafkaProducerFactory<String, String>(
+            Map.of(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, Integer.MAX_VALUE));
+        return create(new KafkaTemplate<>(producerFactory));
+    }
+
+    /**
+     * @return {@link MtbProducer} serializing records with <code>StringSerializer</code> and
+     * acknowledging them immediately, without a broker
+     */
+    public static MtbProducer discarding() {
+        final var producer = new DiscardingProducer();
+        final ProducerFactory<String, String> producerFactory = new ProducerFactory<>() {
+            @Override
+            public Producer<String, String> createProducer() {
+                return producer;
+            }
+
+            @Override
+            public Map<String, Object> getConfigurationProperties() {
+                return Map.of(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, Integer.MAX_VALUE);
+            }
+        };
+        return create(new KafkaTemplate<>(producerFactory));
+    }
+
+    private static MtbProducer create(KafkaTemplate<String, String> kafkaTemplate) {
+        return new MtbProducer(kafkaTemplate, "benchmark", false, Duration.ofSeconds(30),
+            Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty());
+    }
+
+    /**
+     * Forgets records once serialized, so long benchmark runs do not keep them.
+     */
+    private static final class DiscardingProducer extends MockProducer<String, String> {
+
+        private DiscardingProducer() {
+            super(true, new StringSerializer(), new StringSerializer());
+        }
+
+        @Override
+        public synchronized Future<RecordMetadata> send(ProducerRecord<String, String> record,
+            Callback callback) {
+            final var result = super.send(record, callback);
+            clear();
+            return result;
+        }
+
+        @Override
+        public void close(Duration timeout) {
+            // shared by all templates of a benchmark
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * FHIR <code>Parameters</code> encoding of gPas requests and decoding of responses by
+ * {@link PseudonymizerService}, with a canned gPas response instead of a HTTP call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GpasParametersBenchmark {
+
+    @Param({"1", "100"})
+    public int originals;
+
+    private CannedGpasPseudonymizerService fixture;
+    private Set<String> originalIds;
+
+    @Setup
+    public void setUp() {
+        originalIds = new TreeSet<>();
+        final var response = new Parameters();
+        for (int i = 0; i < originals; i++) {
+            final var original = "internal-ID-" + i;
+            originalIds.add(original);
+            final var parameter = response.addParameter().setName("pseudonym");
+            parameter.addPart().setName("original").setValue(new Identifier()
+                .setSystem("https://ths-greifswald.de/gpas").setValue(original));
+            parameter.addPart().setName("target").setValue(new Identifier()
+                .setSystem("https://ths-greifswald.de/gpas").setValue("benchmark"));
+            parameter.addPart().setName("pseudonym").setValue(new Identifier()
+                .setSystem("https://ths-greifswald.de/gpas").setValue("psn-" + original));
+        }
+        fixture = new CannedGpasPseudonymizerService(
+            FhirContext.forR4().newJsonParser().encodeResourceToString(response));
+    }
+
+    /**
+     * Encode request, decode response and map pseudonyms.
+     */
+    @Benchmark
+    public Map<String, String> requestPseudonyms() {
+        return fixture.requestPseudonyms(originalIds);
+    }
+
+    @Benchmark
+    public Parameters encodeAndDecode() {
+        final var request = new Parameters();
+        request.addParameter().setName("target").setValue(new StringType("benchmark"));
+        for (var original : originalIds) {
+            request.addParameter().setName("original").setValue(new StringType(original));
+        }
+        return fixture.getPseudonymParameters(request);
+    }
+
+    private static final class CannedGpasPseudonymizerService extends StubPseudonymizerService {
+
+        private final String response;
+
+        private CannedGpasPseudonymizerService(String response) {
+            this.response = response;
+        }
+
+        @NotNull
+        @Override
+        protected ResponseEntity<String> performRestCallToGpas(String message) {
+            return ResponseEntity.ok(response);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JacksonException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Measures MTB file processing with secondary ID hashing. <code>rules</code> adds rules that
+ * never match, processing time should not depend on it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdHashingBenchmark {
+
+    @Param({"1000000", "5000000"})
+    public int sizeBytes;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    @Param({"2", "50"})
+    public int rules;
+
+    private RestForMtb fixture;
+    private String mtbFile;
+
+    @Setup
+    public void setUp() {
+        final List<String> hashPaths = new ArrayList<>(List.of("**.id", "**.specimen"));
+        for (int i = hashPaths.size(); i < rules; i++) {
+            hashPaths.add("carePlans[*].recommendations[*].unused" + i);
+        }
+        final var idHasher = new IdHasher(Base64.getEncoder().encodeToString(new byte[32]),
+            hashPaths, List.of("**.patient"));
+
+        mtbFile = SyntheticMtbFiles.generate(sizeBytes, 42);
+        fixture = new RestForMtb(BenchmarkProducer.create(),
+            Optional.of(new StubPseudonymizerService(idHasher)), 1, streaming,
+            new PipelineMetrics(new SimpleMeterRegistry()), Optional.empty(), Optional.empty(),
+            Optional.empty(), DataSize.ofMegabytes(64));
+    }
+
+    @Benchmark
+    public Object toMtbRecord() throws JacksonException {
+        return fixture.toMtbRecord(mtbFile);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Ingest hot path of <code>POST /mtbfile</code>: parse, pseudonymize with a stubbed gPas,
+ * build the key, serialize and hand the record to a producer without broker. Single stages
+ * are measured as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+
+    @Param({"5000", "100000", "1000000", "10000000"})
+    public int sizeBytes;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final StringSerializer serializer = new StringSerializer();
+    private final MtbKeySerializer keySerializer = new MtbKeySerializer();
+
+    private RestForMtb fixture;
+    private String mtbFile;
+    private JsonNode tree;
+    private String key;
+
+    @Setup
+    public void setUp() throws Exception {
+        mtbFile = SyntheticMtbFiles.generate(sizeBytes, 42);
+        fixture = new RestForMtb(BenchmarkProducer.discarding(),
+            Optional.of(new StubPseudonymizerService()), 1, false,
+            new PipelineMetrics(new SimpleMeterRegistry()), Optional.empty(), Optional.empty(),
+            Optional.empty(), DataSize.ofMegabytes(64));
+        key = fixture.toMtbRecord(mtbFile).key();
+        // getKey does not modify the tree
+        tree = objectMapper.readTree(mtbFile);
+    }
+
+    @Benchmark
+    public boolean processMtbFile() throws Exception {
+        return fixture.processMtbFile(mtbFile);
+    }
+
+    @Benchmark
+    public String getKey() throws Exception {
+        return fixture.getKey(tree);
+    }
+
+    @Benchmark
+    public byte[] serializeValue() {
+        return serializer.serialize("benchmark", mtbFile);
+    }
+
+    @Benchmark
+    public byte[] serializeKey() {
+        return serializer.serialize("benchmark", key);
+    }
+
+    @Benchmark
+    public byte[] serializeBinaryKey() {
+        return keySerializer.serialize("benchmark", key);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.luben.zstd.Zstd;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares value formats of the output topic. <code>serialize</code> reports the record size
+ * as <code>bytes</code> and its zstd compressed size, as sent with the default producer
+ * compression, as <code>zstdBytes</code>. The Avro schema is inferred from the sample.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputFormatBenchmark {
+
+    @Param({"5000", "1000000"})
+    public int sizeBytes;
+
+    @Param({"json", "smile", "cbor", "avro"})
+    public String format;
+
+    private MtbValueFormat valueFormat;
+    private MtbStreamRewriter rewriter;
+    private String mtbFile;
+    private JsonNode tree;
+    private byte[] value;
+    private long zstdBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        final var objectMapper = new ObjectMapper();
+        mtbFile = SyntheticMtbFiles.generate(sizeBytes, 42);
+        tree = objectMapper.readTree(mtbFile);
+
+        final var schema = Files.createTempFile("mtbfile", ".avsc");
+        schema.toFile().deleteOnExit();
+        Files.writeString(schema, AvroSchemaInference.infer(tree));
+        valueFormat = new MtbValueFormat(format, schema.toString());
+        rewriter = new MtbStreamRewriter(objectMapper.getFactory());
+
+        value = valueFormat.write(tree);
+        zstdBytes = Zstd.compress(value).length;
+    }
+
+    @Benchmark
+    public byte[] serialize(WireSize wireSize) throws IOException {
+        final var result = valueFormat.write(tree);
+        wireSize.bytes = result.length;
+        wireSize.zstdBytes = zstdBytes;
+        return result;
+    }
+
+    @Benchmark
+    public JsonNode deserialize() throws IOException {
+        return valueFormat.read(value);
+    }
+
+    /**
+     * Pipeline path of streaming mode: received JSON text to produced value.
+     */
+    @Benchmark
+    public Object rewrite() throws IOException {
+        return valueFormat.isBinary() ? rewriter.rewrite(mtbFile, null, valueFormat)
+            : rewriter.rewrite(mtbFile, null);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireSize {
+
+        public long bytes;
+        public long zstdBytes;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import java.time.Duration;
+import java.util.Optional;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Pseudonymizer answering without gPas, so benchmarks measure local processing only.
+ */
+public class StubPseudonymizerService extends PseudonymizerService {
+
+    public StubPseudonymizerService() {
+        this(null);
+    }
+
+    /**
+     * @param idHasher rules for secondary IDs, <code>null</code> to keep them
+     */
+    public StubPseudonymizerService(IdHasher idHasher) {
+        this(idHasher, null);
+    }
+
+    /**
+     * @param idHasher       rules for secondary IDs, <code>null</code> to keep them
+     * @param pseudonymCache cache in front of the stub, <code>null</code> to disable caching
+     */
+    public StubPseudonymizerService(IdHasher idHasher, PseudonymCache pseudonymCache) {
+        super("http://localhost", "benchmark", new RestTemplate(), new RetryTemplate(),
+            Optional.empty(), Optional.ofNullable(pseudonymCache), Optional.empty(),
+            Optional.ofNullable(idHasher), false, 1, Duration.ZERO, 1, Duration.ZERO,
+            Duration.ZERO, Optional.empty());
+    }
+
+    @Override
+    protected String requestPseudonym(String original) {
+        return "https://ths-greifswald.de/gpas|psn-" + original;
+    }
+}
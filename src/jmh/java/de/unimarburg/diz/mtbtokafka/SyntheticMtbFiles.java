@@ -0,0 +1,118 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates MTB files following the README example. The file is padded with NGS report
+ * variants until it reaches the requested size, since variant lists dominate real large files.
+ */
+public final class SyntheticMtbFiles {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String[] GENES = {"TP53", "KRAS", "BRAF", "EGFR", "PIK3CA", "APC"};
+
+    private SyntheticMtbFiles() {
+    }
+
+    /**
+     * @param targetBytes approximate size of generated file
+     * @param seed        seed for reproducible IDs and values
+     * @return MTB file as JSON
+     */
+    public static String generate(int targetBytes, long seed) {
+        final var random = new Random(seed);
+        final var patientId = "internal-ID-" + random.nextInt(10_000_000);
+
+        final ObjectNode mtbFile = MAPPER.createObjectNode();
+        mtbFile.putObject("patient").put("id", patientId).put("gender", "male")
+            .put("birthDate", "1975-01").put("insurance", "Barmer");
+        mtbFile.putObject("consent").put("id", uuid(random)).put("patient", patientId)
+            .put("status", "active");
+        final var episode = mtbFile.putObject("episode").put("id", uuid(random))
+            .put("patient", patientId);
+        episode.putObject("period").put("start", "2023-06-28");
+
+        final var diagnosis = mtbFile.putArray("diagnoses").addObject()
+            .put("id", uuid(random)).put("patient", patientId).put("recordedOn", "2023-06-28");
+        diagnosis.putObject("icd10").put("code", "C26.8")
+            .put("display",
+                "Bösartige Neubildung: Verdauungssystem, mehrere Teilbereiche überlappend")
+            .put("version", "2022").put("system", "ICD-10-GM");
+        diagnosis.putObject("icdO3T").put("code", "C26.8")
+            .put("display", "Verdauungssystem, mehrere Bereiche überlappend")
+            .put("version", "Zweite Revision").put("system", "ICD-O-3-T");
+        diagnosis.putObject("whoGrade").put("code", "III").put("system", "WHO-Grading-CNS-Tumors");
+        diagnosis.putArray("histologyResults");
+        diagnosis.putArray("statusHistory").addObject().put("status", "unknown")
+            .put("date", "2023-06-28");
+        diagnosis.put("guidelineTreatmentStatus", "unknown");
+
+        final var report = mtbFile.putArray("ngsReports").addObject().put("id", uuid(random))
+            .put("patient", patientId).put("specimen", uuid(random))
+            .put("issueDate", "2023-06-28");
+        final ArrayNode variants = report.putArray("simpleVariants");
+
+        int size = toJson(mtbFile).length();
+        while (size < targetBytes) {
+            final var variant = addVariant(variants, random);
+            size += toJson(variant).length() + 1;
+        }
+        return toJson(mtbFile);
+    }
+
+    private static ObjectNode addVariant(ArrayNode variants, Random random) {
+        final var gene = GENES[random.nextInt(GENES.length)];
+        final int start = random.nextInt(200_000_000);
+        final var variant = variants.addObject().put("id", uuid(random))
+            .put("chromosome", "chr" + (1 + random.nextInt(22)));
+        variant.putObject("gene").put("ensemblId", "ENSG0000" + random.nextInt(1_000_000))
+            .put("hgncId", "HGNC:" + random.nextInt(50_000)).put("symbol", gene);
+        variant.putObject("startEnd").put("start", start).put("end", start + 1);
+        variant.put("refAllele", "C").put("altAllele", "T");
+        variant.putObject("dnaChange").put("code", "c." + random.nextInt(5000) + "C>T");
+        variant.putObject("aminoAcidChange").put("code", "p.R" + random.nextInt(900) + "H");
+        variant.put("readDepth", 20 + random.nextInt(500))
+            .put("allelicFrequency", random.nextDouble())
+            .put("cosmicId", "COSM" + random.nextInt(10_000_000))
+            .put("dbSNPId", "rs" + random.nextInt(100_000_000));
+        variant.putObject("interpretation").put("code", "Pathogenic");
+        return variant;
+    }
+
+    private static String uuid(Random random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    private static String toJson(Object value) {
+        try {
+            return MAPPER.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Load test of the blocking request path with simulated gPas and Kafka latency. Each
+ * invocation sends <code>clients</code> concurrent MTB files, either on a pool of 200 platform
+ * threads (Tomcat default) or on one virtual thread per request. Scores are seconds per
+ * batch, so throughput is <code>clients / score</code>. <code>mode=virtual</code> requires
+ * Java 21, run <code>-p mode=platform</code> on older JVMs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ThreadModeBenchmark {
+
+    private static final int TOMCAT_MAX_THREADS = 200;
+    private static final int PATIENTS = 100;
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    @Param({"200", "2000"})
+    public int clients;
+
+    @Param({"20"})
+    public int gPasLatencyMillis;
+
+    @Param({"20"})
+    public int kafkaAckMillis;
+
+    private ExecutorService executor;
+    private RestForMtb fixture;
+    private final List<String> mtbFiles = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        executor = "virtual".equals(mode)
+            ? VirtualThreadConfiguration.newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(TOMCAT_MAX_THREADS);
+        for (int i = 0; i < PATIENTS; i++) {
+            mtbFiles.add(SyntheticMtbFiles.generate(5000, i));
+        }
+
+        final var registry = new SimpleMeterRegistry();
+        final var limiter = new GpasConcurrencyLimiter(20, Duration.ofSeconds(10));
+        final var cache = new PseudonymCache(PATIENTS, Duration.ofHours(1), "", "", registry);
+        final var pseudonymizer = new StubPseudonymizerService(null, cache) {
+            @Override
+            protected String requestPseudonym(String original) {
+                try (var ignored = limiter.intercept(null, new byte[0], (request, body) -> {
+                    sleep(gPasLatencyMillis);
+                    return (ClientHttpResponse) null;
+                })) {
+                    return super.requestPseudonym(original);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        final var producer = new MtbProducer(BenchmarkProducer.create().kafkaTemplate,
+            "benchmark", false, Duration.ofSeconds(30), Optional.empty(), Optional.empty(),
+            Optional.empty(), Optional.empty()) {
+            @Override
+            public boolean sendToKafka(String key, String data) {
+                sleep(kafkaAckMillis);
+                return true;
+            }
+        };
+        fixture = new RestForMtb(producer, Optional.of(pseudonymizer), 1, false,
+            new PipelineMetrics(registry), Optional.empty(), Optional.empty(), Optional.empty(),
+            DataSize.ofMegabytes(64));
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int requests() throws Exception {
+        final List<Future<Boolean>> responses = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            final var mtbFile = mtbFiles.get(next.getAndIncrement() % PATIENTS);
+            responses.add(executor.submit(() -> fixture.processMtbFile(mtbFile)));
+        }
+        int accepted = 0;
+        for (var response : responses) {
+            if (response.get()) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
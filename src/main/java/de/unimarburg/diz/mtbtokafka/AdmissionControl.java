@@ -0,0 +1,283 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.Overloaded;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Admission control of <code>POST /mtbfile</code>. At most <code>maxInFlight</code> files and
+ * <code>maxInFlightBytes</code> (by <code>Content-Length</code>) are processed at the same time;
+ * a single file exceeding the byte budget is processed alone. Further requests wait in a FIFO
+ * queue of at most <code>maxQueueLength</code> entries for at most <code>maxQueueWait</code>.
+ * Requests are admitted before their body is read, so rejected files never reach the heap.
+ * <p>
+ * Requests not fitting into the queue are rejected with <code>429</code>, requests waiting
+ * too long with <code>503</code>. Both carry a <code>Retry-After</code> estimated from the
+ * queue position and the average processing time.
+ */
+@Component
+@ConditionalOnProperty(value = "mtb2kafka.admission.enabled")
+public class AdmissionControl implements HandlerInterceptor, WebMvcConfigurer {
+
+    private static final String PERMIT_ATTRIBUTE = AdmissionControl.class.getName() + ".permit";
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
+    // weight of the latest processing time in its moving average
+    private static final double SMOOTHING = 0.1;
+
+    private final int maxInFlight;
+    private final long maxInFlightBytes;
+    private final int maxQueueLength;
+    private final long maxQueueWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private int inFlight;
+    private long inFlightBytes;
+    private double averageNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private final Counter admitted;
+    private final Counter queued;
+    private final Counter rejectedQueueFull;
+    private final Counter rejectedTimeout;
+
+    @Autowired
+    public AdmissionControl(@Value("${mtb2kafka.admission.maxInFlight:64}") int maxInFlight,
+        @Value("${mtb2kafka.admission.maxInFlightBytes:256MB}") DataSize maxInFlightBytes,
+        @Value("${mtb2kafka.admission.maxQueueLength:128}") int maxQueueLength,
+        @Value("${mtb2kafka.admission.maxQueueWait:PT2S}") Duration maxQueueWait,
+        MeterRegistry meterRegistry) {
+        if (maxInFlight < 1 || maxQueueLength < 0) {
+            throw new IllegalStateException("'mtb2kafka.admission.maxInFlight' must be greater"
+                + " than zero, 'maxQueueLength' must not be negative.");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightBytes = maxInFlightBytes.toBytes();
+        this.maxQueueLength = maxQueueLength;
+        this.maxQueueWaitNanos = maxQueueWait.toNanos();
+
+        admitted = Counter.builder("mtb2kafka.admission.requests").tag("result", "admitted")
+            .description("requests to /mtbfile by admission result").register(meterRegistry);
+        queued = Counter.builder("mtb2kafka.admission.requests").tag("result", "queued")
+            .description("requests to /mtbfile by admission result").register(meterRegistry);
+        rejectedQueueFull = Counter.builder("mtb2kafka.admission.requests")
+            .tag("result", "rejected_queue_full")
+            .description("requests to /mtbfile by admission result").register(meterRegistry);
+        rejectedTimeout = Counter.builder("mtb2kafka.admission.requests")
+            .tag("result", "rejected_timeout")
+            .description("requests to /mtbfile by admission result").register(meterRegistry);
+        Gauge.builder("mtb2kafka.admission.inflight", this, AdmissionControl::inFlight)
+            .description("admitted requests in process").register(meterRegistry);
+        Gauge.builder("mtb2kafka.admission.inflight.bytes", this,
+                AdmissionControl::inFlightBytes)
+            .description("content length of admitted requests in process").baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("mtb2kafka.admission.queue", this, AdmissionControl::queueLength)
+            .description("requests waiting for admission").register(meterRegistry);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(this).addPathPatterns("/mtbfile");
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response,
+        Object handler) {
+        if (request.getDispatcherType() == DispatcherType.REQUEST
+            && HttpMethod.POST.matches(request.getMethod())) {
+            request.setAttribute(PERMIT_ATTRIBUTE,
+                admit(Math.max(0, request.getContentLengthLong())));
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response,
+        Object handler, Exception ex) {
+        // async requests are completed by their async dispatch
+        if (!request.isAsyncStarted()
+            && request.getAttribute(PERMIT_ATTRIBUTE) instanceof Permit permit) {
+            request.removeAttribute(PERMIT_ATTRIBUTE);
+            permit.close();
+        }
+    }
+
+    /**
+     * Wait until a file of given size may be processed.
+     *
+     * @param bytes size of file
+     * @return permit to close once the file is processed
+     * @throws Overloaded if the queue is full or the file waited too long
+     */
+    public Permit admit(long bytes) {
+        lock.lock();
+        try {
+            if (queue.isEmpty() && fits(bytes)) {
+                return grant(bytes);
+            }
+            if (queue.size() >= maxQueueLength) {
+                rejectedQueueFull.increment();
+                throw new Overloaded("admission queue is full", true,
+                    retryAfter(queue.size() + 1));
+            }
+
+            final var waiter = new Waiter(lock.newCondition());
+            queue.add(waiter);
+            queued.increment();
+            long remaining = maxQueueWaitNanos;
+            try {
+                while (queue.peek() != waiter || !fits(bytes)) {
+                    if (remaining <= 0) {
+                        rejectedTimeout.increment();
+                        throw new Overloaded("waited too long for admission", false,
+                            retryAfter(queue.size()));
+                    }
+                    remaining = waiter.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new Overloaded("interrupted waiting for admission", false,
+                    retryAfter(queue.size()));
+            } finally {
+                queue.remove(waiter);
+                // next waiter may fit as well
+                signalHead();
+            }
+            return grant(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long inFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queueLength() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return inFlight < maxInFlight
+            && (inFlight == 0 || inFlightBytes + bytes <= maxInFlightBytes);
+    }
+
+    private Permit grant(long bytes) {
+        inFlight++;
+        inFlightBytes += bytes;
+        admitted.increment();
+        return new Permit(bytes);
+    }
+
+    private void release(Permit permit) {
+        lock.lock();
+        try {
+            inFlight--;
+            inFlightBytes -= permit.bytes;
+            averageNanos += SMOOTHING * (System.nanoTime() - permit.admittedAt - averageNanos);
+            signalHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalHead() {
+        final var head = queue.peek();
+        if (head != null) {
+            head.condition.signal();
+        }
+    }
+
+    /**
+     * @param position queue position of the request, starting with <code>1</code>
+     */
+    private Duration retryAfter(int position) {
+        final double nanos = averageNanos * Math.ceil((double) position / maxInFlight);
+        final long seconds = (long) Math.ceil(nanos / TimeUnit.SECONDS.toNanos(1));
+        return Duration.ofSeconds(Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, seconds)));
+    }
+
+    private record Waiter(Condition condition) {
+
+    }
+
+    /**
+     * Admission of a single file, closing it admits the next one.
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final long bytes;
+        private final long admittedAt = System.nanoTime();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(this);
+            }
+        }
+    }
+}
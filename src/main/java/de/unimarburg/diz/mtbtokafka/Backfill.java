@@ -0,0 +1,468 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileTooLarge;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Produces MTB files of a directory or tar archive, see {@link BackfillSource}, with the same
+ * pseudonymization and keys as <code>POST /mtbfile</code>.
+ * <p>
+ * Files are distributed to <code>mtb2kafka.backfill.workers</code> workers by patient ID, so
+ * files of one patient are produced in source order while patients are processed in parallel.
+ * Completed files are recorded in <code>mtb2kafka.backfill.checkpoint</code>; a restarted
+ * backfill of the same source skips them. The checkpoint records the names of completed files
+ * as well, and a backfill refuses to resume if files were added, removed or renamed. Files
+ * which can never be produced, e.g. invalid JSON, are listed in the checkpoint file with
+ * suffix <code>.failed</code>. If a file still fails after <code>maxAttempts</code>, e.g.
+ * while gPas is not available, the backfill stops and can be resumed later.
+ */
+@Component
+@ConditionalOnProperty("mtb2kafka.backfill.enabled")
+public class Backfill {
+
+    private static final Task END = new Task(-1, null, null);
+
+    private final Logger log = LoggerFactory.getLogger(Backfill.class);
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final RestForMtb restForMtb;
+    private final String source;
+    private final int workers;
+    private final int queueSize;
+    private final Path checkpointFile;
+    private final Duration checkpointInterval;
+    private final int maxAttempts;
+    private final Duration retryInterval;
+
+    private final Counter produced;
+    private final Counter failed;
+    private final Counter skipped;
+
+    private volatile Thread runner;
+    private volatile boolean stopped;
+
+    @Autowired
+    public Backfill(RestForMtb restForMtb,
+        @Value("${mtb2kafka.backfill.source:}") String source,
+        @Value("${mtb2kafka.backfill.workers:8}") int workers,
+        @Value("${mtb2kafka.backfill.queueSize:16}") int queueSize,
+        @Value("${mtb2kafka.backfill.checkpoint:backfill.checkpoint}") String checkpointFile,
+        @Value("${mtb2kafka.backfill.checkpointInterval:PT10S}") Duration checkpointInterval,
+        @Value("${mtb2kafka.backfill.maxAttempts:5}") int maxAttempts,
+        @Value("${mtb2kafka.backfill.retryInterval:PT5S}") Duration retryInterval,
+        MeterRegistry meterRegistry) {
+        this.restForMtb = restForMtb;
+        this.source = source;
+        this.workers = Math.max(1, workers);
+        this.queueSize = Math.max(1, queueSize);
+        this.checkpointFile = Path.of(checkpointFile);
+        this.checkpointInterval = checkpointInterval;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryInterval = retryInterval;
+
+        produced = Counter.builder("mtb2kafka.backfill.files").tag("result", "produced")
+            .description("MTB files of backfill").register(meterRegistry);
+        failed = Counter.builder("mtb2kafka.backfill.files").tag("result", "failed")
+            .description("MTB files of backfill").register(meterRegistry);
+        skipped = Counter.builder("mtb2kafka.backfill.files").tag("result", "skipped")
+            .description("MTB files of backfill").register(meterRegistry);
+    }
+
+    /**
+     * Start backfill of <code>mtb2kafka.backfill.source</code> in background, if set.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!StringUtils.hasText(source)) {
+            return;
+        }
+        runner = new Thread(() -> {
+            try {
+                run(Path.of(source));
+            } catch (IOException e) {
+                log.error("Backfill of '{}' failed.", source, e);
+            } catch (InterruptedException e) {
+                log.warn("Backfill of '{}' interrupted.", source);
+            } catch (IllegalStateException e) {
+                log.error("Backfill of '{}' refused: {}", source, e.getMessage());
+            }
+        }, "mtb2kafka-backfill");
+        runner.start();
+    }
+
+    @PreDestroy
+    public void close() {
+        stopped = true;
+        final var thread = runner;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Produce all MTB files of path not completed by a previous run.
+     *
+     * @param path directory or tar archive
+     * @return <code>true</code> if all files are completed, <code>false</code> if the backfill
+     * stopped and has to be resumed
+     * @throws IllegalStateException if the checkpoint belongs to another source, or files of
+     *                               the source changed since it was written
+     */
+    public boolean run(Path path) throws IOException, InterruptedException {
+        final var checkpoint = Checkpoint.load(checkpointFile, path.toAbsolutePath().toString());
+        if (checkpoint.completed() > 0) {
+            log.info("Resuming backfill of '{}' after {} files.", path, checkpoint.completed());
+        }
+
+        final List<Worker> pool = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            final var worker = new Worker(checkpoint, new ArrayBlockingQueue<>(queueSize));
+            worker.thread = new Thread(worker, "mtb2kafka-backfill-" + i);
+            worker.thread.start();
+            pool.add(worker);
+        }
+
+        long index = 0;
+        long lastSave = System.nanoTime();
+        try (var files = BackfillSource.open(path)) {
+            while (!stopped && !checkpoint.isAborted() && files.next()) {
+                checkpoint.verify(index, files.name());
+                if (checkpoint.isDone(index)) {
+                    skipped.increment();
+                    index++;
+                    continue;
+                }
+                final var content = files.content();
+                final var task = new Task(index, files.name(), content);
+                pool.get(shard(patientId(content), files.name())).queue.put(task);
+                index++;
+
+                if (System.nanoTime() - lastSave > checkpointInterval.toNanos()) {
+                    checkpoint.save();
+                    lastSave = System.nanoTime();
+                }
+            }
+            if (!stopped && !checkpoint.isAborted()) {
+                checkpoint.verifyEnd(index);
+            }
+        } finally {
+            for (var worker : pool) {
+                worker.stop();
+            }
+            for (var worker : pool) {
+                worker.thread.join();
+            }
+            checkpoint.save();
+        }
+
+        final boolean complete = !stopped && !checkpoint.isAborted();
+        log.info("Backfill of '{}' {}: {} files completed, {} failed.", path,
+            complete ? "done" : "stopped", checkpoint.completed(), checkpoint.failedCount());
+        return complete;
+    }
+
+    private int shard(String patientId, String name) {
+        final var shardKey = patientId != null ? patientId : name;
+        return Math.floorMod(shardKey.hashCode(), workers);
+    }
+
+    /**
+     * @return <code>patient.id</code>, without parsing the whole file if the patient comes
+     * first, <code>null</code> if not found or content is invalid
+     */
+    String patientId(byte[] content) {
+        try (var parser = jsonFactory.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var field = parser.getCurrentName();
+                final var token = parser.nextToken();
+                if ("patient".equals(field) && token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final var patientField = parser.getCurrentName();
+                        parser.nextToken();
+                        if ("id".equals(patientField)) {
+                            return parser.getValueAsString();
+                        }
+                        parser.skipChildren();
+                    }
+                    return null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private final Checkpoint checkpoint;
+        private final BlockingQueue<Task> queue;
+        private Thread thread;
+
+        private Worker(Checkpoint checkpoint, BlockingQueue<Task> queue) {
+            this.checkpoint = checkpoint;
+            this.queue = queue;
+        }
+
+        private void stop() throws InterruptedException {
+            queue.put(END);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Task task;
+                while ((task = queue.take()) != END) {
+                    // files after an abort are left for the resumed backfill
+                    if (!checkpoint.isAborted() && !stopped) {
+                        process(task);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void process(Task task) throws InterruptedException {
+            final var data = new String(task.content(), StandardCharsets.UTF_8);
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    restForMtb.processMtbFile(data);
+                    produced.increment();
+                    checkpoint.done(task.index(), task.name());
+                    return;
+                } catch (JacksonException | MtbFileInvalid | MtbFileTooLarge
+                         | IllegalArgumentException e) {
+                    log.error("Backfill of '{}' failed: {}", task.name(), e.getMessage());
+                    failed.increment();
+                    checkpoint.failed(task.index(), task.name(), e);
+                    return;
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (attempt >= maxAttempts) {
+                        log.error("Backfill of '{}' failed {} times, stopping backfill.",
+                            task.name(), attempt, e);
+                        checkpoint.abort();
+                        return;
+                    }
+                    log.warn("Backfill of '{}' failed, retrying in {}: {}", task.name(),
+                        retryInterval, e.getMessage());
+                    Thread.sleep(retryInterval.toMillis());
+                }
+            }
+        }
+    }
+
+    private record Task(long index, String name, byte[] content) {
+
+    }
+
+    /**
+     * Files completed, i.e. produced or failed permanently. Files complete out of order, so
+     * the checkpoint consists of the number of files completed without gap and the indexes
+     * of files completed after the first gap. The names of the last file completed without gap
+     * and of files completed after the gap are stored as well, to detect a changed source.
+     */
+    static final class Checkpoint {
+
+        private final Path file;
+        private final Path failedFile;
+        private final String source;
+        private final TreeMap<Long, String> doneAfterGap = new TreeMap<>();
+        // names of completed files when the checkpoint was loaded
+        private final Map<Long, String> loaded = new HashMap<>();
+        private long completed;
+        private String completedName;
+        private long failedCount;
+        private volatile boolean aborted;
+        private volatile boolean stale;
+
+        private Checkpoint(Path file, String source) {
+            this.file = file;
+            this.failedFile = file.resolveSibling(file.getFileName() + ".failed");
+            this.source = source;
+        }
+
+        static Checkpoint load(Path file, String source) throws IOException {
+            final var checkpoint = new Checkpoint(file, source);
+            if (!Files.exists(file)) {
+                return checkpoint;
+            }
+            final var properties = new Properties();
+            try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            if (!source.equals(properties.getProperty("source"))) {
+                throw new IllegalStateException("Backfill checkpoint '" + file
+                    + "' belongs to source '" + properties.getProperty("source")
+                    + "'. Remove it to start a new backfill.");
+            }
+            checkpoint.completed = Long.parseLong(properties.getProperty("completed", "0"));
+            checkpoint.failedCount = Long.parseLong(properties.getProperty("failed", "0"));
+            checkpoint.completedName = properties.getProperty("completedName");
+            if (checkpoint.completed > 0) {
+                checkpoint.loaded.put(checkpoint.completed - 1,
+                    String.valueOf(checkpoint.completedName));
+            }
+            for (String property : properties.stringPropertyNames()) {
+                if (property.startsWith("done.")) {
+                    final long index = Long.parseLong(property.substring(5));
+                    checkpoint.doneAfterGap.put(index, properties.getProperty(property));
+                }
+            }
+            checkpoint.loaded.putAll(checkpoint.doneAfterGap);
+            return checkpoint;
+        }
+
+        /**
+         * @return number of files completed without gap
+         */
+        synchronized long completed() {
+            return completed;
+        }
+
+        synchronized long failedCount() {
+            return failedCount;
+        }
+
+        synchronized boolean isDone(long index) {
+            return index < completed || doneAfterGap.containsKey(index);
+        }
+
+        /**
+         * @param index position of file in source
+         * @param name  name of file at this position
+         * @throws IllegalStateException if another file was completed at this position
+         */
+        void verify(long index, String name) {
+            final var expected = loaded.get(index);
+            if (expected != null && !expected.equals(name)) {
+                refuse("file " + index + " is '" + name + "', but '" + expected
+                    + "' was completed");
+            }
+        }
+
+        /**
+         * @param count number of files in source
+         * @throws IllegalStateException if files were completed beyond the end of source
+         */
+        void verifyEnd(long count) {
+            loaded.keySet().stream().filter(index -> index >= count).findFirst()
+                .ifPresent(index -> refuse("source has " + count + " files, but '"
+                    + loaded.get(index) + "' was completed at " + index));
+        }
+
+        private void refuse(String reason) {
+            // progress against a changed source must not be saved
+            stale = true;
+            aborted = true;
+            throw new IllegalStateException("Source '" + source + "' changed since checkpoint '"
+                + file + "' was written: " + reason + ". Remove it to start a new backfill.");
+        }
+
+        synchronized void done(long index, String name) {
+            doneAfterGap.put(index, name);
+            while (!doneAfterGap.isEmpty() && doneAfterGap.firstKey() == completed) {
+                completedName = doneAfterGap.pollFirstEntry().getValue();
+                completed++;
+            }
+        }
+
+        synchronized void failed(long index, String name, Exception cause) {
+            try {
+                Files.writeString(failedFile, index + "\t" + name + "\t"
+                        + String.valueOf(cause.getMessage()).replace('\n', ' ') + "\n",
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            failedCount++;
+            done(index, name);
+        }
+
+        void abort() {
+            aborted = true;
+        }
+
+        boolean isAborted() {
+            return aborted;
+        }
+
+        synchronized void save() throws IOException {
+            if (stale) {
+                return;
+            }
+            final var properties = new Properties();
+            properties.setProperty("source", source);
+            properties.setProperty("completed", Long.toString(completed));
+            if (completedName != null) {
+                properties.setProperty("completedName", completedName);
+            }
+            properties.setProperty("failed", Long.toString(failedCount));
+            doneAfterGap.forEach((index, name) -> properties.setProperty("done." + index, name));
+            final var temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (var writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(writer, "mtb2kafka backfill");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * MTB files of a backfill, read in a stable order: the <code>.json</code> files of a directory
+ * tree sorted by path, or the <code>.json</code> entries of a tar archive
+ * (<code>.tar</code>, <code>.tar.gz</code> or <code>.tgz</code>) in archive order.
+ */
+abstract class BackfillSource implements Closeable {
+
+    /**
+     * @return source of path, depending on whether it is a directory or a tar archive
+     */
+    static BackfillSource open(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            return new DirectorySource(path);
+        }
+        final var name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".tar")) {
+            return new TarSource(new BufferedInputStream(Files.newInputStream(path)));
+        }
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return new TarSource(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path), 64 * 1024)));
+        }
+        throw new IllegalArgumentException(
+            "backfill source must be a directory or a tar archive: " + path);
+    }
+
+    /**
+     * Move to the next MTB file; content of the current one is skipped if not read.
+     *
+     * @return <code>false</code> if there are no more files
+     */
+    abstract boolean next() throws IOException;
+
+    /**
+     * @return relative path of the current file
+     */
+    abstract String name();
+
+    /**
+     * @return content of the current file
+     */
+    abstract byte[] content() throws IOException;
+
+    private static boolean isMtbFile(String name) {
+        return name.toLowerCase(Locale.ROOT).endsWith(".json");
+    }
+
+    private static final class DirectorySource extends BackfillSource {
+
+        private final Path root;
+        private final Iterator<Path> files;
+        private Path current;
+
+        private DirectorySource(Path root) throws IOException {
+            this.root = root;
+            final List<Path> sorted;
+            try (var walk = Files.walk(root)) {
+                sorted = walk.filter(Files::isRegularFile)
+                    .filter(file -> isMtbFile(file.getFileName().toString()))
+                    .sorted()
+                    .toList();
+            }
+            this.files = sorted.iterator();
+        }
+
+        @Override
+        boolean next() {
+            current = files.hasNext() ? files.next() : null;
+            return current != null;
+        }
+
+        @Override
+        String name() {
+            return root.relativize(current).toString();
+        }
+
+        @Override
+        byte[] content() throws IOException {
+            return Files.readAllBytes(current);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Reads POSIX ustar archives, including GNU and pax long names. Only regular files are
+     * returned.
+     */
+    private static final class TarSource extends BackfillSource {
+
+        private static final int BLOCK = 512;
+
+        private final InputStream in;
+        private final byte[] header = new byte[BLOCK];
+        private String name;
+        private long remaining;
+        private long padding;
+
+        private TarSource(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        boolean next() throws IOException {
+            String longName = null;
+            while (true) {
+                skip(remaining + padding);
+                remaining = 0;
+                padding = 0;
+                if (!readHeader()) {
+                    return false;
+                }
+                final long size = octal(header, 124, 12);
+                final char type = (char) header[156];
+                remaining = size;
+                padding = (BLOCK - size % BLOCK) % BLOCK;
+
+                if (type == 'L') {
+                    longName = trim(new String(content(), StandardCharsets.UTF_8));
+                    continue;
+                }
+                if (type == 'x') {
+                    final var path = paxPath(new String(content(), StandardCharsets.UTF_8));
+                    longName = path != null ? path : longName;
+                    continue;
+                }
+                final var entryName = longName != null ? longName : headerName();
+                longName = null;
+                if ((type == '0' || type == '\0') && isMtbFile(entryName)) {
+                    name = entryName;
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        String name() {
+            return name;
+        }
+
+        @Override
+        byte[] content() throws IOException {
+            if (remaining > Integer.MAX_VALUE) {
+                throw new IOException("tar entry too large: " + name);
+            }
+            final var content = in.readNBytes((int) remaining);
+            if (content.length < remaining) {
+                throw new EOFException("truncated tar entry: " + name);
+            }
+            remaining = 0;
+            return content;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * @return <code>false</code> at the end of the archive, i.e. a zero block or end of
+         * stream
+         */
+        private boolean readHeader() throws IOException {
+            final int read = in.readNBytes(header, 0, BLOCK);
+            if (read == 0) {
+                return false;
+            }
+            if (read < BLOCK) {
+                throw new EOFException("truncated tar header");
+            }
+            for (byte b : header) {
+                if (b != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String headerName() {
+            final var entryName = string(header, 0, 100);
+            final boolean ustar = string(header, 257, 5).equals("ustar");
+            final var prefix = ustar ? string(header, 345, 155) : "";
+            return prefix.isEmpty() ? entryName : prefix + "/" + entryName;
+        }
+
+        private void skip(long bytes) throws IOException {
+            long left = bytes;
+            while (left > 0) {
+                final long skipped = in.skip(left);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("truncated tar archive");
+                    }
+                    left--;
+                } else {
+                    left -= skipped;
+                }
+            }
+        }
+
+        /**
+         * @param records pax extended header records, <code>length key=value\n</code>
+         * @return value of <code>path</code>, <code>null</code> if not set
+         */
+        private static String paxPath(String records) {
+            for (String line : records.split("\n")) {
+                final int space = line.indexOf(' ');
+                if (space > 0 && line.startsWith("path=", space + 1)) {
+                    return line.substring(space + 6);
+                }
+            }
+            return null;
+        }
+
+        private static long octal(byte[] buffer, int offset, int length) {
+            int i = offset;
+            while (i < offset + length && buffer[i] == ' ') {
+                i++;
+            }
+            long value = 0;
+            for (; i < offset + length && buffer[i] >= '0' && buffer[i] <= '7'; i++) {
+                value = value * 8 + (buffer[i] - '0');
+            }
+            return value;
+        }
+
+        private static String string(byte[] buffer, int offset, int length) {
+            int end = offset;
+            while (end < offset + length && buffer[end] != 0) {
+                end++;
+            }
+            return new String(buffer, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        private static String trim(String value) {
+            final int nul = value.indexOf('\0');
+            return nul < 0 ? value : value.substring(0, nul);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Storage of MTB files too large to be produced inline, see {@link ClaimCheck}.
+ */
+public interface BlobStore {
+
+    /**
+     * Store content under given name. Names are derived from the content, so an existing blob
+     * of the same name may be kept.
+     *
+     * @return location of the blob, as written to the reference record
+     */
+    URI put(String name, byte[] content) throws IOException;
+
+    /**
+     * @param location location returned by {@link #put(String, byte[])}
+     * @return content of the blob
+     */
+    byte[] get(URI location) throws IOException;
+}
@@ -0,0 +1,73 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of a bulk upload to <code>/mtbfile/bulk</code> with one status per document.
+ */
+public class BulkReport {
+
+    public static final String ACCEPTED = "accepted";
+    public static final String REJECTED = "rejected";
+    public static final String FAILED = "failed";
+    /**
+     * accepted, but not produced since the same content was produced before
+     */
+    public static final String UNCHANGED = "unchanged";
+
+    private final List<DocumentStatus> documents = new ArrayList<>();
+    private int accepted;
+
+    public void add(DocumentStatus status) {
+        if (ACCEPTED.equals(status.status()) || UNCHANGED.equals(status.status())) {
+            accepted++;
+        }
+        documents.add(status);
+    }
+
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public int getFailed() {
+        return documents.size() - accepted;
+    }
+
+    public List<DocumentStatus> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @param index   position of document in upload, starting with <code>0</code>
+     * @param line    line the document starts at
+     * @param status  one of {@link #ACCEPTED}, {@link #UNCHANGED}, {@link #REJECTED} (invalid
+     *                document) or {@link #FAILED} (gPas or Kafka not available)
+     * @param message reason if not accepted
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record DocumentStatus(int index, int line, String status, String message) {
+
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Claim check for large MTB files: files larger than <code>threshold</code> are written to a
+ * {@link BlobStore} and replaced by a small reference record
+ * <pre>
+ * {"claimCheck":{"location":"file:///...","sha256":"...","size":12345}}
+ * </pre>
+ * with header {@value #CLAIM_CHECK_HEADER} set to the location. Blobs are named by the
+ * SHA-256 of their content, never by the record key, and are not deleted by this service, not
+ * even by a tombstone of their key: the same blob may be referenced by records of other keys.
+ * They must be expired by the blob store, see README.
+ */
+@Component
+@ConditionalOnProperty(value = "mtb2kafka.claimCheck.enabled")
+public class ClaimCheck {
+
+    public static final String CLAIM_CHECK_HEADER = "mtb2kafka-claim-check";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final long threshold;
+    private final BlobStore blobStore;
+    private final DistributionSummary storedSize;
+
+    @Autowired
+    public ClaimCheck(@Value("${mtb2kafka.claimCheck.threshold:512KB}") DataSize threshold,
+        BlobStore blobStore, MeterRegistry meterRegistry) {
+        // reference records must always be produced inline
+        if (threshold.toKilobytes() < 1) {
+            throw new IllegalStateException(
+                "'mtb2kafka.claimCheck.threshold' must be at least 1KB.");
+        }
+        this.threshold = threshold.toBytes();
+        this.blobStore = blobStore;
+        this.storedSize = DistributionSummary.builder("mtb2kafka.claimcheck.stored")
+            .description("size of MTB files written to the blob store").baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    /**
+     * @return size in bytes above which MTB files are stored in the blob store
+     */
+    public long threshold() {
+        return threshold;
+    }
+
+    /**
+     * @param data serialized MTB file
+     * @return reference to the stored file, or <code>null</code> if data is small enough to
+     * be produced inline
+     */
+    public Reference check(String data) throws IOException {
+        // at most three UTF-8 bytes per char
+        if ((long) data.length() * 3 <= threshold) {
+            return null;
+        }
+        return check(data.getBytes(StandardCharsets.UTF_8), ".json");
+    }
+
+    /**
+     * @param content       MTB file in a binary {@link MtbValueFormat}
+     * @param fileExtension extension of the blob name
+     * @return reference to the stored file, or <code>null</code> if content is small enough to
+     * be produced inline
+     */
+    public Reference check(byte[] content, String fileExtension) throws IOException {
+        if (content.length <= threshold) {
+            return null;
+        }
+
+        final String sha256 = HexFormat.of().formatHex(sha256(content));
+        final var location = blobStore.put(sha256 + fileExtension, content);
+        storedSize.record(content.length);
+
+        final var reference = OBJECT_MAPPER.createObjectNode();
+        reference.putObject("claimCheck")
+            .put("location", location.toString())
+            .put("sha256", sha256)
+            .put("size", content.length);
+        return new Reference(OBJECT_MAPPER.writeValueAsString(reference),
+            new RecordHeader(CLAIM_CHECK_HEADER,
+                location.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available.", e);
+        }
+    }
+
+    /**
+     * @param value  reference record value
+     * @param header header marking the reference record
+     */
+    public record Reference(String value, Header header) {
+
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link BlobStore} in a local directory, e.g. a volume shared with consumers. Blobs are
+ * written to a temporary file and moved into place, so readers never see partial content.
+ */
+@Component
+@ConditionalOnExpression("${mtb2kafka.claimCheck.enabled:false}"
+    + " and '${mtb2kafka.claimCheck.store:filesystem}' == 'filesystem'")
+public class FileSystemBlobStore implements BlobStore {
+
+    private final Path directory;
+
+    @Autowired
+    public FileSystemBlobStore(
+        @Value("${mtb2kafka.claimCheck.directory:claim-check}") String directory)
+        throws IOException {
+        this.directory = Files.createDirectories(Path.of(directory)).toAbsolutePath();
+    }
+
+    @Override
+    public URI put(String name, byte[] content) throws IOException {
+        final var target = directory.resolve(name);
+        if (!target.getParent().equals(directory)) {
+            throw new IllegalArgumentException("invalid blob name '" + name + "'");
+        }
+        if (!Files.exists(target)) {
+            final var temp = Files.createTempFile(directory, name, ".tmp");
+            try {
+                Files.write(temp, content);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return target.toUri();
+    }
+
+    @Override
+    public byte[] get(URI location) throws IOException {
+        final var path = Path.of(location);
+        if (!path.getParent().equals(directory)) {
+            throw new IllegalArgumentException("blob '" + location + "' not in " + directory);
+        }
+        return Files.readAllBytes(path);
+    }
+}
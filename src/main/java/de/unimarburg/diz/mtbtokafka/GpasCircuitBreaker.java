@@ -0,0 +1,209 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import java.time.Clock;
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Circuit breaker for gPas calls. The outcome of the last <code>slidingWindowSize</code> calls
+ * is recorded; once at least <code>minimumNumberOfCalls</code> were made and the failure rate
+ * reaches <code>failureRateThreshold</code> percent, the breaker opens and calls fail fast.
+ * After <code>waitDurationInOpenState</code> a limited number of probe calls is let through
+ * (half open); the breaker closes again if all of them succeed.
+ * <p>
+ * The state is reported as detail of <code>gpasCircuitBreaker</code> in
+ * <code>/actuator/health</code>. The indicator itself stays <code>UP</code>: an open breaker
+ * means gPas is down, not this service, so it must not fail liveness checks.
+ */
+@Component("gpasCircuitBreaker")
+@ConditionalOnProperty(name = {"mtb2kafka.pseudonym.enabled",
+    "mtb2kafka.pseudonym.circuitBreaker.enabled"})
+public class GpasCircuitBreaker implements HealthIndicator {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final Logger log = LoggerFactory.getLogger(GpasCircuitBreaker.class);
+
+    private final int failureRateThreshold;
+    private final int minimumNumberOfCalls;
+    private final long waitInOpenMillis;
+    private final int permittedCallsInHalfOpen;
+    private final Clock clock;
+
+    private final boolean[] outcomes;
+    private int recordedCalls;
+    private int nextOutcome;
+    private int failedCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenCallsStarted;
+    private int halfOpenCallsSucceeded;
+
+    @Autowired
+    public GpasCircuitBreaker(
+        @Value("${mtb2kafka.pseudonym.circuitBreaker.failureRateThreshold:50}")
+        int failureRateThreshold,
+        @Value("${mtb2kafka.pseudonym.circuitBreaker.slidingWindowSize:20}")
+        int slidingWindowSize,
+        @Value("${mtb2kafka.pseudonym.circuitBreaker.minimumNumberOfCalls:10}")
+        int minimumNumberOfCalls,
+        @Value("${mtb2kafka.pseudonym.circuitBreaker.waitDurationInOpenState:PT30S}")
+        Duration waitDurationInOpenState,
+        @Value("${mtb2kafka.pseudonym.circuitBreaker.permittedCallsInHalfOpenState:3}")
+        int permittedCallsInHalfOpen) {
+        this(failureRateThreshold, slidingWindowSize, minimumNumberOfCalls,
+            waitDurationInOpenState, permittedCallsInHalfOpen, Clock.systemUTC());
+    }
+
+    GpasCircuitBreaker(int failureRateThreshold, int slidingWindowSize,
+        int minimumNumberOfCalls, Duration waitDurationInOpenState,
+        int permittedCallsInHalfOpen, Clock clock) {
+        if (slidingWindowSize < 1 || permittedCallsInHalfOpen < 1) {
+            throw new IllegalStateException(
+                "circuit breaker window size and half open calls must be greater than zero.");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumNumberOfCalls = Math.min(minimumNumberOfCalls, slidingWindowSize);
+        this.waitInOpenMillis = waitDurationInOpenState.toMillis();
+        this.permittedCallsInHalfOpen = permittedCallsInHalfOpen;
+        this.clock = clock;
+        this.outcomes = new boolean[slidingWindowSize];
+    }
+
+    /**
+     * @return <code>true</code> if a gPas call may be made now, <code>false</code> if it
+     * should fail fast
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (clock.millis() - openedAt < waitInOpenMillis) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenCallsStarted >= permittedCallsInHalfOpen) {
+                return false;
+            }
+            halfOpenCallsStarted++;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (++halfOpenCallsSucceeded >= permittedCallsInHalfOpen) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        record(false);
+    }
+
+    /**
+     * Give back a permission whose call must not count as success or failure, e.g. a request
+     * gPas rejected as invalid. A probe slot in half open state is freed again.
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && halfOpenCallsStarted > 0) {
+            halfOpenCallsStarted--;
+        }
+    }
+
+    public synchronized void onError() {
+        if (state == State.HALF_OPEN) {
+            transitionTo(State.OPEN);
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && recordedCalls >= minimumNumberOfCalls
+            && failureRate() >= failureRateThreshold) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return failure rate in percent of recorded calls in closed state
+     */
+    public synchronized float failureRate() {
+        return recordedCalls == 0 ? 0 : failedCalls * 100f / recordedCalls;
+    }
+
+    @Override
+    public Health health() {
+        final State current;
+        final float failureRate;
+        synchronized (this) {
+            current = state;
+            failureRate = failureRate();
+        }
+        return Health.up()
+            .withDetail("state", current)
+            .withDetail("failureRate", failureRate)
+            .build();
+    }
+
+    private void record(boolean failed) {
+        if (recordedCalls == outcomes.length) {
+            if (outcomes[nextOutcome]) {
+                failedCalls--;
+            }
+        } else {
+            recordedCalls++;
+        }
+        outcomes[nextOutcome] = failed;
+        if (failed) {
+            failedCalls++;
+        }
+        nextOutcome = (nextOutcome + 1) % outcomes.length;
+    }
+
+    private void transitionTo(State newState) {
+        log.warn("gPas circuit breaker changes from {} to {}", state, newState);
+        state = newState;
+        switch (newState) {
+            case OPEN -> openedAt = clock.millis();
+            case HALF_OPEN -> {
+                halfOpenCallsStarted = 0;
+                halfOpenCallsSucceeded = 0;
+            }
+            case CLOSED -> {
+                recordedCalls = 0;
+                nextOutcome = 0;
+                failedCalls = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.GpasOverloaded;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.observation.ObservationRegistry;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Optional;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.ExponentialRandomBackOffPolicy;
+import org.springframework.retry.listener.RetryListenerSupport;
+import org.springframework.retry.policy.CompositeRetryPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.policy.TimeoutRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * HTTP client used for all gPas requests. Connections are pooled and kept alive, so repeated
+ * requests do not pay for TCP and TLS handshakes.
+ */
+@Configuration
+@ConditionalOnProperty(value = "mtb2kafka.pseudonym.enabled")
+public class GpasClientConfiguration {
+
+    private final Logger log = LoggerFactory.getLogger(GpasClientConfiguration.class);
+
+    @Bean(destroyMethod = "close")
+    public PoolingHttpClientConnectionManager gPasConnectionManager(
+        @Value("${mtb2kafka.pseudonym.http.maxConnectionsPerRoute:20}") int maxPerRoute,
+        @Value("${mtb2kafka.pseudonym.http.readTimeout:PT10S}") Duration readTimeout) {
+
+        return PoolingHttpClientConnectionManagerBuilder.create()
+            .setMaxConnPerRoute(maxPerRoute)
+            .setMaxConnTotal(maxPerRoute)
+            .setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(Timeout.ofMilliseconds(readTimeout.toMillis())).build())
+            .setValidateAfterInactivity(TimeValue.ofSeconds(2))
+            .build();
+    }
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient gPasHttpClient(
+        PoolingHttpClientConnectionManager gPasConnectionManager,
+        @Value("${mtb2kafka.pseudonym.http.connectTimeout:PT2S}") Duration connectTimeout,
+        @Value("${mtb2kafka.pseudonym.http.readTimeout:PT10S}") Duration readTimeout,
+        @Value("${mtb2kafka.pseudonym.http.idleTimeout:PT30S}") Duration idleTimeout) {
+
+        return HttpClients.custom()
+            .setConnectionManager(gPasConnectionManager)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(connectTimeout.toMillis()))
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectTimeout.toMillis()))
+                .setResponseTimeout(Timeout.ofMilliseconds(readTimeout.toMillis()))
+                .build())
+            // retries are handled by PseudonymizerService
+            .disableAutomaticRetries()
+            .evictExpiredConnections()
+            .evictIdleConnections(TimeValue.ofMilliseconds(idleTimeout.toMillis()))
+            .build();
+    }
+
+    /**
+     * Defaults to the connection pool size, so requests wait for a permit instead of a pooled
+     * connection.
+     */
+    @Bean
+    public GpasConcurrencyLimiter gPasConcurrencyLimiter(
+        @Value("${mtb2kafka.pseudonym.http.maxConcurrentRequests:"
+            + "${mtb2kafka.pseudonym.http.maxConnectionsPerRoute:20}}") int maxConcurrentRequests,
+        @Value("${mtb2kafka.pseudonym.http.maxWait:PT2S}") Duration maxWait) {
+        return new GpasConcurrencyLimiter(maxConcurrentRequests, maxWait);
+    }
+
+    /**
+     * Requests are observed as <code>http.client.requests</code>, so they carry the
+     * <code>traceparent</code> of the current trace if tracing is enabled.
+     */
+    @Bean
+    public RestTemplate gPasRestTemplate(CloseableHttpClient gPasHttpClient,
+        GpasConcurrencyLimiter gPasConcurrencyLimiter,
+        Optional<ObservationRegistry> observationRegistry) {
+        final var restTemplate = new RestTemplate(
+            new HttpComponentsClientHttpRequestFactory(gPasHttpClient));
+        restTemplate.getInterceptors().add(gPasConcurrencyLimiter);
+        observationRegistry.ifPresent(restTemplate::setObservationRegistry);
+        return restTemplate;
+    }
+
+    /**
+     * Retries failed gPas calls with randomized exponential back off. No further attempt is
+     * started once <code>budget</code> has passed since the first attempt. Client errors
+     * (4xx) are not retried.
+     */
+    @Bean
+    public RetryTemplate gPasRetryTemplate(
+        @Value("${mtb2kafka.pseudonym.retry.maxAttempts:3}") int maxAttempts,
+        @Value("${mtb2kafka.pseudonym.retry.initialInterval:PT1S}") Duration initialInterval,
+        @Value("${mtb2kafka.pseudonym.retry.multiplier:1.25}") double multiplier,
+        @Value("${mtb2kafka.pseudonym.retry.maxInterval:PT3S}") Duration maxInterval,
+        @Value("${mtb2kafka.pseudonym.retry.budget:PT5S}") Duration budget) {
+        RetryTemplate retryTemplate = new RetryTemplate();
+        ExponentialRandomBackOffPolicy backOffPolicy = new ExponentialRandomBackOffPolicy();
+        backOffPolicy.setInitialInterval(initialInterval.toMillis());
+        backOffPolicy.setMultiplier(multiplier);
+        backOffPolicy.setMaxInterval(maxInterval.toMillis());
+        retryTemplate.setBackOffPolicy(backOffPolicy);
+
+        HashMap<Class<? extends Throwable>, Boolean> retryableExceptions = new HashMap<>();
+        retryableExceptions.put(RestClientException.class, true);
+        retryableExceptions.put(HttpClientErrorException.class, false);
+        retryableExceptions.put(GpasOverloaded.class, false);
+        retryableExceptions.put(ConnectException.class, true);
+        TimeoutRetryPolicy budgetPolicy = new TimeoutRetryPolicy();
+        budgetPolicy.setTimeout(budget.toMillis());
+        CompositeRetryPolicy retryPolicy = new CompositeRetryPolicy();
+        retryPolicy.setPolicies(new RetryPolicy[]{
+            new SimpleRetryPolicy(maxAttempts, retryableExceptions), budgetPolicy});
+        retryTemplate.setRetryPolicy(retryPolicy);
+
+        retryTemplate.registerListener(new RetryListenerSupport() {
+            @Override
+            public <T, E extends Throwable> void onError(RetryContext context,
+                RetryCallback<T, E> callback, Throwable throwable) {
+                log.warn("HTTP Error occurred: {}. Retrying {}", throwable.getMessage(),
+                    context.getRetryCount());
+            }
+        });
+
+        return retryTemplate;
+    }
+
+    /**
+     * Export connection pool usage, e.g. to see if requests wait for a free connection.
+     */
+    @Bean
+    public MeterBinder gPasConnectionPoolMetrics(
+        PoolingHttpClientConnectionManager gPasConnectionManager) {
+        return registry -> {
+            Gauge.builder("mtb2kafka.gpas.pool.connections",
+                    () -> gPasConnectionManager.getTotalStats().getLeased())
+                .tag("state", "leased").description("gPas connections in use")
+                .register(registry);
+            Gauge.builder("mtb2kafka.gpas.pool.connections",
+                    () -> gPasConnectionManager.getTotalStats().getAvailable())
+                .tag("state", "available").description("idle gPas connections")
+                .register(registry);
+            Gauge.builder("mtb2kafka.gpas.pool.pending",
+                    () -> gPasConnectionManager.getTotalStats().getPending())
+                .description("requests waiting for a gPas connection").register(registry);
+            Gauge.builder("mtb2kafka.gpas.pool.max",
+                    () -> gPasConnectionManager.getTotalStats().getMax())
+                .description("maximum number of gPas connections").register(registry);
+        };
+    }
+}
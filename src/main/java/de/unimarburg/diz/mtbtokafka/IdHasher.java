@@ -0,0 +1,351 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Replaces secondary IDs of MTB files with keyed hashes (HMAC-SHA256, base64url encoded) and
+ * marks patient back references, which are replaced by the patient pseudonym.
+ * <p>
+ * Rules are paths of field names separated by <code>.</code>; <code>*</code> matches any
+ * field, <code>[*]</code> any array element and <code>**</code> any number of fields and
+ * elements, e.g. <code>diagnoses[*].id</code> or <code>**.patient</code>. All rules are
+ * compiled into one automaton whose states are created on first use and cached, so each JSON
+ * field costs one map lookup regardless of the number of rules. Only field names occurring in
+ * rules are cached per state, all other names share one transition, so client chosen names do
+ * not grow the cache. <code>patient.id</code> is never matched, it is always replaced by its
+ * gPas pseudonym.
+ */
+@Component
+@ConditionalOnProperty(name = {"mtb2kafka.pseudonym.enabled", "mtb2kafka.pseudonym.hash.enabled"})
+public class IdHasher {
+
+    public enum Action {NONE, HASH, PATIENT}
+
+    private enum Kind {ROOT, ROOT_PATIENT, OTHER, DEAD}
+
+    private static final String HMAC = "HmacSHA256";
+
+    private final List<Step[]> rules = new ArrayList<>();
+    private final List<Action> ruleActions = new ArrayList<>();
+    // field names with their own transitions, all other names are alike
+    private final Set<String> literals = new HashSet<>(List.of("patient", "id"));
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> mac;
+    // position of first step of each rule, see closure()
+    private final int[] offsets;
+    private final Map<BitSet, State> states = new ConcurrentHashMap<>();
+    private final State root;
+    private final State dead;
+
+    @Autowired
+    public IdHasher(@Value("${mtb2kafka.pseudonym.hash.key}") String base64Key,
+        @Value("${mtb2kafka.pseudonym.hash.paths:**.id}") List<String> hashPaths,
+        @Value("${mtb2kafka.pseudonym.hash.patientReferences:**.patient}")
+        List<String> patientReferences) {
+        final byte[] keyBytes = base64Key == null ? new byte[0]
+            : Base64.getDecoder().decode(base64Key.trim());
+        if (keyBytes.length < 16) {
+            throw new IllegalStateException(
+                "'mtb2kafka.pseudonym.hash.key' must be a base64 encoded key of at least 16 "
+                    + "bytes.");
+        }
+        this.key = new SecretKeySpec(keyBytes, HMAC);
+        this.mac = ThreadLocal.withInitial(this::newMac);
+
+        // patient references take precedence over hashing
+        patientReferences.stream().filter(p -> !p.isBlank())
+            .forEach(path -> addRule(path, Action.PATIENT));
+        hashPaths.stream().filter(p -> !p.isBlank()).forEach(path -> addRule(path, Action.HASH));
+        this.offsets = new int[rules.size()];
+        for (int rule = 1; rule < rules.size(); rule++) {
+            offsets[rule] = offsets[rule - 1] + rules.get(rule - 1).length + 1;
+        }
+
+        this.dead = new State(new BitSet(), Action.NONE, Kind.DEAD);
+        final var initial = closure(initialPositions());
+        this.root = new State(initial, actionOf(initial), Kind.ROOT);
+    }
+
+    /**
+     * @return state of the document root
+     */
+    public State root() {
+        return root;
+    }
+
+    /**
+     * @param path field names from the document root, e.g. <code>episode</code>,
+     *             <code>id</code>
+     * @return action for the value at this path
+     */
+    public Action actionAt(String... path) {
+        var state = root;
+        for (String field : path) {
+            state = state.field(field);
+        }
+        return state.action();
+    }
+
+    /**
+     * @param value original ID
+     * @return keyed hash of value
+     */
+    public String hash(String value) {
+        final byte[] digest = mac.get().doFinal(value.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    private Mac newMac() {
+        try {
+            final var instance = Mac.getInstance(HMAC);
+            instance.init(key);
+            return instance;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC initialization failed.", e);
+        }
+    }
+
+    private void addRule(String path, Action action) {
+        final List<Step> steps = new ArrayList<>();
+        for (String segment : path.trim().split("\\.")) {
+            var name = segment;
+            int elements = 0;
+            while (name.endsWith("[*]")) {
+                name = name.substring(0, name.length() - 3);
+                elements++;
+            }
+            if (name.isEmpty() && elements == 0) {
+                throw new IllegalStateException("invalid ID hashing rule '" + path + "'");
+            }
+            if (!name.isEmpty()) {
+                steps.add(switch (name) {
+                    case "**" -> Step.DESCENDANTS;
+                    case "*" -> Step.ANY_FIELD;
+                    default -> {
+                        literals.add(name);
+                        yield Step.field(name);
+                    }
+                });
+            }
+            for (int i = 0; i < elements; i++) {
+                steps.add(Step.ELEMENT);
+            }
+        }
+        rules.add(steps.toArray(Step[]::new));
+        ruleActions.add(action);
+    }
+
+    private BitSet initialPositions() {
+        final var positions = new BitSet();
+        for (int offset : offsets) {
+            positions.set(offset);
+        }
+        return positions;
+    }
+
+    /**
+     * A position is a step of a rule, encoded as bit <code>offset of rule + step</code>; the
+     * position after the last step means the rule matched. <code>**</code> may match nothing,
+     * so the following step is reachable as well.
+     */
+    private BitSet closure(BitSet positions) {
+        final var result = (BitSet) positions.clone();
+        for (int rule = 0; rule < rules.size(); rule++) {
+            final int offset = offsets[rule];
+            final var steps = rules.get(rule);
+            for (int step = 0; step < steps.length; step++) {
+                if (result.get(offset + step) && steps[step] == Step.DESCENDANTS) {
+                    result.set(offset + step + 1);
+                }
+            }
+        }
+        return result;
+    }
+
+    private State transition(State from, String fieldName) {
+        final var positions = from.positions;
+        final var next = new BitSet();
+        for (int rule = 0; rule < rules.size(); rule++) {
+            final int offset = offsets[rule];
+            final var steps = rules.get(rule);
+            for (int step = 0; step < steps.length; step++) {
+                if (!positions.get(offset + step)) {
+                    continue;
+                }
+                final var current = steps[step];
+                if (current == Step.DESCENDANTS) {
+                    next.set(offset + step);
+                } else if (fieldName == null ? current == Step.ELEMENT
+                    : current == Step.ANY_FIELD || fieldName.equals(current.name)) {
+                    next.set(offset + step + 1);
+                }
+            }
+        }
+        final var closed = closure(next);
+
+        // patient.id is replaced by its gPas pseudonym, never by a rule
+        if (from.kind == Kind.ROOT && "patient".equals(fieldName)) {
+            return new State(closed, actionOf(closed), Kind.ROOT_PATIENT);
+        }
+        if (from.kind == Kind.ROOT_PATIENT && "id".equals(fieldName)) {
+            return closed.isEmpty() ? dead : new State(closed, Action.NONE, Kind.OTHER);
+        }
+        if (closed.isEmpty()) {
+            return dead;
+        }
+        return states.computeIfAbsent(closed, p -> new State(p, actionOf(p), Kind.OTHER));
+    }
+
+    private Action actionOf(BitSet positions) {
+        for (int rule = 0; rule < rules.size(); rule++) {
+            if (positions.get(offsets[rule] + rules.get(rule).length)) {
+                return ruleActions.get(rule);
+            }
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * Position in a document, i.e. the set of rule steps matching it.
+     */
+    public final class State {
+
+        private final BitSet positions;
+        private final Action action;
+        private final Kind kind;
+        private final Map<String, State> fields = new ConcurrentHashMap<>();
+        private volatile State element;
+        private volatile State other;
+
+        private State(BitSet positions, Action action, Kind kind) {
+            this.positions = positions;
+            this.action = action;
+            this.kind = kind;
+        }
+
+        /**
+         * @return action for a value at this position
+         */
+        public Action action() {
+            return action;
+        }
+
+        /**
+         * @return <code>true</code> if no rule can match below this position
+         */
+        public boolean isDead() {
+            return kind == Kind.DEAD;
+        }
+
+        /**
+         * @param name field name
+         * @return state of field value
+         */
+        public State field(String name) {
+            if (kind == Kind.DEAD) {
+                return this;
+            }
+            if (!literals.contains(name)) {
+                var known = other;
+                if (known == null) {
+                    known = transition(this, name);
+                    other = known;
+                }
+                return known;
+            }
+            final var known = fields.get(name);
+            if (known != null) {
+                return known;
+            }
+            return fields.computeIfAbsent(name, n -> transition(this, n));
+        }
+
+        /**
+         * @return state of array elements
+         */
+        public State element() {
+            if (kind == Kind.DEAD) {
+                return this;
+            }
+            var known = element;
+            if (known == null) {
+                known = transition(this, null);
+                element = known;
+            }
+            return known;
+        }
+
+        @Override
+        public String toString() {
+            return "State" + positions + action;
+        }
+    }
+
+    private static final class Step {
+
+        private static final Step DESCENDANTS = new Step(null);
+        private static final Step ANY_FIELD = new Step(null);
+        private static final Step ELEMENT = new Step(null);
+
+        private final String name;
+
+        private Step(String name) {
+            this.name = name;
+        }
+
+        private static Step field(String name) {
+            return new Step(name);
+        }
+
+        @Override
+        public String toString() {
+            return this == DESCENDANTS ? "**" : this == ANY_FIELD ? "*"
+                : this == ELEMENT ? "[*]" : name;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final List<String> compiled = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            compiled.add(Arrays.toString(rules.get(i)) + "=" + ruleActions.get(i));
+        }
+        return "IdHasher" + compiled;
+    }
+}
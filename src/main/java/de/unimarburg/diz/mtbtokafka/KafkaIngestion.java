@@ -0,0 +1,347 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JacksonException;
+import de.unimarburg.diz.mtbtokafka.PipelineMetrics.Failure;
+import de.unimarburg.diz.mtbtokafka.RestForMtb.MtbRecord;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileTooLarge;
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.listener.BatchMessageListener;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.DefaultAfterRollbackProcessor;
+import org.springframework.kafka.transaction.KafkaTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+import org.springframework.util.backoff.FixedBackOff;
+
+/**
+ * Reads raw MTB files from <code>mtb2kafka.ingest.topic</code> and produces them to
+ * <code>mtb2kafka.mtbProducerOutput.destination</code> with the same pseudonymization and keys
+ * as <code>POST /mtbfile</code>.
+ * <p>
+ * Records are consumed in batches; each batch is produced in one Kafka transaction together
+ * with the consumed offsets, so every raw record is produced exactly once for consumers using
+ * <code>isolation.level=read_committed</code>. Records which can never be produced, i.e.
+ * invalid JSON, missing IDs or files too large, are skipped, or written to
+ * <code>mtb2kafka.ingest.deadLetterTopic</code> in the same transaction. Any other failure,
+ * e.g. gPas or the blob store not available, aborts the transaction and the batch is retried
+ * after <code>mtb2kafka.ingest.retryInterval</code>. A record failing unexpectedly
+ * <code>mtb2kafka.ingest.maxAttempts</code> times is skipped like an invalid one, so it does not
+ * block its partition; gPas failures are retried until gPas is available again.
+ * <p>
+ * One consumer runs per partition of the raw topic, unless
+ * <code>mtb2kafka.ingest.concurrency</code> is set.
+ */
+@Component
+@ConditionalOnProperty("mtb2kafka.ingest.enabled")
+public class KafkaIngestion implements BatchMessageListener<String, String> {
+
+    private final Logger log = LoggerFactory.getLogger(KafkaIngestion.class);
+
+    private final RestForMtb restForMtb;
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
+    private final String destination;
+    private final String deadLetterTopic;
+    private final int maxAttempts;
+    private final MtbValueFormat valueFormat;
+    private final ClaimCheck claimCheck;
+    private final PipelineMetrics metrics;
+    private final ConcurrentMessageListenerContainer<String, String> container;
+    /**
+     * Failed attempts per record, by topic, partition and offset
+     */
+    private final Map<String, Integer> failedAttempts = new ConcurrentHashMap<>();
+
+    private final Counter produced;
+    private final Counter unchanged;
+    private final Counter rejected;
+
+    @Autowired
+    public KafkaIngestion(@Value("${mtb2kafka.ingest.topic}") String topic,
+        @Value("${mtb2kafka.ingest.groupId:mtb2kafka-ingest}") String groupId,
+        @Value("${mtb2kafka.ingest.concurrency:0}") int concurrency,
+        @Value("${mtb2kafka.ingest.maxPollRecords:100}") int maxPollRecords,
+        @Value("${mtb2kafka.ingest.transactionIdPrefix:}") String transactionIdPrefix,
+        @Value("${mtb2kafka.ingest.retryInterval:PT5S}") Duration retryInterval,
+        @Value("${mtb2kafka.ingest.deadLetterTopic:}") String deadLetterTopic,
+        @Value("${mtb2kafka.ingest.maxAttempts:5}") int maxAttempts,
+        @Value("${mtb2kafka.mtbProducerOutput.destination}") String destination,
+        RestForMtb restForMtb, KafkaProperties kafkaProperties,
+        KafkaTemplate<String, String> kafkaTemplate, Optional<MtbValueFormat> valueFormat,
+        Optional<ClaimCheck> claimCheck, PipelineMetrics metrics, MeterRegistry meterRegistry) {
+        this(restForMtb, transactionalTemplate(kafkaTemplate, transactionIdPrefix), destination,
+            deadLetterTopic, maxAttempts, valueFormat.filter(MtbValueFormat::isBinary).orElse(null),
+            claimCheck.orElse(null), metrics, meterRegistry,
+            consumerFactory(kafkaProperties, groupId, maxPollRecords), topic, concurrency,
+            retryInterval);
+        container.start();
+    }
+
+    /**
+     * Without consumer, see {@link #onMessage(List)}.
+     *
+     * @param kafkaTemplate transactional template
+     * @param valueFormat   binary value format, <code>null</code> to produce JSON text
+     */
+    KafkaIngestion(RestForMtb restForMtb, KafkaTemplate<String, byte[]> kafkaTemplate,
+        String destination, String deadLetterTopic, int maxAttempts, MtbValueFormat valueFormat,
+        ClaimCheck claimCheck, PipelineMetrics metrics, MeterRegistry meterRegistry) {
+        this(restForMtb, kafkaTemplate, destination, deadLetterTopic, maxAttempts, valueFormat,
+            claimCheck, metrics, meterRegistry, null, null, 0, null);
+    }
+
+    private KafkaIngestion(RestForMtb restForMtb, KafkaTemplate<String, byte[]> kafkaTemplate,
+        String destination, String deadLetterTopic, int maxAttempts, MtbValueFormat valueFormat,
+        ClaimCheck claimCheck, PipelineMetrics metrics, MeterRegistry meterRegistry,
+        ConsumerFactory<String, String> consumerFactory, String topic, int concurrency,
+        Duration retryInterval) {
+        this.restForMtb = restForMtb;
+        this.kafkaTemplate = kafkaTemplate;
+        this.destination = destination;
+        this.deadLetterTopic = StringUtils.hasText(deadLetterTopic) ? deadLetterTopic : null;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.valueFormat = valueFormat;
+        this.claimCheck = claimCheck;
+        this.metrics = metrics;
+
+        produced = Counter.builder("mtb2kafka.ingest.records").tag("result", "produced")
+            .description("raw MTB files consumed").register(meterRegistry);
+        unchanged = Counter.builder("mtb2kafka.ingest.records").tag("result", "unchanged")
+            .description("raw MTB files consumed").register(meterRegistry);
+        rejected = Counter.builder("mtb2kafka.ingest.records").tag("result", "rejected")
+            .description("raw MTB files consumed").register(meterRegistry);
+
+        this.container = consumerFactory == null ? null
+            : container(consumerFactory, topic, concurrency, retryInterval);
+    }
+
+    /**
+     * Produce a batch of raw MTB files. Runs within the transaction of the listener container.
+     */
+    @Override
+    public void onMessage(List<ConsumerRecord<String, String>> records) {
+        final List<MtbRecord> accepted = new ArrayList<>(records.size());
+        for (var raw : records) {
+            if (raw.value() == null) {
+                log.debug("skipping tombstone at {}-{}@{}", raw.topic(), raw.partition(),
+                    raw.offset());
+                continue;
+            }
+            final MtbRecord mtbRecord;
+            try {
+                mtbRecord = restForMtb.toMtbRecord(raw.value());
+            } catch (JacksonException e) {
+                reject(raw, Failure.INVALID_JSON, e);
+                continue;
+            } catch (MtbFileInvalid e) {
+                reject(raw, Failure.SCHEMA_VIOLATION, e);
+                continue;
+            } catch (MtbFileTooLarge e) {
+                reject(raw, Failure.PAYLOAD_TOO_LARGE, e);
+                continue;
+            } catch (PseudonymRequestFailed e) {
+                metrics.failed(Failure.GPAS_UNAVAILABLE);
+                throw e;
+            } catch (IllegalArgumentException e) {
+                reject(raw, Failure.MISSING_KEY, e);
+                continue;
+            } catch (RuntimeException e) {
+                if (failedAttempts.merge(offsetOf(raw), 1, Integer::sum) < maxAttempts) {
+                    metrics.failed(Failure.INTERNAL);
+                    throw e;
+                }
+                failedAttempts.remove(offsetOf(raw));
+                reject(raw, Failure.INTERNAL, e);
+                continue;
+            }
+            if (!failedAttempts.isEmpty()) {
+                failedAttempts.remove(offsetOf(raw));
+            }
+            if (mtbRecord.isUnchanged()) {
+                unchanged.increment();
+                continue;
+            }
+            send(mtbRecord);
+            accepted.add(mtbRecord);
+        }
+        produced.increment(accepted.size());
+
+        // fingerprints must not be remembered for records of an aborted transaction
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        accepted.forEach(restForMtb::accepted);
+                    }
+                });
+        } else {
+            accepted.forEach(restForMtb::accepted);
+        }
+    }
+
+    /**
+     * Send record within the current transaction; send failures abort it on commit.
+     */
+    private void send(MtbRecord mtbRecord) {
+        final List<Header> headers = new ArrayList<>(3);
+        if (mtbRecord.fingerprint() != null) {
+            headers.add(MtbFileDeduplicator.header(mtbRecord.fingerprint()));
+        }
+        byte[] value = mtbRecord.binaryValue() != null ? mtbRecord.binaryValue()
+            : mtbRecord.value().getBytes(StandardCharsets.UTF_8);
+        try {
+            final var reference = claimCheck == null ? null
+                : claimCheck.check(value,
+                    valueFormat != null ? valueFormat.fileExtension() : ".json");
+            if (reference != null) {
+                value = reference.value().getBytes(StandardCharsets.UTF_8);
+                headers.add(reference.header());
+            } else if (valueFormat != null) {
+                headers.add(valueFormat.header());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to store MTB file in blob store", e);
+        }
+        kafkaTemplate.send(new ProducerRecord<>(destination, null, mtbRecord.key(), value,
+            headers));
+        metrics.produced(value.length);
+    }
+
+    private static String offsetOf(ConsumerRecord<?, ?> raw) {
+        return raw.topic() + "-" + raw.partition() + "@" + raw.offset();
+    }
+
+    private void reject(ConsumerRecord<String, String> raw, Failure failure, Exception e) {
+        log.error("Rejecting raw MTB file at {}-{}@{}: {}", raw.topic(), raw.partition(),
+            raw.offset(), e.getMessage());
+        metrics.failed(failure);
+        rejected.increment();
+        if (deadLetterTopic != null) {
+            kafkaTemplate.send(new ProducerRecord<>(deadLetterTopic, null, raw.key(),
+                raw.value().getBytes(StandardCharsets.UTF_8), raw.headers()));
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (container != null) {
+            container.stop();
+        }
+    }
+
+    private ConcurrentMessageListenerContainer<String, String> container(
+        ConsumerFactory<String, String> consumerFactory, String topic, int concurrency,
+        Duration retryInterval) {
+        final var properties = new ContainerProperties(topic);
+        properties.setTransactionManager(
+            new KafkaTransactionManager<>(kafkaTemplate.getProducerFactory()));
+        properties.setMessageListener(this);
+
+        final var result = new ConcurrentMessageListenerContainer<>(consumerFactory, properties);
+        result.setConcurrency(concurrency > 0 ? concurrency : partitions(consumerFactory, topic));
+        // retry the whole batch as long as e.g. gPas is not available; batch listeners are never
+        // recovered by the after rollback processor, records failing repeatedly are skipped by
+        // onMessage
+        result.setAfterRollbackProcessor(new DefaultAfterRollbackProcessor<>(
+            new FixedBackOff(retryInterval.toMillis(), FixedBackOff.UNLIMITED_ATTEMPTS)));
+        result.setBeanName("mtb2kafka-ingest");
+        log.info("Consuming raw MTB files from '{}' with {} consumers.", topic,
+            result.getConcurrency());
+        return result;
+    }
+
+    private int partitions(ConsumerFactory<String, String> consumerFactory, String topic) {
+        try (var consumer = consumerFactory.createConsumer()) {
+            final var partitions = consumer.partitionsFor(topic, Duration.ofSeconds(30));
+            return partitions == null || partitions.isEmpty() ? 1 : partitions.size();
+        } catch (RuntimeException e) {
+            log.warn("Could not get partitions of '{}', using one consumer.", topic, e);
+            return 1;
+        }
+    }
+
+    private static ConsumerFactory<String, String> consumerFactory(
+        KafkaProperties kafkaProperties, String groupId, int maxPollRecords) {
+        final Map<String, Object> configs = kafkaProperties.buildConsumerProperties();
+        configs.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+        configs.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        configs.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+        configs.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
+        return new DefaultKafkaConsumerFactory<>(configs, new StringDeserializer(),
+            new StringDeserializer());
+    }
+
+    /**
+     * @param transactionIdPrefix must be unique per instance, a random prefix is used if
+     *                            blank
+     */
+    @SuppressWarnings("unchecked")
+    private static KafkaTemplate<String, byte[]> transactionalTemplate(
+        KafkaTemplate<String, String> kafkaTemplate, String transactionIdPrefix) {
+        final ProducerFactory<?, ?> producerFactory = kafkaTemplate.getProducerFactory()
+            .copyWithConfigurationOverride(Map.of(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
+                ByteArraySerializer.class));
+        if (!(producerFactory instanceof DefaultKafkaProducerFactory<?, ?> transactional)) {
+            throw new IllegalStateException(
+                "'mtb2kafka.ingest' requires a DefaultKafkaProducerFactory.");
+        }
+        transactional.setTransactionIdPrefix(StringUtils.hasText(transactionIdPrefix)
+            ? transactionIdPrefix : "mtb2kafka-ingest-" + UUID.randomUUID() + "-");
+        return new KafkaTemplate<>((ProducerFactory<String, byte[]>) producerFactory);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.DefaultKafkaProducerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Producer settings for MTB files. Defaults favour throughput of large JSON documents:
+ * compressed batches, a short linger to fill them, and idempotent writes acknowledged by all
+ * in-sync replicas. Optionally, MTB files are partitioned by patient and keys are written in
+ * a compact binary encoding.
+ */
+@Configuration
+public class KafkaProducerConfiguration {
+
+    private final Logger log = LoggerFactory.getLogger(KafkaProducerConfiguration.class);
+
+    @Bean
+    public DefaultKafkaProducerFactoryCustomizer mtbProducerTuning(
+        @Value("${mtb2kafka.mtbProducerOutput.compressionType:zstd}") String compressionType,
+        @Value("${mtb2kafka.mtbProducerOutput.linger:PT0.02S}") Duration linger,
+        @Value("${mtb2kafka.mtbProducerOutput.batchSize:256KB}") DataSize batchSize,
+        @Value("${mtb2kafka.mtbProducerOutput.maxRequestSize:10MB}") DataSize maxRequestSize,
+        @Value("${mtb2kafka.mtbProducerOutput.idempotence:true}") boolean idempotence,
+        @Value("${mtb2kafka.mtbProducerOutput.acks:all}") String acks,
+        @Value("${mtb2kafka.mtbProducerOutput.partitionByPatient:false}")
+        boolean partitionByPatient,
+        @Value("${mtb2kafka.mtbProducerOutput.keyEncoding:json}") String keyEncoding) {
+
+        final var configs = producerConfigs(compressionType, linger, batchSize, maxRequestSize,
+            idempotence, acks);
+        configs.putAll(keyConfigs(partitionByPatient, keyEncoding));
+        log.info("Kafka producer tuning: {}", configs);
+        return producerFactory -> producerFactory.updateConfigs(configs);
+    }
+
+    static Map<String, Object> producerConfigs(String compressionType, Duration linger,
+        DataSize batchSize, DataSize maxRequestSize, boolean idempotence, String acks) {
+        if (idempotence && !"all".equals(acks) && !"-1".equals(acks)) {
+            throw new IllegalStateException(
+                "'mtb2kafka.mtbProducerOutput.idempotence' requires 'acks' to be 'all'.");
+        }
+        if (maxRequestSize.toBytes() > Integer.MAX_VALUE
+            || batchSize.toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalStateException(
+                "'mtb2kafka.mtbProducerOutput.maxRequestSize' and 'batchSize' must not exceed"
+                    + " 2GB.");
+        }
+
+        final Map<String, Object> configs = new HashMap<>();
+        configs.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType);
+        configs.put(ProducerConfig.LINGER_MS_CONFIG, (int) linger.toMillis());
+        configs.put(ProducerConfig.BATCH_SIZE_CONFIG, (int) batchSize.toBytes());
+        configs.put(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, (int) maxRequestSize.toBytes());
+        configs.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, idempotence);
+        configs.put(ProducerConfig.ACKS_CONFIG, acks);
+        return configs;
+    }
+
+    /**
+     * @param partitionByPatient <code>true</code> to use {@link PatientPartitioner}
+     * @param keyEncoding        <code>json</code> or <code>binary</code>, see {@link MtbKey}
+     */
+    static Map<String, Object> keyConfigs(boolean partitionByPatient, String keyEncoding) {
+        final Map<String, Object> configs = new HashMap<>();
+        if (partitionByPatient) {
+            configs.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, PatientPartitioner.class);
+        }
+        switch (keyEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "json" -> {
+            }
+            case "binary" -> configs.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,
+                MtbKeySerializer.class);
+            default -> throw new IllegalStateException(
+                "'mtb2kafka.mtbProducerOutput.keyEncoding' must be 'json' or 'binary'.");
+        }
+        return configs;
+    }
+}
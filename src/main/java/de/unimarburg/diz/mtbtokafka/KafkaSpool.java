@@ -0,0 +1,524 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Disk backed spool for records Kafka did not accept. Records are appended to memory mapped
+ * segment files of <code>segmentSize</code> bytes and forced to disk before the append
+ * returns. A background thread replays spooled records in order to the output topic once the
+ * broker is reachable again; fully drained segments are deleted.
+ * <p>
+ * Record layout: <code>length | crc32 | key length | key | header count | (name length | name |
+ * value length | value)* | value</code>, the length is written last so a torn record is never
+ * read. Headers with a <code>null</code> value are stored with value length <code>-1</code>.
+ * Tombstones are stored with a negative key length of <code>-1 - key length</code>. A length
+ * of <code>-1</code> marks the end of a segment. The drained position is stored in the file
+ * <code>checkpoint</code> every 100 records and before a drained segment is deleted; on start,
+ * all records after it are replayed, hence a record may be sent twice after a crash.
+ */
+@Component
+@ConditionalOnProperty(value = "mtb2kafka.spool.enabled")
+public class KafkaSpool implements AutoCloseable {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final int CHECKPOINT_INTERVAL = 100;
+
+    private final Logger log = LoggerFactory.getLogger(KafkaSpool.class);
+
+    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final String topic;
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Duration sendTimeout;
+    private final Duration retryInterval;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment writeSegment;
+    private long readSegmentId;
+    private int readPosition;
+    private long pendingRecords;
+    private long pendingBytes;
+    private int uncheckpointed;
+
+    private final Counter appended;
+    private final Counter drained;
+    private final Thread drainer;
+    private volatile boolean closed;
+
+    @Autowired
+    public KafkaSpool(KafkaTemplate<String, String> kafkaTemplate,
+        @Value("${mtb2kafka.mtbProducerOutput.destination}") String topic,
+        @Value("${mtb2kafka.spool.directory:spool}") String directory,
+        @Value("${mtb2kafka.spool.segmentSize:64MB}") DataSize segmentSize,
+        @Value("${mtb2kafka.spool.maxSize:1GB}") DataSize maxSize,
+        @Value("${mtb2kafka.mtbProducerOutput.sendTimeout:PT30S}") Duration sendTimeout,
+        @Value("${mtb2kafka.spool.retryInterval:PT5S}") Duration retryInterval,
+        MeterRegistry meterRegistry) throws IOException {
+        if (segmentSize.toBytes() <= HEADER_SIZE * 2
+            || segmentSize.toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalStateException(
+                "'mtb2kafka.spool.segmentSize' must be between 17 bytes and 2GB.");
+        }
+        this.kafkaTemplate = kafkaTemplate;
+        this.topic = topic;
+        this.directory = Path.of(directory);
+        this.segmentSize = (int) segmentSize.toBytes();
+        this.maxSegments = (int) Math.max(1, maxSize.toBytes() / segmentSize.toBytes());
+        this.sendTimeout = sendTimeout;
+        this.retryInterval = retryInterval;
+
+        Files.createDirectories(this.directory);
+        recover();
+
+        this.appended = Counter.builder("mtb2kafka.spool.appended")
+            .description("records written to spool").register(meterRegistry);
+        this.drained = Counter.builder("mtb2kafka.spool.drained")
+            .description("spooled records sent to Kafka").register(meterRegistry);
+        Gauge.builder("mtb2kafka.spool.records", this, KafkaSpool::pendingRecords)
+            .description("records waiting in spool").register(meterRegistry);
+        Gauge.builder("mtb2kafka.spool.bytes", this, KafkaSpool::pendingBytes)
+            .description("bytes waiting in spool").register(meterRegistry);
+
+        this.drainer = new Thread(this::drain, "kafka-spool-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * Append record and force it to disk.
+     *
+     * @param value   record value, <code>null</code> for a tombstone
+     * @param headers record headers, sent along when the record is replayed
+     * @return <code>false</code> if the record does not fit into the spool
+     */
+    public synchronized boolean append(String key, String value, Header... headers) {
+        if (closed) {
+            return false;
+        }
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] valueBytes =
+            value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        final byte[][] headerNames = new byte[headers.length][];
+        int headersLength = 4;
+        for (int i = 0; i < headers.length; i++) {
+            headerNames[i] = headers[i].key().getBytes(StandardCharsets.UTF_8);
+            headersLength += 8 + headerNames[i].length
+                + (headers[i].value() == null ? 0 : headers[i].value().length);
+        }
+        final int length = 4 + keyBytes.length + headersLength + valueBytes.length;
+        // keep room for the end of segment marker
+        if (HEADER_SIZE + length + 4 > segmentSize) {
+            log.error("record of {} bytes exceeds spool segment size.", length);
+            return false;
+        }
+
+        try {
+            if (writeSegment.position + HEADER_SIZE + length + 4 > segmentSize) {
+                if (segments.size() >= maxSegments) {
+                    log.error("spool is full, {} records pending.", pendingRecords);
+                    return false;
+                }
+                writeSegment.buffer.putInt(writeSegment.position, END_OF_SEGMENT);
+                writeSegment.buffer.force(writeSegment.position, 4);
+                writeSegment = openSegment(writeSegment.id + 1);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create spool segment.", e);
+        }
+
+        final var buffer = writeSegment.buffer;
+        final int start = writeSegment.position;
+        final var crc = new CRC32();
+        buffer.position(start + HEADER_SIZE);
+        buffer.putInt(value == null ? -1 - keyBytes.length : keyBytes.length).put(keyBytes);
+        buffer.putInt(headers.length);
+        for (int i = 0; i < headers.length; i++) {
+            buffer.putInt(headerNames[i].length).put(headerNames[i]);
+            final byte[] headerValue = headers[i].value();
+            if (headerValue == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(headerValue.length).put(headerValue);
+            }
+        }
+        buffer.put(valueBytes);
+        crc.update(buffer.slice(start + HEADER_SIZE, length));
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.force(start + 4, HEADER_SIZE - 4 + length);
+        buffer.putInt(start, length);
+        buffer.force(start, 4);
+
+        writeSegment.position = start + HEADER_SIZE + length;
+        pendingRecords++;
+        pendingBytes += HEADER_SIZE + length;
+        appended.increment();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if records wait for replay. New records must be appended in
+     * that case to keep their order.
+     */
+    public synchronized boolean hasPending() {
+        return pendingRecords > 0;
+    }
+
+    public synchronized long pendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized long pendingBytes() {
+        return pendingBytes;
+    }
+
+    private void drain() {
+        while (!closed) {
+            final SpooledRecord next;
+            try {
+                next = awaitNext();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.error("could not read spool, retry in {}.", retryInterval, e);
+                if (!sleep(retryInterval)) {
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                kafkaTemplate.send(new ProducerRecord<>(topic, null, next.key(), next.value(),
+                        next.headers()))
+                    .get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.warn("Kafka not available, {} spooled records pending. Retry in {}.",
+                    pendingRecords(), retryInterval);
+                if (!sleep(retryInterval)) {
+                    return;
+                }
+                continue;
+            }
+            drained.increment();
+            commit(next);
+        }
+    }
+
+    private synchronized SpooledRecord awaitNext() throws InterruptedException {
+        while (!closed) {
+            final var segment = segments.get(readSegmentId);
+            final int length = readPosition + HEADER_SIZE <= segmentSize
+                ? segment.buffer.getInt(readPosition) : END_OF_SEGMENT;
+            if (length == END_OF_SEGMENT && segment != writeSegment) {
+                final int drainedPosition = readPosition;
+                readSegmentId = segments.higherKey(segment.id);
+                readPosition = 0;
+                // the checkpoint must not refer to a deleted segment after a crash
+                try {
+                    writeCheckpoint();
+                } catch (UncheckedIOException e) {
+                    readSegmentId = segment.id;
+                    readPosition = drainedPosition;
+                    throw e;
+                }
+                deleteSegment(segment);
+                continue;
+            }
+            if (length > 0 && (segment != writeSegment || readPosition < segment.position)) {
+                final var buffer = segment.buffer.duplicate();
+                buffer.position(readPosition + HEADER_SIZE);
+                final int keyLength = buffer.getInt();
+                final byte[] key = new byte[keyLength < 0 ? -1 - keyLength : keyLength];
+                buffer.get(key);
+                final var headers = new RecordHeaders();
+                final int headerCount = buffer.getInt();
+                for (int i = 0; i < headerCount; i++) {
+                    final byte[] name = new byte[buffer.getInt()];
+                    buffer.get(name);
+                    final int valueLength = buffer.getInt();
+                    final byte[] headerValue = valueLength < 0 ? null : new byte[valueLength];
+                    if (headerValue != null) {
+                        buffer.get(headerValue);
+                    }
+                    headers.add(new String(name, StandardCharsets.UTF_8), headerValue);
+                }
+                final byte[] value = new byte[readPosition + HEADER_SIZE + length
+                    - buffer.position()];
+                buffer.get(value);
+                return new SpooledRecord(new String(key, StandardCharsets.UTF_8),
+                    keyLength < 0 ? null : new String(value, StandardCharsets.UTF_8), headers,
+                    HEADER_SIZE + length);
+            }
+            wait();
+        }
+        throw new InterruptedException("spool closed");
+    }
+
+    private synchronized void commit(SpooledRecord record) {
+        readPosition += record.size();
+        pendingRecords--;
+        pendingBytes -= record.size();
+        if (pendingRecords == 0) {
+            log.info("spool drained.");
+        }
+        if (pendingRecords == 0 || ++uncheckpointed >= CHECKPOINT_INTERVAL) {
+            try {
+                writeCheckpoint();
+            } catch (UncheckedIOException e) {
+                log.error("could not write spool checkpoint.", e);
+            }
+        }
+    }
+
+    private boolean sleep(Duration duration) {
+        try {
+            Thread.sleep(Math.max(1, duration.toMillis()));
+            return !closed;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Open existing segments, skip records before the checkpoint and find the write position
+     * of the last segment. A record with invalid checksum ends its segment, since it was not
+     * acknowledged.
+     */
+    private void recover() throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                final var name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    final long id = Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, mapSegment(id));
+                }
+            }
+        }
+
+        final Path checkpoint = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            final var data = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            readSegmentId = data.getLong();
+            readPosition = data.getInt();
+        } else {
+            readSegmentId = segments.isEmpty() ? 0 : segments.firstKey();
+            readPosition = 0;
+        }
+        if (!segments.isEmpty() && !segments.containsKey(readSegmentId)) {
+            // checkpointed segment is gone, continue with the next one still on disk
+            final Long next = segments.ceilingKey(readSegmentId);
+            if (next != null) {
+                log.warn("spool checkpoint refers to missing segment {}, continuing with {}.",
+                    readSegmentId, next);
+                readSegmentId = next;
+                readPosition = 0;
+            }
+        }
+
+        final List<Segment> obsolete = new ArrayList<>(segments.headMap(readSegmentId).values());
+        for (Segment segment : obsolete) {
+            deleteSegment(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.put(readSegmentId, openSegmentFile(readSegmentId));
+            readPosition = 0;
+        }
+
+        for (Segment segment : segments.values()) {
+            int position = segment.id == readSegmentId ? readPosition : 0;
+            boolean counted = segment.id != readSegmentId;
+            int scan = 0;
+            while (scan + HEADER_SIZE <= segmentSize) {
+                final int length = segment.buffer.getInt(scan);
+                if (length <= 0 || scan + HEADER_SIZE + length > segmentSize
+                    || !checksumMatches(segment.buffer, scan, length)) {
+                    break;
+                }
+                if (!counted && scan == position) {
+                    counted = true;
+                }
+                if (counted) {
+                    pendingRecords++;
+                    pendingBytes += HEADER_SIZE + length;
+                }
+                scan += HEADER_SIZE + length;
+            }
+            segment.position = scan;
+        }
+
+        writeSegment = segments.lastEntry().getValue();
+        // invalidate torn tail, so it is not read after further appends
+        if (writeSegment.position + HEADER_SIZE <= segmentSize) {
+            writeSegment.buffer.putInt(writeSegment.position, 0);
+            writeSegment.buffer.force(writeSegment.position, 4);
+        }
+        for (Segment segment : segments.headMap(writeSegment.id).values()) {
+            if (segment.position + 4 <= segmentSize) {
+                segment.buffer.putInt(segment.position, END_OF_SEGMENT);
+            }
+        }
+        if (pendingRecords > 0) {
+            log.info("recovered spool with {} pending records.", pendingRecords);
+        }
+    }
+
+    private boolean checksumMatches(MappedByteBuffer buffer, int position, int length) {
+        final var crc = new CRC32();
+        crc.update(buffer.slice(position + HEADER_SIZE, length));
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        final var segment = openSegmentFile(id);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment openSegmentFile(long id) throws IOException {
+        final var segment = mapSegment(id);
+        // make sure the new file is visible in its directory after a crash
+        syncDirectory();
+        return segment;
+    }
+
+    private void syncDirectory() {
+        try (var dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            log.debug("could not sync spool directory", e);
+        }
+    }
+
+    private Segment mapSegment(long id) throws IOException {
+        final var file = directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                segmentSize));
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            log.warn("could not delete drained spool segment {}", segment.file, e);
+        }
+    }
+
+    private void writeCheckpoint() {
+        uncheckpointed = 0;
+        final Path checkpoint = directory.resolve(CHECKPOINT);
+        final Path temp = directory.resolve(CHECKPOINT + ".tmp");
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(12).putLong(readSegmentId).putInt(readPosition)
+                .flip());
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temp, checkpoint, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        syncDirectory();
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        drainer.interrupt();
+        try {
+            drainer.join(sendTimeout.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            writeCheckpoint();
+        }
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private int position;
+
+        private Segment(long id, Path file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private record SpooledRecord(String key, String value, Headers headers, int size) {
+
+    }
+}
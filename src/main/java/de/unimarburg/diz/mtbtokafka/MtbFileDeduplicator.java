@@ -0,0 +1,382 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.TextNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Detects resubmitted MTB files whose content did not change since they were last produced.
+ * <p>
+ * A 64-bit fingerprint is computed over the received file before pseudonymization. It ignores
+ * formatting and the order of object fields. The last produced fingerprint per record key is
+ * kept in a bounded index, least recently used keys are evicted first. Fingerprints are sent
+ * as record header {@value #FINGERPRINT_HEADER}, so the index can be rebuilt from the output
+ * topic on startup. Records sent via {@link KafkaSpool} carry no header and are not indexed
+ * on rebuild.
+ */
+@Component
+@ConditionalOnProperty(value = "mtb2kafka.dedup.enabled")
+public class MtbFileDeduplicator {
+
+    public static final String FINGERPRINT_HEADER = "mtb2kafka-fingerprint";
+
+    private static final long OBJECT_SEED = 0x9e3779b97f4a7c15L;
+    private static final long ARRAY_SEED = 0xc2b2ae3d27d4eb4fL;
+    private static final long STRING_SEED = 0x165667b19e3779f9L;
+    private static final long NUMBER_SEED = 0x27d4eb2f165667c5L;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Logger log = LoggerFactory.getLogger(MtbFileDeduplicator.class);
+
+    private final int maxSize;
+    private final Map<String, Long> index;
+    private final Counter unchanged;
+    private final Counter changed;
+    private final Thread rebuilder;
+    // keys changed while the index is rebuilt, their rebuilt state is outdated
+    private Set<String> touched;
+
+    @Autowired
+    public MtbFileDeduplicator(@Value("${mtb2kafka.dedup.maxSize:100000}") int maxSize,
+        @Value("${mtb2kafka.dedup.rebuild:false}") boolean rebuild,
+        @Value("${mtb2kafka.mtbProducerOutput.destination}") String topic,
+        Optional<ConsumerFactory<?, ?>> consumerFactory, MeterRegistry meterRegistry) {
+        if (maxSize < 1) {
+            throw new IllegalStateException(
+                "'mtb2kafka.dedup.maxSize' must be greater than zero.");
+        }
+        this.maxSize = maxSize;
+        this.index = newIndex(maxSize);
+
+        unchanged = Counter.builder("mtb2kafka.dedup.lookups").tag("result", "unchanged")
+            .description("fingerprint lookups of received MTB files").register(meterRegistry);
+        changed = Counter.builder("mtb2kafka.dedup.lookups").tag("result", "changed")
+            .description("fingerprint lookups of received MTB files").register(meterRegistry);
+        Gauge.builder("mtb2kafka.dedup.size", this, MtbFileDeduplicator::size)
+            .description("number of indexed record keys").register(meterRegistry);
+
+        if (rebuild) {
+            final var factory = consumerFactory.orElseThrow(() -> new IllegalStateException(
+                "'mtb2kafka.dedup.rebuild' requires a Kafka consumer configuration."));
+            touched = new HashSet<>();
+            rebuilder = new Thread(() -> rebuild(factory, topic), "mtb-dedup-rebuild");
+            rebuilder.setDaemon(true);
+            rebuilder.start();
+        } else {
+            rebuilder = null;
+        }
+    }
+
+    /**
+     * @param parser parser positioned before the MTB file
+     * @return fingerprint and original patient and episode ID of the MTB file
+     * @throws IOException if the MTB file is not valid JSON
+     */
+    public static Fingerprint fingerprint(JsonParser parser) throws IOException {
+        final JsonNode[] ids = new JsonNode[2];
+        final var token = parser.nextToken();
+        if (token != JsonToken.START_OBJECT) {
+            return new Fingerprint(hashValue(parser, token, -1, null), null, null);
+        }
+        long hash = OBJECT_SEED;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final int capture = "patient".equals(name) ? 0 : "episode".equals(name) ? 1 : -1;
+            final long value = hashValue(parser, parser.nextToken(), capture, ids);
+            hash += mix(hashString(name) ^ value * FNV_PRIME);
+        }
+        return new Fingerprint(mix(hash), ids[0], ids[1]);
+    }
+
+    /**
+     * Counts the lookup.
+     *
+     * @param key         record key of the MTB file
+     * @param fingerprint fingerprint of the MTB file
+     * @return <code>true</code> if the last MTB file produced with this key had the same
+     * fingerprint
+     */
+    public boolean isUnchanged(String key, long fingerprint) {
+        final Long last;
+        synchronized (this) {
+            last = index.get(key);
+        }
+        if (last != null && last == fingerprint) {
+            unchanged.increment();
+            return true;
+        }
+        changed.increment();
+        return false;
+    }
+
+    /**
+     * Remember fingerprint once Kafka accepted the MTB file.
+     */
+    public synchronized void accepted(String key, long fingerprint) {
+        index.put(key, fingerprint);
+        if (touched != null) {
+            touched.add(key);
+        }
+    }
+
+    /**
+     * Forget key once Kafka accepted its tombstone.
+     */
+    public synchronized void deleted(String key) {
+        index.remove(key);
+        if (touched != null) {
+            touched.add(key);
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return record header carrying fingerprint
+     */
+    public static Header header(long fingerprint) {
+        return new RecordHeader(FINGERPRINT_HEADER,
+            ByteBuffer.allocate(Long.BYTES).putLong(fingerprint).array());
+    }
+
+    private void rebuild(ConsumerFactory<?, ?> consumerFactory, String topic) {
+        final var properties = new Properties();
+        properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, MtbKeyDeserializer.class);
+        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+            ByteArrayDeserializer.class);
+        properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        try {
+            @SuppressWarnings("unchecked")
+            final var consumer = (Consumer<String, byte[]>) consumerFactory.createConsumer(
+                null, "mtb2kafka-dedup", null, properties);
+            try (consumer) {
+                rebuild(consumer, topic);
+            }
+        } catch (RuntimeException e) {
+            log.error("Rebuilding MTB file fingerprints from topic '{}' failed.", topic, e);
+            synchronized (this) {
+                touched = null;
+            }
+        }
+    }
+
+    /**
+     * Read topic from the beginning up to its current end and index the fingerprint headers.
+     * Keys produced or deleted meanwhile keep their current state.
+     */
+    void rebuild(Consumer<String, byte[]> consumer, String topic) {
+        final List<TopicPartition> partitions = consumer.partitionsFor(topic).stream()
+            .map(info -> new TopicPartition(topic, info.partition())).toList();
+        consumer.assign(partitions);
+        consumer.seekToBeginning(partitions);
+        final Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+
+        final Map<String, Long> rebuilt = newIndex(maxSize);
+        while (partitions.stream().anyMatch(p -> consumer.position(p) < endOffsets.get(p))) {
+            for (var consumerRecord : consumer.poll(Duration.ofSeconds(1))) {
+                final var header = consumerRecord.headers().lastHeader(FINGERPRINT_HEADER);
+                if (consumerRecord.key() == null) {
+                    continue;
+                }
+                if (consumerRecord.value() == null || header == null
+                    || header.value().length != Long.BYTES) {
+                    rebuilt.remove(consumerRecord.key());
+                } else {
+                    rebuilt.put(consumerRecord.key(), ByteBuffer.wrap(header.value()).getLong());
+                }
+            }
+        }
+
+        synchronized (this) {
+            // entries indexed since startup are more recent
+            final Map<String, Long> merged = newIndex(maxSize);
+            rebuilt.forEach((key, fingerprint) -> {
+                if (touched == null || !touched.contains(key)) {
+                    merged.put(key, fingerprint);
+                }
+            });
+            merged.putAll(index);
+            index.clear();
+            index.putAll(merged);
+            touched = null;
+        }
+        log.info("Rebuilt {} MTB file fingerprints from topic '{}'.", size(), topic);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (rebuilder != null) {
+            rebuilder.interrupt();
+        }
+    }
+
+    private static Map<String, Long> newIndex(int maxSize) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Objects are hashed as the sum of their field hashes, so field order does not matter.
+     * Array elements are hashed in order.
+     *
+     * @param capture <code>0</code> to capture <code>id</code> as patient ID, <code>1</code> as
+     *                episode ID, <code>-1</code> to capture nothing
+     */
+    private static long hashValue(JsonParser parser, JsonToken token, int capture,
+        JsonNode[] ids) throws IOException {
+        if (token == null) {
+            throw new JsonParseException(parser, "unexpected end of MTB file");
+        }
+        switch (token) {
+            case START_OBJECT -> {
+                long hash = OBJECT_SEED;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String name = parser.getCurrentName();
+                    final var valueToken = parser.nextToken();
+                    if (capture >= 0 && "id".equals(name)) {
+                        ids[capture] = idOf(parser, valueToken);
+                    }
+                    hash += mix(hashString(name) ^ hashValue(parser, valueToken, -1, null)
+                        * FNV_PRIME);
+                }
+                return mix(hash);
+            }
+            case START_ARRAY -> {
+                long hash = ARRAY_SEED;
+                JsonToken element;
+                while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    hash = mix(hash * FNV_PRIME + hashValue(parser, element, -1, null));
+                }
+                return hash;
+            }
+            case VALUE_STRING -> {
+                return mix(STRING_SEED ^ hashChars(parser.getTextCharacters(),
+                    parser.getTextOffset(), parser.getTextLength()));
+            }
+            case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> {
+                // canonical decimal text, same hash for 1 and 1.0 but exact beyond double
+                final var number = parser.getDecimalValue().stripTrailingZeros();
+                return mix(NUMBER_SEED ^ hashString(number.toString()));
+            }
+            case VALUE_TRUE -> {
+                return 1;
+            }
+            case VALUE_FALSE -> {
+                return 2;
+            }
+            case VALUE_NULL -> {
+                return 3;
+            }
+            default -> throw new JsonParseException(parser, "unexpected token " + token);
+        }
+    }
+
+    /**
+     * @return ID as it is read into a {@link JsonNode}, <code>null</code> if it is no string or
+     * number
+     */
+    private static JsonNode idOf(JsonParser parser, JsonToken token) throws IOException {
+        return switch (token) {
+            case VALUE_STRING -> TextNode.valueOf(parser.getText());
+            case VALUE_NUMBER_INT -> JsonNodeFactory.instance.numberNode(
+                parser.getBigIntegerValue());
+            case VALUE_NUMBER_FLOAT -> JsonNodeFactory.instance.numberNode(
+                parser.getDoubleValue());
+            default -> null;
+        };
+    }
+
+    private static long hashString(String value) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hashChars(char[] chars, int offset, int length) {
+        long hash = FNV_OFFSET;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ chars[i]) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Finalization step of MurmurHash3.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @param hash      content fingerprint
+     * @param patientId original patient ID, <code>null</code> if missing
+     * @param episodeId original episode ID, <code>null</code> if missing
+     */
+    public record Fingerprint(long hash, JsonNode patientId, JsonNode episodeId) {
+
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Record key of MTB files, <code>{"pid": &lt;patient ID&gt;, "eid":&lt;episode ID&gt;}</code>
+ * with JSON values of (pseudonymized) patient and episode ID.
+ * <p>
+ * The compact binary encoding is <code>0x01</code>, a flag byte, the varint length of the
+ * patient ID followed by patient and episode ID in UTF-8. String IDs without escapes are
+ * stored without quotes, flagged by bit 0 (patient) and bit 1 (episode). Keys of other formats
+ * are encoded as UTF-8 text, which never starts with <code>0x01</code>.
+ */
+public final class MtbKey {
+
+    private static final String PREFIX = "{\"pid\": ";
+    private static final String SEPARATOR = ", \"eid\":";
+    private static final String SUFFIX = "}";
+    private static final byte BINARY = 0x01;
+    private static final int PATIENT_UNQUOTED = 1;
+    private static final int EPISODE_UNQUOTED = 2;
+
+    private MtbKey() {
+    }
+
+    /**
+     * @param patientId JSON value of patient ID
+     * @param episodeId JSON value of episode ID
+     * @return record key
+     */
+    public static String format(String patientId, String episodeId) {
+        return PREFIX + patientId + SEPARATOR + episodeId + SUFFIX;
+    }
+
+    /**
+     * @param key record key
+     * @return JSON value of patient ID, <code>null</code> if key is not an MTB file key
+     */
+    public static String patientId(String key) {
+        final int end = patientIdEnd(key);
+        return end < 0 ? null : key.substring(PREFIX.length(), end);
+    }
+
+    /**
+     * @param key record key
+     * @return compact binary encoding of MTB file keys, UTF-8 text of other keys
+     */
+    public static byte[] encode(String key) {
+        final int end = patientIdEnd(key);
+        if (end < 0) {
+            return key.getBytes(StandardCharsets.UTF_8);
+        }
+        final var patientId = key.substring(PREFIX.length(), end);
+        final var episodeId = key.substring(end + SEPARATOR.length(),
+            key.length() - SUFFIX.length());
+        final int flags = (isPlainString(patientId) ? PATIENT_UNQUOTED : 0)
+            | (isPlainString(episodeId) ? EPISODE_UNQUOTED : 0);
+        final byte[] pid = unquote(patientId, (flags & PATIENT_UNQUOTED) != 0)
+            .getBytes(StandardCharsets.UTF_8);
+        final byte[] eid = unquote(episodeId, (flags & EPISODE_UNQUOTED) != 0)
+            .getBytes(StandardCharsets.UTF_8);
+
+        final var out = new ByteArrayOutputStream(pid.length + eid.length + 7);
+        out.write(BINARY);
+        out.write(flags);
+        for (int length = pid.length; ; length >>>= 7) {
+            if (length < 0x80) {
+                out.write(length);
+                break;
+            }
+            out.write(length & 0x7f | 0x80);
+        }
+        out.writeBytes(pid);
+        out.writeBytes(eid);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param data encoded key
+     * @return record key
+     */
+    public static String decode(byte[] data) {
+        if (data.length == 0 || data[0] != BINARY) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        final int flags = data[1];
+        int position = 2;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = data[position++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        final var pid = new String(data, position, length, StandardCharsets.UTF_8);
+        final var eid = new String(data, position + length, data.length - position - length,
+            StandardCharsets.UTF_8);
+        return format((flags & PATIENT_UNQUOTED) != 0 ? '"' + pid + '"' : pid,
+            (flags & EPISODE_UNQUOTED) != 0 ? '"' + eid + '"' : eid);
+    }
+
+    /**
+     * @return index after the patient ID value, <code>-1</code> if key is not an MTB file key
+     */
+    private static int patientIdEnd(String key) {
+        if (!key.startsWith(PREFIX) || !key.endsWith(SUFFIX)) {
+            return -1;
+        }
+        int end = PREFIX.length();
+        if (end < key.length() && key.charAt(end) == '"') {
+            // skip string, including escaped quotes
+            end++;
+            while (end < key.length() && key.charAt(end) != '"') {
+                end += key.charAt(end) == '\\' ? 2 : 1;
+            }
+            end++;
+        } else {
+            end = key.indexOf(',', end);
+        }
+        return end > 0 && key.startsWith(SEPARATOR, end) ? end : -1;
+    }
+
+    private static boolean isPlainString(String value) {
+        return value.length() >= 2 && value.charAt(0) == '"'
+            && value.charAt(value.length() - 1) == '"' && value.indexOf('\\') < 0;
+    }
+
+    private static String unquote(String value, boolean quoted) {
+        return quoted ? value.substring(1, value.length() - 1) : value;
+    }
+}
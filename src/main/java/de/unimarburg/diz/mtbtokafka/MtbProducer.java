@@ -20,12 +20,32 @@
 
 package de.unimarburg.diz.mtbtokafka;
 
+import de.unimarburg.diz.mtbtokafka.exceptions.KafkaProduceFailed;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.observation.transport.SenderContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 
 
 @Configuration
@@ -34,26 +54,362 @@ public class MtbProducer {
     protected final KafkaTemplate<String, String> kafkaTemplate;
     Logger log = LoggerFactory.getLogger(MtbProducer.class);
 
+    private final boolean async;
+    private final Duration sendTimeout;
+    private final KafkaSpool spool;
+    private final ClaimCheck claimCheck;
+    private final MtbValueFormat valueFormat;
+    private final KafkaTemplate<String, byte[]> binaryTemplate;
+    private final long maxRequestSize;
+    private final ObservationRegistry observationRegistry;
+
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    /**
+     * @param valueFormat         format of produced values, binary formats are produced by a
+     *                            template derived from <code>kafkaTemplate</code>
+     * @param observationRegistry observes sends as <code>mtb2kafka.kafka.send</code>, which
+     *                            propagates the trace context in the record header
+     *                            <code>traceparent</code>
+     */
+    @Autowired
     public MtbProducer(KafkaTemplate<String, String> kafkaTemplate,
-        @Value("${mtb2kafka.mtbProducerOutput.destination}") String defaultTopicName) {
+        @Value("${mtb2kafka.mtbProducerOutput.destination}") String defaultTopicName,
+        @Value("${mtb2kafka.mtbProducerOutput.async:false}") boolean async,
+        @Value("${mtb2kafka.mtbProducerOutput.sendTimeout:PT30S}") Duration sendTimeout,
+        Optional<KafkaSpool> spool, Optional<ClaimCheck> claimCheck,
+        Optional<MtbValueFormat> valueFormat,
+        Optional<ObservationRegistry> observationRegistry) {
+        final var binaryFormat = valueFormat.filter(MtbValueFormat::isBinary).orElse(null);
+        if (binaryFormat != null && spool.isPresent()) {
+            throw new IllegalStateException("'mtb2kafka.spool' requires"
+                + " 'mtb2kafka.mtbProducerOutput.format' json.");
+        }
 
         this.kafkaTemplate = kafkaTemplate;
+        this.observationRegistry = observationRegistry.orElse(ObservationRegistry.NOOP);
+        this.valueFormat = binaryFormat;
+        this.binaryTemplate = binaryFormat != null ? binaryFormat.template(kafkaTemplate) : null;
+        this.async = async;
+        this.sendTimeout = sendTimeout;
+        this.spool = spool.orElse(null);
+        this.claimCheck = claimCheck.orElse(null);
+        this.maxRequestSize = maxRequestSize(kafkaTemplate);
+        if (this.claimCheck != null && this.claimCheck.threshold() < maxRequestSize) {
+            log.info("MTB files larger than {} bytes will be stored in the blob store.",
+                this.claimCheck.threshold());
+        } else {
+            log.info("MTB files larger than {} bytes will be rejected.", maxRequestSize);
+        }
 
         kafkaTemplate.setDefaultTopic(defaultTopicName);
+        if (this.binaryTemplate != null) {
+            this.binaryTemplate.setDefaultTopic(defaultTopicName);
+            log.info("MTB files will be produced as {}.", binaryFormat.format());
+        }
+    }
+
+    /**
+     * @return <code>true</code> if REST requests should not wait for the broker acknowledgement
+     * on a servlet thread but complete once {@link #sendToKafkaAsync(String, String)} finished.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @param data serialized MTB file
+     * @return <code>true</code> if data alone exceeds the producer <code>max.request.size</code>
+     * and would be rejected by Kafka
+     */
+    public boolean exceedsMaxRequestSize(String data) {
+        if (isClaimChecked()) {
+            return false;
+        }
+        final long chars = data.length();
+        if (chars > maxRequestSize) {
+            return true;
+        }
+        // at most three UTF-8 bytes per char
+        if (chars * 3 <= maxRequestSize) {
+            return false;
+        }
+        return exceedsMaxRequestSize(utf8Length(data));
     }
 
+    /**
+     * @param bytes size of serialized MTB file
+     * @return <code>true</code> if data of this size would be rejected by Kafka
+     */
+    public boolean exceedsMaxRequestSize(long bytes) {
+        return bytes > maxRequestSize && !isClaimChecked();
+    }
+
+    /**
+     * @return <code>true</code> if files too large for Kafka are stored in the blob store
+     */
+    private boolean isClaimChecked() {
+        return claimCheck != null && claimCheck.threshold() < maxRequestSize;
+    }
+
+    /**
+     * Send data and wait for the broker acknowledgement. If a {@link KafkaSpool} is enabled,
+     * records Kafka did not accept are spooled instead; as long as spooled records wait for
+     * replay, new records are spooled as well to keep their order. If a {@link ClaimCheck} is
+     * enabled, large data is replaced by its reference before.
+     */
     public boolean sendToKafka(String key, String data)
         throws InterruptedException, ExecutionException {
-        var result = kafkaTemplate.sendDefault(key, data);
+        return sendToKafka(key, data, NO_HEADERS);
+    }
 
-        if (result.get() != null) {
-            log.debug("stored msg : " + data);
-        } else {
-            log.error("failed! send data: " + data);
-            return false;
+    /**
+     * Same as {@link #sendToKafka(String, String)} with additional record headers.
+     */
+    public boolean sendToKafka(String key, String data, Header... headers)
+        throws InterruptedException, ExecutionException {
+        final ClaimCheck.Reference reference;
+        try {
+            reference = claimCheck(data);
+        } catch (IOException e) {
+            throw new ExecutionException("failed to store MTB file in blob store", e);
+        }
+        if (reference != null) {
+            return sendToKafka(key, reference.value(), withHeader(headers, reference.header()));
+        }
+        if (spool != null && spool.hasPending()) {
+            return spool.append(key, data, headers);
+        }
+
+        var result = send(key, data, headers);
+
+        try {
+            if (result.get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS) != null) {
+                log.debug("stored msg : " + data);
+            } else {
+                log.error("failed! send data: " + data);
+                return spool(key, data, headers);
+            }
+        } catch (TimeoutException e) {
+            log.error("no broker acknowledgement within {}. send data: {}", sendTimeout, data);
+            return spool(key, data, headers);
+        } catch (ExecutionException e) {
+            if (spool == null) {
+                throw e;
+            }
+            log.error("failed! send data: " + data, e);
+            return spool(key, data, headers);
         }
 
         return true;
     }
 
+    /**
+     * Send data in the configured binary {@link MtbValueFormat} and wait for the broker
+     * acknowledgement.
+     *
+     * @return <code>false</code> if there was no acknowledgement within the send timeout
+     */
+    public boolean sendToKafka(String key, byte[] data, Header... headers)
+        throws InterruptedException, ExecutionException {
+        final ClaimCheck.Reference reference;
+        try {
+            reference = claimCheck(data);
+        } catch (IOException e) {
+            throw new ExecutionException("failed to store MTB file in blob store", e);
+        }
+        if (reference != null) {
+            return sendToKafka(key, reference.value(), withHeader(headers, reference.header()));
+        }
+
+        try {
+            return sendBinary(key, data, withHeader(headers, valueFormat.header()))
+                .get(sendTimeout.toMillis(), TimeUnit.MILLISECONDS) != null;
+        } catch (TimeoutException e) {
+            log.error("no broker acknowledgement within {}. key: {}", sendTimeout, key);
+            return false;
+        }
+    }
+
+    /**
+     * Send data without blocking the calling thread.
+     *
+     * @param data record value, <code>null</code> produces a tombstone
+     * @return future completing with <code>true</code> once the broker acknowledged the record,
+     * or exceptionally with {@link KafkaProduceFailed} if sending failed or timed out.
+     */
+    public CompletableFuture<Boolean> sendToKafkaAsync(String key, String data) {
+        return sendToKafkaAsync(key, data, NO_HEADERS);
+    }
+
+    /**
+     * Same as {@link #sendToKafkaAsync(String, String)} with additional record headers.
+     */
+    public CompletableFuture<Boolean> sendToKafkaAsync(String key, String data,
+        Header... headers) {
+        final ClaimCheck.Reference reference;
+        try {
+            reference = claimCheck(data);
+        } catch (IOException e) {
+            log.error("failed to store MTB file in blob store", e);
+            return CompletableFuture.failedFuture(new CompletionException(
+                new KafkaProduceFailed("blob store not available", e)));
+        }
+        if (reference != null) {
+            return sendToKafkaAsync(key, reference.value(),
+                withHeader(headers, reference.header()));
+        }
+        if (spool != null && spool.hasPending()) {
+            return CompletableFuture.completedFuture(spool.append(key, data, headers));
+        }
+
+        return send(key, data, headers)
+            .orTimeout(sendTimeout.toMillis(), TimeUnit.MILLISECONDS)
+            .handle((result, e) -> {
+                if (e != null) {
+                    log.error("failed! send data: " + data, e);
+                    if (spool != null && spool.append(key, data, headers)) {
+                        return true;
+                    }
+                    throw new CompletionException(
+                        new KafkaProduceFailed("Kafka processing failed", e));
+                }
+                log.debug("stored msg : " + data);
+                return true;
+            });
+    }
+
+    /**
+     * Same as {@link #sendToKafkaAsync(String, String)} with data in the configured binary
+     * {@link MtbValueFormat}.
+     */
+    public CompletableFuture<Boolean> sendToKafkaAsync(String key, byte[] data,
+        Header... headers) {
+        final ClaimCheck.Reference reference;
+        try {
+            reference = claimCheck(data);
+        } catch (IOException e) {
+            log.error("failed to store MTB file in blob store", e);
+            return CompletableFuture.failedFuture(new CompletionException(
+                new KafkaProduceFailed("blob store not available", e)));
+        }
+        if (reference != null) {
+            return sendToKafkaAsync(key, reference.value(),
+                withHeader(headers, reference.header()));
+        }
+
+        return sendBinary(key, data, withHeader(headers, valueFormat.header()))
+            .orTimeout(sendTimeout.toMillis(), TimeUnit.MILLISECONDS)
+            .handle((result, e) -> {
+                if (e != null) {
+                    log.error("failed! send binary data with key: " + key, e);
+                    throw new CompletionException(
+                        new KafkaProduceFailed("Kafka processing failed", e));
+                }
+                return true;
+            });
+    }
+
+    private CompletableFuture<?> send(String key, String data, Header[] headers) {
+        // keep all records of a key in one producer, and so in order
+        if (binaryTemplate != null) {
+            return sendBinary(key, data == null ? null : data.getBytes(StandardCharsets.UTF_8),
+                headers);
+        }
+        if (headers.length == 0 && observationRegistry.isNoop()) {
+            return kafkaTemplate.sendDefault(key, data);
+        }
+        return traced(kafkaTemplate, key, data, headers);
+    }
+
+    private CompletableFuture<SendResult<String, byte[]>> sendBinary(String key, byte[] data,
+        Header[] headers) {
+        if (binaryTemplate == null) {
+            throw new IllegalStateException("no binary value format configured");
+        }
+        return traced(binaryTemplate, key, data, headers);
+    }
+
+    /**
+     * Send a record to the default topic of template, observed until the broker acknowledged
+     * it. The trace context is added as record header.
+     */
+    private <V> CompletableFuture<SendResult<String, V>> traced(KafkaTemplate<String, V> template,
+        String key, V data, Header[] headers) {
+        final var topic = template.getDefaultTopic();
+        final Headers recordHeaders = new RecordHeaders(headers);
+        final var observation = Observation.createNotStarted("mtb2kafka.kafka.send", () -> {
+                final var context = new SenderContext<Headers>((carrier, name, value) ->
+                    carrier.remove(name).add(name, value.getBytes(StandardCharsets.UTF_8)));
+                context.setCarrier(recordHeaders);
+                return context;
+            }, observationRegistry)
+            .contextualName(topic + " send")
+            .lowCardinalityKeyValue("topic", topic)
+            .start();
+
+        final CompletableFuture<SendResult<String, V>> result;
+        try {
+            result = template.send(new ProducerRecord<>(topic, null, key, data, recordHeaders));
+        } catch (RuntimeException e) {
+            observation.error(e);
+            observation.stop();
+            throw e;
+        }
+        return result.whenComplete((sent, e) -> {
+            if (e != null) {
+                observation.error(e);
+            }
+            observation.stop();
+        });
+    }
+
+    private ClaimCheck.Reference claimCheck(String data) throws IOException {
+        if (claimCheck == null || data == null) {
+            return null;
+        }
+        return claimCheck.check(data);
+    }
+
+    private ClaimCheck.Reference claimCheck(byte[] data) throws IOException {
+        if (claimCheck == null || data == null) {
+            return null;
+        }
+        return claimCheck.check(data, valueFormat.fileExtension());
+    }
+
+    private static Header[] withHeader(Header[] headers, Header header) {
+        final var result = Arrays.copyOf(headers, headers.length + 1);
+        result[headers.length] = header;
+        return result;
+    }
+
+    private boolean spool(String key, String data, Header[] headers) {
+        if (spool == null) {
+            return false;
+        }
+        return spool.append(key, data, headers);
+    }
+
+    private static long maxRequestSize(KafkaTemplate<String, String> kafkaTemplate) {
+        final var producerFactory = kafkaTemplate.getProducerFactory();
+        if (producerFactory == null) {
+            return Long.MAX_VALUE;
+        }
+        final Object configured = producerFactory.getConfigurationProperties()
+            .get(ProducerConfig.MAX_REQUEST_SIZE_CONFIG);
+        return configured == null ? 1024 * 1024
+            : Long.parseLong(String.valueOf(configured));
+    }
+
+    static long utf8Length(String data) {
+        long length = data.length();
+        for (int i = 0; i < data.length(); i++) {
+            final char c = data.charAt(i);
+            if (c >= 0x80) {
+                length += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+            }
+        }
+        return length;
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.networknt.schema.JsonSchema;
+import com.networknt.schema.JsonSchemaFactory;
+import com.networknt.schema.SpecVersion.VersionFlag;
+import com.networknt.schema.SpecVersionDetector;
+import com.networknt.schema.ValidationMessage;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid.Violation;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Validates MTB files against a JSON schema before any gPas request. The schema is compiled
+ * once at startup by the networknt json-schema-validator; its draft is taken from
+ * <code>$schema</code>, draft-07 if not declared.
+ */
+@Component
+@ConditionalOnProperty("mtb2kafka.validation.enabled")
+public class MtbSchemaValidator {
+
+    private final Logger log = LoggerFactory.getLogger(MtbSchemaValidator.class);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final JsonSchema schema;
+    private final int maxViolations;
+    private final MeterRegistry meterRegistry;
+    /**
+     * Violations per rule and schema path, both bounded by the schema - unlike the path of the
+     * invalid value, which contains array indexes.
+     */
+    private final Map<RuleLocation, Counter> violationCounters = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MtbSchemaValidator(
+        @Value("${mtb2kafka.validation.schema:classpath:mtbfile.schema.json}") Resource schema,
+        @Value("${mtb2kafka.validation.maxViolations:20}") int maxViolations,
+        MeterRegistry meterRegistry) throws IOException {
+        this(read(schema), maxViolations, meterRegistry);
+        log.info("MTB files are validated against schema '{}'.", schema.getDescription());
+    }
+
+    MtbSchemaValidator(JsonNode schema, int maxViolations, MeterRegistry meterRegistry) {
+        final var version = SpecVersionDetector.detectOptionalVersion(schema)
+            .orElse(VersionFlag.V7);
+        this.schema = JsonSchemaFactory.getInstance(version).getSchema(schema);
+        this.schema.initializeValidators();
+        this.maxViolations = Math.max(1, maxViolations);
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Validation needs the full tree of the MTB file, so streaming mode parses the file twice if
+     * validation is enabled.
+     *
+     * @param parser parser of an MTB file, before its first token
+     * @throws MtbFileInvalid if the MTB file does not match the schema
+     * @throws IOException    if the MTB file is invalid JSON
+     */
+    public void validate(JsonParser parser) throws IOException {
+        final JsonNode mtbFile = objectMapper.readTree(parser);
+        validate(mtbFile != null ? mtbFile : NullNode.getInstance());
+    }
+
+    /**
+     * @param mtbFile MTB file
+     * @throws MtbFileInvalid if the MTB file does not match the schema
+     */
+    public void validate(JsonNode mtbFile) {
+        final var messages = schema.validate(mtbFile);
+        if (messages.isEmpty()) {
+            return;
+        }
+        final List<Violation> violations = messages.stream().limit(maxViolations)
+            .map(MtbSchemaValidator::violation).toList();
+        for (var violation : violations) {
+            violationCounters.computeIfAbsent(
+                new RuleLocation(violation.rule(), violation.location()),
+                key -> Counter.builder("mtb2kafka.validation.violations")
+                    .description("MTB file schema violations")
+                    .tag("rule", key.rule()).tag("schema.path", key.schemaPath())
+                    .register(meterRegistry)).increment();
+        }
+        throw new MtbFileInvalid("MTB file does not match schema, " + violations.size()
+            + (messages.size() > violations.size() ? " or more" : "") + " violations",
+            violations);
+    }
+
+    private static Violation violation(ValidationMessage message) {
+        return new Violation(message.getPath(), message.getType(), message.getSchemaPath(),
+            message.getMessage());
+    }
+
+    private record RuleLocation(String rule, String schemaPath) {
+
+    }
+
+    private static JsonNode read(Resource schema) throws IOException {
+        try (InputStream in = schema.getInputStream()) {
+            return new ObjectMapper().readTree(in);
+        }
+    }
+}
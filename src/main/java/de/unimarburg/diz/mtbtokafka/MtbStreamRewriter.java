@@ -0,0 +1,315 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import de.unimarburg.diz.mtbtokafka.IdHasher.Action;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Rewrites an MTB file token by token instead of materializing a <code>JsonNode</code> tree.
+ * All tokens are copied from parser to generator, only <code>patient.id</code> is replaced by
+ * its pseudonym and, if an {@link IdHasher} is given, IDs matching its rules are hashed or
+ * replaced by the patient pseudonym. Patient and episode ID needed for the record key are
+ * captured in the same pass.
+ */
+public class MtbStreamRewriter {
+
+    private static final String PATIENT = "patient";
+    private static final String EPISODE = "episode";
+    private static final String ID = "id";
+
+    private final JsonFactory jsonFactory;
+    private final IdHasher idHasher;
+
+    public MtbStreamRewriter(JsonFactory jsonFactory) {
+        this(jsonFactory, null);
+    }
+
+    /**
+     * @param idHasher rules for secondary IDs, <code>null</code> to keep them
+     */
+    public MtbStreamRewriter(JsonFactory jsonFactory, IdHasher idHasher) {
+        this.jsonFactory = jsonFactory;
+        this.idHasher = idHasher;
+    }
+
+    /**
+     * @param data             MTB file
+     * @param patientIdRewriter replaces original patient ID, <code>null</code> to keep it
+     * @return rewritten MTB file with JSON values of patient and episode ID
+     * @throws JacksonException         if input is invalid json
+     * @throws IllegalArgumentException if patient or episode is missing, or patient ID is
+     *                                  missing although it is to be replaced
+     */
+    public Result rewrite(String data, UnaryOperator<String> patientIdRewriter)
+        throws JacksonException {
+        return rewrite(() -> jsonFactory.createParser(data), data.length(), patientIdRewriter);
+    }
+
+    /**
+     * Same as {@link #rewrite(String, UnaryOperator)} with UTF-8 encoded input.
+     */
+    public Result rewrite(byte[] data, UnaryOperator<String> patientIdRewriter)
+        throws JacksonException {
+        return rewrite(() -> jsonFactory.createParser(data), data.length, patientIdRewriter);
+    }
+
+    /**
+     * Same as {@link #rewrite(String, UnaryOperator)}, writing the MTB file in a binary format
+     * instead of JSON text.
+     *
+     * @param valueFormat format of the rewritten MTB file
+     */
+    public BinaryResult rewrite(String data, UnaryOperator<String> patientIdRewriter,
+        MtbValueFormat valueFormat) throws JacksonException {
+        return rewrite(() -> jsonFactory.createParser(data), data.length(), patientIdRewriter,
+            valueFormat);
+    }
+
+    /**
+     * Same as {@link #rewrite(String, UnaryOperator, MtbValueFormat)} with UTF-8 encoded
+     * input.
+     */
+    public BinaryResult rewrite(byte[] data, UnaryOperator<String> patientIdRewriter,
+        MtbValueFormat valueFormat) throws JacksonException {
+        return rewrite(() -> jsonFactory.createParser(data), data.length, patientIdRewriter,
+            valueFormat);
+    }
+
+    private Result rewrite(ParserSource input, int length,
+        UnaryOperator<String> patientIdRewriter) throws JacksonException {
+        final var writer = new StringWriter(length);
+        try (JsonParser parser = input.open();
+            JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+            final var ids = rewrite(parser, generator, patientIdRewriter);
+            generator.flush();
+            return new Result(ids.patientId, ids.episodeId, writer.toString());
+        } catch (JacksonException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private BinaryResult rewrite(ParserSource input, int length,
+        UnaryOperator<String> patientIdRewriter, MtbValueFormat valueFormat)
+        throws JacksonException {
+        final var out = new ByteArrayOutputStream(length / 2);
+        try (JsonParser parser = input.open();
+            JsonGenerator generator = valueFormat.createGenerator(out)) {
+            final var ids = rewrite(parser, generator, patientIdRewriter);
+            generator.flush();
+            return new BinaryResult(ids.patientId, ids.episodeId, out.toByteArray());
+        } catch (JacksonException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private KeyIds rewrite(JsonParser parser, JsonGenerator generator,
+        UnaryOperator<String> patientIdRewriter) throws IOException {
+
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException(
+                "patient and episode id must be provided. rejecting current data!");
+        }
+        generator.copyCurrentEvent(parser);
+
+        // patient references usually repeat the patient ID - resolve each one only once
+        final Map<String, String> pseudonyms = new HashMap<>();
+        final UnaryOperator<String> pseudonymOf = patientIdRewriter == null ? null
+            : original -> pseudonyms.computeIfAbsent(original, patientIdRewriter);
+        // rule state of each open object or array
+        final Deque<IdHasher.State> ruleStates = new ArrayDeque<>();
+        if (idHasher != null) {
+            ruleStates.push(idHasher.root());
+        }
+
+        final var ids = new KeyIds();
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.FIELD_NAME) {
+                generator.copyCurrentEvent(parser);
+                continue;
+            }
+            if (token.isStructEnd()) {
+                generator.copyCurrentEvent(parser);
+                if (parser.getParsingContext().inRoot()) {
+                    break;
+                }
+                if (idHasher != null) {
+                    ruleStates.pop();
+                }
+                continue;
+            }
+
+            final var context = token.isStructStart() ? parser.getParsingContext().getParent()
+                : parser.getParsingContext();
+            final var ruleState = idHasher == null ? null : context.inArray()
+                ? ruleStates.peek().element() : ruleStates.peek().field(context.getCurrentName());
+            if (token.isStructStart()) {
+                if (idHasher != null) {
+                    ruleStates.push(ruleState);
+                }
+            } else if (ruleState != null && ruleState.action() != Action.NONE
+                && isIdValue(token)) {
+                final var replacement = replace(ruleState.action(), idText(parser, token),
+                    pseudonymOf);
+                if (replacement != null) {
+                    generator.writeString(replacement);
+                    if (isNestedField(context, EPISODE, ID)) {
+                        ids.episodeId = quote(replacement);
+                    }
+                    continue;
+                }
+            }
+
+            if (isTopLevelField(context, PATIENT)) {
+                ids.hasPatient = token != JsonToken.VALUE_NULL;
+            } else if (isTopLevelField(context, EPISODE)) {
+                ids.hasEpisode = token != JsonToken.VALUE_NULL;
+            } else if (isNestedField(context, PATIENT, ID)) {
+                if (pseudonymOf != null && !isIdValue(token)) {
+                    throw new IllegalArgumentException(
+                        "patient and episode id must be provided. rejecting current data!");
+                }
+                if (pseudonymOf != null) {
+                    final var pseudonym = pseudonymOf.apply(idText(parser, token));
+                    generator.writeString(pseudonym);
+                    ids.patientId = quote(pseudonym);
+                    continue;
+                }
+                ids.patientId = toKeyValue(parser, token);
+            } else if (isNestedField(context, EPISODE, ID)) {
+                ids.episodeId = toKeyValue(parser, token);
+            }
+
+            generator.copyCurrentEvent(parser);
+        }
+
+        if (!ids.hasPatient || !ids.hasEpisode || pseudonymOf != null && ids.patientId == null) {
+            throw new IllegalArgumentException(
+                "patient and episode id must be provided. rejecting current data!");
+        }
+        return ids;
+    }
+
+    private String replace(Action action, String original, UnaryOperator<String> pseudonymOf) {
+        return switch (action) {
+            case HASH -> idHasher.hash(original);
+            case PATIENT -> pseudonymOf == null ? null : pseudonymOf.apply(original);
+            case NONE -> null;
+        };
+    }
+
+    private static boolean isTopLevelField(JsonStreamContext context, String name) {
+        return context.inObject() && name.equals(context.getCurrentName())
+            && context.getParent().inRoot();
+    }
+
+    private static boolean isNestedField(JsonStreamContext context, String parent,
+        String name) {
+        return context.inObject() && name.equals(context.getCurrentName())
+            && isTopLevelField(context.getParent(), parent);
+    }
+
+    private static boolean isIdValue(JsonToken token) {
+        return token == JsonToken.VALUE_STRING || token.isNumeric();
+    }
+
+    /**
+     * @return text of an ID value, numbers formatted like the node
+     * <code>ObjectMapper.readTree</code> creates for them, e.g. <code>1e2</code> as
+     * <code>100.0</code>
+     */
+    private static String idText(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getNumberValue().toString();
+        } else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+            return DoubleNode.valueOf(parser.getDoubleValue()).asText();
+        }
+        return parser.getText();
+    }
+
+    private static String toKeyValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_STRING) {
+            return quote(parser.getText());
+        } else if (token.isNumeric()) {
+            return idText(parser, token);
+        } else if (token.isScalarValue()) {
+            return parser.getText();
+        }
+        throw new IllegalArgumentException(
+            "patient and episode id must be provided. rejecting current data!");
+    }
+
+    private static String quote(String value) {
+        return '"' + new String(JsonStringEncoder.getInstance().quoteAsString(value)) + '"';
+    }
+
+    /**
+     * @param patientId JSON value of (pseudonymized) patient ID, <code>null</code> if missing
+     * @param episodeId JSON value of episode ID, <code>null</code> if missing
+     * @param json      rewritten MTB file
+     */
+    public record Result(String patientId, String episodeId, String json) {
+
+    }
+
+    /**
+     * @param patientId JSON value of (pseudonymized) patient ID, <code>null</code> if missing
+     * @param episodeId JSON value of episode ID, <code>null</code> if missing
+     * @param value     rewritten MTB file in binary format
+     */
+    public record BinaryResult(String patientId, String episodeId, byte[] value) {
+
+    }
+
+    private interface ParserSource {
+
+        JsonParser open() throws IOException;
+    }
+
+    private static class KeyIds {
+
+        private boolean hasPatient;
+        private boolean hasEpisode;
+        private String patientId;
+        private String episodeId;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.avro.AvroMapper;
+import com.fasterxml.jackson.dataformat.avro.AvroSchema;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Value format of produced MTB files. <code>json</code> keeps the received text format,
+ * binary formats are written directly from the pipeline to <code>byte[]</code> and marked by
+ * header {@value #CONTENT_TYPE_HEADER}. <code>avro</code> requires a local schema file
+ * matching the MTB files; fields not in the schema are rejected, not dropped.
+ */
+@Component
+public class MtbValueFormat {
+
+    public static final String CONTENT_TYPE_HEADER = "content-type";
+
+    public enum Format {
+        JSON("application/json", ".json"),
+        SMILE("application/x-jackson-smile", ".sml"),
+        CBOR("application/cbor", ".cbor"),
+        AVRO("avro/binary", ".avro");
+
+        private final String contentType;
+        private final String fileExtension;
+
+        Format(String contentType, String fileExtension) {
+            this.contentType = contentType;
+            this.fileExtension = fileExtension;
+        }
+    }
+
+    private final Format format;
+    private final ObjectMapper mapper;
+    private final AvroSchema avroSchema;
+    private final Header header;
+
+    @Autowired
+    public MtbValueFormat(@Value("${mtb2kafka.mtbProducerOutput.format:json}") String format,
+        @Value("${mtb2kafka.mtbProducerOutput.avroSchema:}") String avroSchema)
+        throws IOException {
+        this.format = Format.valueOf(format.trim().toUpperCase(Locale.ROOT));
+        this.mapper = switch (this.format) {
+            case JSON -> new ObjectMapper();
+            case SMILE -> new SmileMapper();
+            case CBOR -> new CBORMapper();
+            case AVRO -> new AvroMapper();
+        };
+        if (this.format == Format.AVRO) {
+            if (!StringUtils.hasText(avroSchema)) {
+                throw new IllegalStateException(
+                    "'mtb2kafka.mtbProducerOutput.avroSchema' is required for format avro.");
+            }
+            this.avroSchema = ((AvroMapper) mapper).schemaFrom(new File(avroSchema));
+        } else {
+            this.avroSchema = null;
+        }
+        this.header = new RecordHeader(CONTENT_TYPE_HEADER,
+            this.format.contentType.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Format format() {
+        return format;
+    }
+
+    /**
+     * @return <code>true</code> if MTB files are produced as <code>byte[]</code>
+     */
+    public boolean isBinary() {
+        return format != Format.JSON;
+    }
+
+    /**
+     * @return header marking records of this format
+     */
+    public Header header() {
+        return header;
+    }
+
+    /**
+     * @return file extension of blobs of this format, see {@link ClaimCheck}
+     */
+    public String fileExtension() {
+        return format.fileExtension;
+    }
+
+    /**
+     * @param kafkaTemplate template whose producer configuration is used
+     * @return template producing <code>byte[]</code> values of binary formats
+     */
+    @SuppressWarnings("unchecked")
+    public KafkaTemplate<String, byte[]> template(KafkaTemplate<String, ?> kafkaTemplate) {
+        final ProducerFactory<?, ?> producerFactory = kafkaTemplate.getProducerFactory()
+            .copyWithConfigurationOverride(Map.of(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
+                ByteArraySerializer.class));
+        return new KafkaTemplate<>((ProducerFactory<String, byte[]>) producerFactory);
+    }
+
+    /**
+     * @param out target of the generator
+     * @return generator writing this format, to be closed by the caller
+     */
+    public JsonGenerator createGenerator(OutputStream out) throws IOException {
+        final var generator = mapper.getFactory().createGenerator(out);
+        if (avroSchema != null) {
+            generator.setSchema(avroSchema);
+        }
+        return generator;
+    }
+
+    /**
+     * @param mtbFile MTB file tree
+     * @return MTB file in this format
+     */
+    public byte[] write(JsonNode mtbFile) throws JsonProcessingException {
+        return avroSchema != null ? mapper.writer(avroSchema).writeValueAsBytes(mtbFile)
+            : mapper.writeValueAsBytes(mtbFile);
+    }
+
+    /**
+     * @param value record value of this format
+     * @return MTB file tree
+     */
+    public JsonNode read(byte[] value) throws IOException {
+        return avroSchema != null ? mapper.readerFor(JsonNode.class).with(avroSchema)
+            .readValue(value) : mapper.readTree(value);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Partitions MTB files by patient ID only, so all episodes of a patient share a partition and
+ * stay in order. Patients are assigned by jump consistent hash of the murmur2 hash of the
+ * patient ID: growing a topic from <code>n</code> to <code>m</code> partitions moves only
+ * <code>(m - n) / m</code> of the patients, all to the new partitions. Until records of moved
+ * patients written before the change are consumed, their order is not guaranteed.
+ * <p>
+ * Other keys, e.g. of the pseudonym table, are partitioned like the Kafka default partitioner.
+ */
+public class PatientPartitioner implements Partitioner {
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value,
+        byte[] valueBytes, Cluster cluster) {
+        final int partitions = cluster.partitionsForTopic(topic).size();
+        if (keyBytes == null) {
+            return ThreadLocalRandom.current().nextInt(partitions);
+        }
+        final var patientId = key instanceof String text ? MtbKey.patientId(text) : null;
+        if (patientId == null) {
+            return Utils.toPositive(Utils.murmur2(keyBytes)) % partitions;
+        }
+        return partition(patientId, partitions);
+    }
+
+    /**
+     * @param patientId  JSON value of patient ID
+     * @param partitions number of partitions
+     * @return partition of patient
+     */
+    static int partition(String patientId, int partitions) {
+        final long hash = Utils.murmur2(patientId.getBytes(StandardCharsets.UTF_8)) & 0xffffffffL;
+        return jumpConsistentHash(hash, partitions);
+    }
+
+    /**
+     * Lamping, Veach: A Fast, Minimal Memory, Consistent Hash Algorithm.
+     */
+    static int jumpConsistentHash(long key, int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+    }
+}
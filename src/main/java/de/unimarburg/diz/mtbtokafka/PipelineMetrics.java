@@ -0,0 +1,190 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Metrics of MTB file processing:
+ * <ul>
+ *     <li><code>mtb2kafka.pipeline.stage</code> - duration per {@link Stage}</li>
+ *     <li><code>mtb2kafka.pipeline.payload.size</code> - size of received and produced
+ *     files, approximated by their number of characters</li>
+ *     <li><code>mtb2kafka.pipeline.failures</code> - rejected or failed files per
+ *     {@link Failure}</li>
+ *     <li><code>mtb2kafka.pipeline.inflight</code> - files currently processed per endpoint</li>
+ * </ul>
+ * If tracing is enabled, each stage is observed as <code>mtb2kafka.stage</code> span as well,
+ * observations of the thread running the stage, e.g. gPas requests, are its children.
+ */
+@Component
+public class PipelineMetrics {
+
+    public enum Stage {
+        PARSE, VALIDATE, FINGERPRINT, PSEUDONYMIZE, KEY, SERIALIZE,
+        /**
+         * streaming mode: parse, pseudonymize and serialize in one pass
+         */
+        REWRITE, KAFKA_ACK
+    }
+
+    /**
+     * Failure classes, matching the responses of {@link RestResponseEntityExceptionHandler}.
+     */
+    public enum Failure {
+        INVALID_JSON, SCHEMA_VIOLATION, MISSING_KEY, PAYLOAD_TOO_LARGE, UNSUPPORTED_ENCODING,
+        INVALID_ENCODING, OVERLOADED, GPAS_UNAVAILABLE, KAFKA_UNAVAILABLE, INTERNAL
+    }
+
+    private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+    private final Map<Failure, Counter> failureCounters = new EnumMap<>(Failure.class);
+    private final DistributionSummary receivedSize;
+    private final DistributionSummary producedSize;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger bulkInFlight = new AtomicInteger();
+    private final ObservationRegistry observationRegistry;
+
+    public PipelineMetrics(MeterRegistry meterRegistry) {
+        this(meterRegistry, Optional.empty());
+    }
+
+    @Autowired
+    public PipelineMetrics(MeterRegistry meterRegistry,
+        Optional<ObservationRegistry> observationRegistry) {
+        this.observationRegistry = observationRegistry.orElse(ObservationRegistry.NOOP);
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, Timer.builder("mtb2kafka.pipeline.stage")
+                .description("duration of MTB file processing stage")
+                .tag("stage", tagValue(stage))
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+        }
+        for (Failure failure : Failure.values()) {
+            failureCounters.put(failure, Counter.builder("mtb2kafka.pipeline.failures")
+                .description("MTB files not accepted")
+                .tag("cause", tagValue(failure))
+                .register(meterRegistry));
+        }
+        receivedSize = DistributionSummary.builder("mtb2kafka.pipeline.payload.size")
+            .description("size of MTB files").baseUnit("bytes").tag("direction", "received")
+            .publishPercentileHistogram().register(meterRegistry);
+        producedSize = DistributionSummary.builder("mtb2kafka.pipeline.payload.size")
+            .description("size of MTB files").baseUnit("bytes").tag("direction", "produced")
+            .publishPercentileHistogram().register(meterRegistry);
+        Gauge.builder("mtb2kafka.pipeline.inflight", inFlight, AtomicInteger::get)
+            .description("MTB files in process").tag("endpoint", "mtbfile")
+            .register(meterRegistry);
+        Gauge.builder("mtb2kafka.pipeline.inflight", bulkInFlight, AtomicInteger::get)
+            .description("MTB files in process").tag("endpoint", "bulk")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Start a stage in the current thread. Its observation is the current one until the stage
+     * is stopped or {@link #detach(Sample) detached}.
+     */
+    public Sample start(Stage stage) {
+        final var observation = Observation.createNotStarted("mtb2kafka.stage",
+                observationRegistry)
+            .contextualName(tagValue(stage))
+            .lowCardinalityKeyValue("stage", tagValue(stage))
+            .start();
+        return new Sample(Timer.start(), observation, observation.openScope());
+    }
+
+    /**
+     * Leave a stage that is stopped by another thread, e.g. when a future completes. Must be
+     * called by the thread that started it.
+     */
+    public void detach(Sample sample) {
+        if (observationRegistry.getCurrentObservationScope() == sample.scope()) {
+            sample.scope().close();
+        }
+    }
+
+    public void stop(Sample sample, Stage stage) {
+        sample.timer().stop(stageTimers.get(stage));
+        detach(sample);
+        sample.observation().stop();
+    }
+
+    public Timer timer(Stage stage) {
+        return stageTimers.get(stage);
+    }
+
+    public void failed(Failure failure) {
+        failureCounters.get(failure).increment();
+    }
+
+    /**
+     * @param data received MTB file, recorded by its UTF-8 length in bytes
+     */
+    public void received(String data) {
+        receivedSize.record(MtbProducer.utf8Length(data));
+    }
+
+    public void received(long bytes) {
+        receivedSize.record(bytes);
+    }
+
+    /**
+     * @param data produced MTB file, recorded by its UTF-8 length in bytes
+     */
+    public void produced(String data) {
+        producedSize.record(MtbProducer.utf8Length(data));
+    }
+
+    public void produced(long bytes) {
+        producedSize.record(bytes);
+    }
+
+    public AtomicInteger inFlight() {
+        return inFlight;
+    }
+
+    public AtomicInteger bulkInFlight() {
+        return bulkInFlight;
+    }
+
+    /**
+     * Running stage of one MTB file.
+     */
+    public record Sample(Timer.Sample timer, Observation observation, Observation.Scope scope) {
+
+    }
+
+    private static String tagValue(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
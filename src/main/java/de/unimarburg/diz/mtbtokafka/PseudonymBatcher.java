@@ -0,0 +1,235 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects concurrent pseudonym lookups and resolves them with a single gPas request. A batch
+ * is sent as soon as <code>maxSize</code> lookups are queued or the first queued lookup waited
+ * <code>maxWait</code>. Batches are collected by a single thread but up to
+ * <code>maxConcurrent</code> of them are sent at the same time; while all are in flight, new
+ * lookups keep queueing and join the next batch. A batch request is sent in the observation
+ * that was current when its first lookup was queued, so its trace continues the caller's.
+ */
+public class PseudonymBatcher implements AutoCloseable {
+
+    private final Logger log = LoggerFactory.getLogger(PseudonymBatcher.class);
+
+    private final int maxSize;
+    private final long maxWaitNanos;
+    private final long timeoutNanos;
+    private final ObservationRegistry observationRegistry;
+    private final Function<Set<String>, Map<String, String>> bulkLoader;
+    private final LinkedBlockingQueue<PendingLookup> queue = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    /**
+     * @param maxSize             maximum number of originals per gPas request
+     * @param maxWait             maximum time a lookup waits for other lookups to join its
+     *                            batch
+     * @param maxConcurrent       maximum number of batches sent at the same time
+     * @param timeout             maximum time a lookup waits for its pseudonym
+     * @param observationRegistry registry to take the current observation of a lookup from
+     * @param bulkLoader          resolves a set of originals to their pseudonyms with one
+     *                            request
+     */
+    public PseudonymBatcher(int maxSize, Duration maxWait, int maxConcurrent, Duration timeout,
+        ObservationRegistry observationRegistry,
+        Function<Set<String>, Map<String, String>> bulkLoader) {
+        if (maxSize < 1) {
+            throw new IllegalStateException(
+                "'mtb2kafka.pseudonym.batch.maxSize' must be greater than zero.");
+        }
+        if (maxConcurrent < 1) {
+            throw new IllegalStateException(
+                "'mtb2kafka.pseudonym.batch.maxConcurrent' must be greater than zero.");
+        }
+        this.maxSize = maxSize;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+        this.observationRegistry = observationRegistry;
+        this.bulkLoader = bulkLoader;
+        this.inFlight = new Semaphore(maxConcurrent);
+        final var senderCount = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+            final var thread = new Thread(runnable,
+                "gpas-batch-sender-" + senderCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::dispatch, "gpas-batcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Queue lookup and wait until its batch has been resolved.
+     *
+     * @param original original ID
+     * @return pseudonym of original ID
+     * @throws PseudonymRequestFailed if the batch request failed, did not complete within
+     *                                <code>timeout</code> or the batcher has been closed
+     */
+    public String getPseudonym(String original) {
+        final var lookup = new PendingLookup(original, new CompletableFuture<>(),
+            observationRegistry.getCurrentObservation());
+        queue.add(lookup);
+        if (closed) {
+            // close() may have drained the queue before this lookup was added
+            queue.remove(lookup);
+            throw new PseudonymRequestFailed("gPas batcher has been shut down.");
+        }
+        try {
+            return lookup.result().get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            queue.remove(lookup);
+            throw new PseudonymRequestFailed("Timed out waiting for batched gPas request.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PseudonymRequestFailed("Interrupted while waiting for gPas pseudonym.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PseudonymRequestFailed failed) {
+                throw failed;
+            }
+            throw new PseudonymRequestFailed("Batched gPas request failed.", e.getCause());
+        }
+    }
+
+    private void dispatch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final List<PendingLookup> batch = new ArrayList<>(maxSize);
+            try {
+                // wait for a free sender first, lookups queued meanwhile join this batch
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                batch.add(queue.take());
+                final long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxSize) {
+                    final long remaining = deadline - System.nanoTime();
+                    final var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                        : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                inFlight.release();
+                batch.forEach(lookup -> lookup.result().completeExceptionally(
+                    new PseudonymRequestFailed("gPas batcher has been shut down.")));
+                Thread.currentThread().interrupt();
+                return;
+            }
+            send(batch);
+        }
+    }
+
+    private void send(List<PendingLookup> batch) {
+        try {
+            senders.execute(() -> {
+                try {
+                    resolve(batch);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            batch.forEach(lookup -> lookup.result().completeExceptionally(
+                new PseudonymRequestFailed("gPas batcher has been shut down.")));
+        }
+    }
+
+    private void resolve(List<PendingLookup> batch) {
+        final Set<String> originals = new LinkedHashSet<>();
+        batch.forEach(lookup -> originals.add(lookup.original()));
+        log.debug("requesting {} pseudonyms for {} queued lookups", originals.size(),
+            batch.size());
+
+        final Map<String, String> pseudonyms;
+        final var parent = batch.get(0).observation();
+        try (var scope = parent != null ? parent.openScope() : null) {
+            pseudonyms = bulkLoader.apply(originals);
+        } catch (RuntimeException e) {
+            batch.forEach(lookup -> lookup.result().completeExceptionally(e));
+            return;
+        }
+
+        for (var lookup : batch) {
+            final var pseudonym = pseudonyms.get(lookup.original());
+            if (pseudonym != null) {
+                lookup.result().complete(pseudonym);
+            } else {
+                lookup.result().completeExceptionally(new PseudonymRequestFailed(
+                    "gPas response does not contain a pseudonym for a requested ID."));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        senders.shutdown();
+        PendingLookup pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result().completeExceptionally(
+                new PseudonymRequestFailed("gPas batcher has been shut down."));
+        }
+    }
+
+    /**
+     * @param observation current observation of the caller, <code>null</code> if none
+     */
+    private record PendingLookup(String original, CompletableFuture<String> result,
+        Observation observation) {
+
+    }
+}
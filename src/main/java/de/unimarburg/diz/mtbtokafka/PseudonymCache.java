@@ -0,0 +1,315 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Bounded in-memory cache of gPas pseudonyms keyed by target domain and original ID. Entries
+ * are evicted least recently used if the cache is full and dropped once their time to live has
+ * passed. Optionally the content is written AES/GCM encrypted to a local file on shutdown and
+ * read back on startup. Concurrent misses of the same ID are coalesced into a single load.
+ */
+@Component
+@ConditionalOnProperty(value = "mtb2kafka.pseudonym.cache.enabled")
+public class PseudonymCache {
+
+    private static final String CACHE_NAME = "gpas-pseudonyms";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    private final Logger log = LoggerFactory.getLogger(PseudonymCache.class);
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Clock clock;
+    private final Path persistenceFile;
+    private final SecretKey persistenceKey;
+    private final Map<CacheKey, CacheEntry> entries;
+    private final Map<CacheKey, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter sizeEvictions;
+    private final Counter expiredEvictions;
+
+    @Autowired
+    public PseudonymCache(@Value("${mtb2kafka.pseudonym.cache.maxSize:10000}") int maxSize,
+        @Value("${mtb2kafka.pseudonym.cache.ttl:PT12H}") Duration ttl,
+        @Value("${mtb2kafka.pseudonym.cache.persistence.file:}") String persistenceFile,
+        @Value("${mtb2kafka.pseudonym.cache.persistence.key:}") String persistenceKey,
+        MeterRegistry meterRegistry) {
+        this(maxSize, ttl, persistenceFile, persistenceKey, meterRegistry, Clock.systemUTC());
+    }
+
+    PseudonymCache(int maxSize, Duration ttl, String persistenceFile, String persistenceKey,
+        MeterRegistry meterRegistry, Clock clock) {
+        if (maxSize < 1) {
+            throw new IllegalStateException(
+                "'mtb2kafka.pseudonym.cache.maxSize' must be greater than zero.");
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                if (size() > PseudonymCache.this.maxSize) {
+                    sizeEvictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        hits = Counter.builder("mtb2kafka.pseudonym.cache.gets").tag("cache", CACHE_NAME)
+            .tag("result", "hit").description("pseudonym cache lookups")
+            .register(meterRegistry);
+        misses = Counter.builder("mtb2kafka.pseudonym.cache.gets").tag("cache", CACHE_NAME)
+            .tag("result", "miss").description("pseudonym cache lookups")
+            .register(meterRegistry);
+        sizeEvictions = Counter.builder("mtb2kafka.pseudonym.cache.evictions")
+            .tag("cache", CACHE_NAME).tag("cause", "size")
+            .description("pseudonym cache evictions").register(meterRegistry);
+        expiredEvictions = Counter.builder("mtb2kafka.pseudonym.cache.evictions")
+            .tag("cache", CACHE_NAME).tag("cause", "expired")
+            .description("pseudonym cache evictions").register(meterRegistry);
+        Gauge.builder("mtb2kafka.pseudonym.cache.size", this, PseudonymCache::size)
+            .tag("cache", CACHE_NAME).description("current number of cached pseudonyms")
+            .register(meterRegistry);
+
+        if (StringUtils.hasText(persistenceFile)) {
+            if (!StringUtils.hasText(persistenceKey)) {
+                throw new IllegalStateException(
+                    "'mtb2kafka.pseudonym.cache.persistence.key' is required if "
+                        + "'mtb2kafka.pseudonym.cache.persistence.file' is set.");
+            }
+            this.persistenceFile = Path.of(persistenceFile);
+            this.persistenceKey = new SecretKeySpec(Base64.getDecoder().decode(persistenceKey),
+                "AES");
+            load();
+        } else {
+            this.persistenceFile = null;
+            this.persistenceKey = null;
+        }
+    }
+
+    /**
+     * Get cached pseudonym or acquire it via given loader. The loader is called outside of any
+     * lock, so a slow gPas does not block lookups of other IDs. Callers missing the same ID
+     * while it is loaded wait for that load instead of calling the loader again.
+     *
+     * @param targetDomain gPas target domain
+     * @param original     original ID
+     * @param loader       acquires pseudonym on cache miss
+     * @return pseudonym of original ID
+     */
+    public String computeIfAbsent(String targetDomain, String original,
+        Function<String, String> loader) {
+        final var key = new CacheKey(targetDomain, original);
+        final var cached = get(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        final var pending = new CompletableFuture<String>();
+        final var running = loading.putIfAbsent(key, pending);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            final var pseudonym = loader.apply(original);
+            put(key, pseudonym);
+            pending.complete(pseudonym);
+            return pseudonym;
+        } catch (RuntimeException | Error e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, pending);
+        }
+    }
+
+    private static String await(CompletableFuture<String> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized String get(CacheKey key) {
+        final var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt() <= clock.millis()) {
+            entries.remove(key);
+            expiredEvictions.increment();
+            return null;
+        }
+        return entry.pseudonym();
+    }
+
+    private synchronized void put(CacheKey key, String pseudonym) {
+        entries.put(key, new CacheEntry(pseudonym, clock.millis() + ttlMillis));
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(persistenceFile)) {
+            log.info("No persisted pseudonym cache found at '{}'. Starting empty.",
+                persistenceFile);
+            return;
+        }
+        try {
+            final byte[] content = Files.readAllBytes(persistenceFile);
+            final var cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, persistenceKey,
+                new GCMParameterSpec(GCM_TAG_LENGTH, content, 0, GCM_IV_LENGTH));
+            final byte[] plain = cipher.doFinal(content, GCM_IV_LENGTH,
+                content.length - GCM_IV_LENGTH);
+
+            try (var in = new DataInputStream(new ByteArrayInputStream(plain))) {
+                if (in.readInt() != FILE_FORMAT_VERSION) {
+                    log.warn("Unknown pseudonym cache file format at '{}'. Starting empty.",
+                        persistenceFile);
+                    return;
+                }
+                final int count = in.readInt();
+                final long now = clock.millis();
+                synchronized (this) {
+                    for (int i = 0; i < count; i++) {
+                        final var key = new CacheKey(in.readUTF(), in.readUTF());
+                        final var entry = new CacheEntry(in.readUTF(), in.readLong());
+                        if (entry.expiresAt() > now) {
+                            entries.put(key, entry);
+                        }
+                    }
+                }
+            }
+            log.info("Loaded {} pseudonyms from '{}'.", size(), persistenceFile);
+        } catch (IOException | GeneralSecurityException e) {
+            log.warn("Could not read persisted pseudonym cache at '{}'. Starting empty.",
+                persistenceFile, e);
+        }
+    }
+
+    /**
+     * Write current cache content encrypted to configured persistence file. The file is
+     * replaced atomically, so a crash during write keeps the previous state.
+     */
+    @PreDestroy
+    public void persist() {
+        if (persistenceFile == null) {
+            return;
+        }
+        try {
+            final var plain = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(plain)) {
+                final ArrayList<Map.Entry<CacheKey, CacheEntry>> snapshot;
+                synchronized (this) {
+                    snapshot = new ArrayList<>(entries.entrySet());
+                }
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (var e : snapshot) {
+                    out.writeUTF(e.getKey().targetDomain());
+                    out.writeUTF(e.getKey().original());
+                    out.writeUTF(e.getValue().pseudonym());
+                    out.writeLong(e.getValue().expiresAt());
+                }
+            }
+
+            final byte[] iv = new byte[GCM_IV_LENGTH];
+            new SecureRandom().nextBytes(iv);
+            final var cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, persistenceKey,
+                new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            final byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+            final var parent = persistenceFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            final var tmp = Files.createTempFile(parent, "pseudonym-cache", ".tmp");
+            try (var out = Files.newOutputStream(tmp)) {
+                out.write(iv);
+                out.write(encrypted);
+            }
+            Files.move(tmp, persistenceFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            log.info("Persisted {} pseudonyms to '{}'.", size(), persistenceFile);
+        } catch (IOException | GeneralSecurityException e) {
+            log.error("Could not persist pseudonym cache to '{}'.", persistenceFile, e);
+        }
+    }
+
+    private record CacheKey(String targetDomain, String original) {
+
+    }
+
+    private record CacheEntry(String pseudonym, long expiresAt) {
+
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.StoreQueryParameters;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.errors.StreamsUncaughtExceptionHandler.StreamThreadExceptionResponse;
+import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Materialized;
+import org.apache.kafka.streams.state.QueryableStoreTypes;
+import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pseudonyms shared by all instances via a compacted Kafka topic. Each instance materializes
+ * the topic as global table into a local RocksDB store, so lookups are served from local disk
+ * and gPas is only contacted for IDs no instance has resolved before.
+ * <p>
+ * Record keys are HMAC-SHA256 hashes of target domain and original ID, values are AES/GCM
+ * encrypted pseudonyms bound to their key. Both keys are derived from
+ * <code>mtb2kafka.pseudonym.table.key</code>, which has to be the same on all instances.
+ */
+@Component
+@ConditionalOnProperty(name = {"mtb2kafka.pseudonym.enabled",
+    "mtb2kafka.pseudonym.table.enabled"})
+public class PseudonymTable {
+
+    static final String STORE_NAME = "mtb2kafka-pseudonyms";
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final String HMAC = "HmacSHA256";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+
+    private final Logger log = LoggerFactory.getLogger(PseudonymTable.class);
+
+    private final BiConsumer<String, String> writer;
+    private final Supplier<ReadOnlyKeyValueStore<String, String>> store;
+    private final KafkaStreams streams;
+    private final SecretKey encryptionKey;
+    private final ThreadLocal<Mac> mac;
+    private final SecureRandom random = new SecureRandom();
+
+    private final Counter hits;
+    private final Counter misses;
+
+    @Autowired
+    public PseudonymTable(
+        @Value("${mtb2kafka.pseudonym.table.topic:mtb2kafka-pseudonyms}") String topic,
+        @Value("${mtb2kafka.pseudonym.table.key}") String base64Key,
+        @Value("${mtb2kafka.pseudonym.table.applicationId:mtb2kafka-pseudonym-table}")
+        String applicationId,
+        @Value("${mtb2kafka.pseudonym.table.stateDir:pseudonym-table}") String stateDir,
+        KafkaProperties kafkaProperties, KafkaTemplate<String, String> kafkaTemplate,
+        MeterRegistry meterRegistry) {
+        this(topic, base64Key, streams(topic, applicationId, stateDir, kafkaProperties),
+            (key, value) -> kafkaTemplate.send(topic, key, value).whenComplete((r, e) -> {
+                if (e != null) {
+                    LoggerFactory.getLogger(PseudonymTable.class)
+                        .warn("Could not write pseudonym to table topic '{}'.", topic, e);
+                }
+            }), meterRegistry);
+    }
+
+    private PseudonymTable(String topic, String base64Key, KafkaStreams streams,
+        BiConsumer<String, String> writer, MeterRegistry meterRegistry) {
+        this(base64Key, writer, () -> runningStore(streams), streams, meterRegistry);
+        streams.setUncaughtExceptionHandler(e -> {
+            log.error("Pseudonym table of topic '{}' failed.", topic, e);
+            // lookups fall back to gPas
+            return StreamThreadExceptionResponse.SHUTDOWN_CLIENT;
+        });
+        streams.start();
+    }
+
+    /**
+     * @param writer produces a table record
+     * @param store  local store of the table, <code>null</code> while it is not available
+     */
+    PseudonymTable(String base64Key, BiConsumer<String, String> writer,
+        Supplier<ReadOnlyKeyValueStore<String, String>> store, KafkaStreams streams,
+        MeterRegistry meterRegistry) {
+        final byte[] masterKey = base64Key == null ? new byte[0]
+            : Base64.getDecoder().decode(base64Key.trim());
+        if (masterKey.length < 16) {
+            throw new IllegalStateException(
+                "'mtb2kafka.pseudonym.table.key' must be a base64 encoded key of at least 16 "
+                    + "bytes.");
+        }
+        this.writer = writer;
+        this.store = store;
+        this.streams = streams;
+        final var hashKey = new SecretKeySpec(derive(masterKey, "hash"), HMAC);
+        this.encryptionKey = new SecretKeySpec(derive(masterKey, "encryption"), "AES");
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                final var instance = Mac.getInstance(HMAC);
+                instance.init(hashKey);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC initialization failed.", e);
+            }
+        });
+
+        hits = Counter.builder("mtb2kafka.pseudonym.table.lookups").tag("result", "hit")
+            .description("pseudonym table lookups").register(meterRegistry);
+        misses = Counter.builder("mtb2kafka.pseudonym.table.lookups").tag("result", "miss")
+            .description("pseudonym table lookups").register(meterRegistry);
+    }
+
+    /**
+     * @return topology materializing table topic into {@value #STORE_NAME}
+     */
+    static Topology topology(String topic) {
+        final var builder = new StreamsBuilder();
+        builder.globalTable(topic, Consumed.with(Serdes.String(), Serdes.String()),
+            Materialized.as(STORE_NAME));
+        return builder.build();
+    }
+
+    /**
+     * @return pseudonym of original ID, <code>null</code> if not known or the table is still
+     * restoring
+     */
+    public String get(String targetDomain, String original) {
+        final var localStore = store.get();
+        if (localStore == null) {
+            misses.increment();
+            return null;
+        }
+        final var key = key(targetDomain, original);
+        final var encrypted = localStore.get(key);
+        if (encrypted == null) {
+            misses.increment();
+            return null;
+        }
+        try {
+            final var pseudonym = decrypt(key, encrypted);
+            hits.increment();
+            return pseudonym;
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            log.warn("Could not decrypt pseudonym table entry, table key changed?");
+            misses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Publish pseudonym to all instances. Does not wait for Kafka.
+     */
+    public void put(String targetDomain, String original, String pseudonym) {
+        final var key = key(targetDomain, original);
+        try {
+            writer.accept(key, encrypt(key, pseudonym));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not encrypt pseudonym.", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (streams != null) {
+            streams.close();
+        }
+    }
+
+    String key(String targetDomain, String original) {
+        final var hash = mac.get().doFinal(
+            (targetDomain + '\0' + original).getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    private String encrypt(String key, String pseudonym) throws GeneralSecurityException {
+        final byte[] iv = new byte[GCM_IV_LENGTH];
+        random.nextBytes(iv);
+        final var cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        // bind value to its key, so entries cannot be swapped
+        cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+        final byte[] encrypted = cipher.doFinal(pseudonym.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(
+            ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array());
+    }
+
+    private String decrypt(String key, String value) throws GeneralSecurityException {
+        final byte[] content = Base64.getDecoder().decode(value);
+        final var cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey,
+            new GCMParameterSpec(GCM_TAG_LENGTH, content, 0, GCM_IV_LENGTH));
+        cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+        return new String(cipher.doFinal(content, GCM_IV_LENGTH, content.length - GCM_IV_LENGTH),
+            StandardCharsets.UTF_8);
+    }
+
+    private static byte[] derive(byte[] masterKey, String purpose) {
+        try {
+            final var instance = Mac.getInstance(HMAC);
+            instance.init(new SecretKeySpec(masterKey, HMAC));
+            // 32 bytes, used as AES-256 and HMAC-SHA256 key
+            return instance.doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Key derivation failed.", e);
+        }
+    }
+
+    private static KafkaStreams streams(String topic, String applicationId, String stateDir,
+        KafkaProperties kafkaProperties) {
+        final var properties = new Properties();
+        properties.putAll(kafkaProperties.buildStreamsProperties());
+        properties.put(StreamsConfig.APPLICATION_ID_CONFIG, applicationId);
+        properties.put(StreamsConfig.STATE_DIR_CONFIG, stateDir);
+        return new KafkaStreams(topology(topic), properties);
+    }
+
+    private static ReadOnlyKeyValueStore<String, String> runningStore(KafkaStreams streams) {
+        if (streams.state() != KafkaStreams.State.RUNNING) {
+            return null;
+        }
+        return streams.store(StoreQueryParameters.fromNameAndType(STORE_NAME,
+            QueryableStoreTypes.keyValueStore()));
+    }
+}
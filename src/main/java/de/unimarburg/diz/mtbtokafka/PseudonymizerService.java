@@ -23,17 +23,30 @@ package de.unimarburg.diz.mtbtokafka;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import de.unimarburg.diz.mtbtokafka.exceptions.GpasOverloaded;
 import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
-import java.net.ConnectException;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.HttpEntity;
@@ -41,15 +54,10 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.retry.RetryCallback;
-import org.springframework.retry.RetryContext;
-import org.springframework.retry.RetryPolicy;
-import org.springframework.retry.backoff.ExponentialBackOffPolicy;
-import org.springframework.retry.listener.RetryListenerSupport;
-import org.springframework.retry.policy.SimpleRetryPolicy;
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 @Service
@@ -60,103 +68,325 @@ public class PseudonymizerService {
 
     private final String gPasUrl;
     private final String psnTargetDomain;
-    private final RetryTemplate retryTemplate = defaultTemplate();
+    private final RetryTemplate retryTemplate;
 
     private final FhirContext r4Context;
+    // parsers are cheap but not guaranteed to be thread safe - keep one per thread
+    private final ThreadLocal<IParser> jsonParser;
+    private final RestTemplate restTemplate;
+    private final GpasCircuitBreaker circuitBreaker;
+    private final PseudonymCache pseudonymCache;
+    private final PseudonymTable pseudonymTable;
+    private final PseudonymBatcher pseudonymBatcher;
+    private final IdHasher idHasher;
+    private final ObservationRegistry observationRegistry;
 
+    @Autowired
     public PseudonymizerService(@Value("${mtb2kafka.pseudonym.gPasUrl}") String gPasBaseUrl,
-        @Value("${mtb2kafka.pseudonym.target}") String psnTargetDomain) {
+        @Value("${mtb2kafka.pseudonym.target}") String psnTargetDomain,
+        @Qualifier("gPasRestTemplate") RestTemplate restTemplate,
+        @Qualifier("gPasRetryTemplate") RetryTemplate retryTemplate,
+        Optional<GpasCircuitBreaker> circuitBreaker,
+        Optional<PseudonymCache> pseudonymCache,
+        Optional<PseudonymTable> pseudonymTable,
+        Optional<IdHasher> idHasher,
+        @Value("${mtb2kafka.pseudonym.batch.enabled:false}") boolean batchEnabled,
+        @Value("${mtb2kafka.pseudonym.batch.maxSize:50}") int batchMaxSize,
+        @Value("${mtb2kafka.pseudonym.batch.maxWait:PT0.02S}") Duration batchMaxWait,
+        @Value("${mtb2kafka.pseudonym.batch.maxConcurrent:"
+            + "${mtb2kafka.pseudonym.http.maxConcurrentRequests:"
+            + "${mtb2kafka.pseudonym.http.maxConnectionsPerRoute:20}}}") int batchMaxConcurrent,
+        @Value("${mtb2kafka.pseudonym.retry.budget:PT5S}") Duration retryBudget,
+        @Value("${mtb2kafka.pseudonym.http.readTimeout:PT10S}") Duration readTimeout,
+        Optional<ObservationRegistry> observationRegistry) {
 
         this.gPasUrl = gPasBaseUrl + "/ttp-fhir/fhir/gpas/$pseudonymizeAllowCreate";
         this.psnTargetDomain = psnTargetDomain;
         this.r4Context = FhirContext.forR4();
+        this.jsonParser = ThreadLocal.withInitial(r4Context::newJsonParser);
+        this.restTemplate = restTemplate;
+        this.retryTemplate = retryTemplate;
+        this.circuitBreaker = circuitBreaker.orElse(null);
+        this.pseudonymCache = pseudonymCache.orElse(null);
+        this.pseudonymTable = pseudonymTable.orElse(null);
+        this.idHasher = idHasher.orElse(null);
+        this.observationRegistry = observationRegistry.orElse(ObservationRegistry.NOOP);
+        // the last attempt of a batch request starts within the retry budget
+        this.pseudonymBatcher = batchEnabled ? new PseudonymBatcher(batchMaxSize, batchMaxWait,
+            batchMaxConcurrent, batchMaxWait.plus(retryBudget).plus(readTimeout),
+            this.observationRegistry, this::requestPseudonyms) : null;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (pseudonymBatcher != null) {
+            pseudonymBatcher.close();
+        }
     }
 
     public Parameters getPseudonymParameters(Parameters pseudonymParameters) {
 
-        final IParser iParser = r4Context.newJsonParser();
+        final IParser iParser = jsonParser.get();
         String message = iParser.encodeResourceToString(pseudonymParameters);
         ResponseEntity<String> responseEntity = performRestCallToGpas(message);
 
         return (Parameters) iParser.parseResource(responseEntity.getBody());
     }
 
+    /**
+     * Send a request to gPas, retried according to <code>gPasRetryTemplate</code>. The request
+     * is observed as <code>mtb2kafka.gpas.request</code>, each attempt by the instrumented
+     * <code>gPasRestTemplate</code> as <code>http.client.requests</code>.
+     */
     @NotNull
     protected ResponseEntity<String> performRestCallToGpas(String message) {
+        return Observation.createNotStarted("mtb2kafka.gpas.request", observationRegistry)
+            .contextualName("gpas pseudonymize")
+            .observe(() -> exchangeWithRetry(message));
+    }
 
-        RestTemplate restTemplate = new RestTemplate();
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        HttpEntity<String> requestEntity = new HttpEntity<>(message, headers);
-        ResponseEntity<String> responseEntity;
+    private ResponseEntity<String> exchangeWithRetry(String message) {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+            throw new PseudonymRequestFailed("gPas circuit breaker is open, request rejected.");
+        }
 
+        final ResponseEntity<String> responseEntity;
         try {
-            responseEntity = retryTemplate.execute(
-                ctx -> restTemplate.exchange(gPasUrl, HttpMethod.POST, requestEntity,
-                    String.class));
-
-            if (responseEntity.getStatusCode().is2xxSuccessful()) {
-                log.debug("API request succeeded. Response: {}", responseEntity.getStatusCode());
-            } else {
-                log.warn("API request unsuccessful. Response: {}", requestEntity.getBody());
-                throw new PseudonymRequestFailed("API request unsuccessful gPas unsuccessful.");
+            responseEntity = retryTemplate.execute(ctx -> {
+                if (ctx.getRetryCount() > 0 && circuitBreaker != null
+                    && circuitBreaker.getState() == GpasCircuitBreaker.State.OPEN) {
+                    // not retryable - stop back off sleeps as soon as the breaker opened
+                    throw new PseudonymRequestFailed("gPas circuit breaker opened.");
+                }
+                return exchange(message);
+            });
+        } catch (GpasOverloaded e) {
+            // not a gPas failure
+            if (circuitBreaker != null) {
+                circuitBreaker.releasePermission();
             }
-
-            return responseEntity;
+            throw new PseudonymRequestFailed("gPas concurrency limit reached.", e);
         } catch (Exception unexpected) {
+            if (circuitBreaker != null) {
+                if (isGpasFailure(unexpected)) {
+                    circuitBreaker.onError();
+                } else {
+                    circuitBreaker.releasePermission();
+                }
+            }
             throw new PseudonymRequestFailed(
                 "API request due unexpected error unsuccessful gPas unsuccessful.", unexpected);
         }
-    }
 
-    protected RetryTemplate defaultTemplate() {
-        RetryTemplate retryTemplate = new RetryTemplate();
-        ExponentialBackOffPolicy backOffPolicy = new ExponentialBackOffPolicy();
-        backOffPolicy.setInitialInterval(1000);
-        backOffPolicy.setMultiplier(1.25);
-        retryTemplate.setBackOffPolicy(backOffPolicy);
-        HashMap<Class<? extends Throwable>, Boolean> retryableExceptions = new HashMap<>();
-        retryableExceptions.put(RestClientException.class, true);
-        retryableExceptions.put(ConnectException.class, true);
-        RetryPolicy retryPolicy = new SimpleRetryPolicy(3, retryableExceptions);
-        retryTemplate.setRetryPolicy(retryPolicy);
-        retryTemplate.registerListener(new RetryListenerSupport() {
-            @Override
-            public <T, E extends Throwable> void onError(RetryContext context,
-                RetryCallback<T, E> callback, Throwable throwable) {
-                log.warn("HTTP Error occurred: {}. Retrying {}", throwable.getMessage(),
-                    context.getRetryCount());
+        if (circuitBreaker != null) {
+            if (responseEntity.getStatusCode().is5xxServerError()) {
+                circuitBreaker.onError();
+            } else if (responseEntity.getStatusCode().is2xxSuccessful()) {
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.releasePermission();
             }
-        });
+        }
+        if (responseEntity.getStatusCode().is2xxSuccessful()) {
+            log.debug("API request succeeded. Response: {}", responseEntity.getStatusCode());
+        } else {
+            log.warn("API request unsuccessful. Response: {}", message);
+            throw new PseudonymRequestFailed("API request unsuccessful gPas unsuccessful.");
+        }
+        return responseEntity;
+    }
+
+    /**
+     * @return <code>true</code> if the error means gPas is not available - a server error, a
+     * timeout or another I/O error - and should count for the circuit breaker
+     */
+    private static boolean isGpasFailure(Exception e) {
+        return e instanceof HttpServerErrorException || e instanceof ResourceAccessException;
+    }
+
+    private ResponseEntity<String> exchange(String message) {
+        final var headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return restTemplate.exchange(gPasUrl, HttpMethod.POST, new HttpEntity<>(message, headers),
+            String.class);
+    }
 
-        return retryTemplate;
+    /**
+     * @return rules for secondary IDs, <code>null</code> if hashing is disabled
+     */
+    public IdHasher getIdHasher() {
+        return idHasher;
     }
 
+    /**
+     * Replace patient ID by its pseudonym, and secondary IDs according to {@link IdHasher}.
+     *
+     * @throws IllegalArgumentException if patient or episode is missing or not an object, or
+     *                                  patient ID is neither a string nor a number
+     */
     public void pseudonymizeMtb(JsonNode jsonNode) {
         final JsonNode patientNode = jsonNode.get("patient");
-        final JsonNode patientId = patientNode.get("id");
+        final JsonNode patientId = patientNode == null ? null : patientNode.get("id");
+        if (!(patientNode instanceof ObjectNode)
+            || !(jsonNode.get("episode") instanceof ObjectNode)
+            || patientId == null || !(patientId.isTextual() || patientId.isNumber())) {
+            throw new IllegalArgumentException(
+                "patient and episode id must be provided. rejecting current data!");
+        }
+
+        var pidAsPseudonym = getPseudonym(patientId.asText());
 
+        // replace PID with pseudonym
+        ((ObjectNode) patientNode).put("id", pidAsPseudonym);
+
+        if (idHasher != null) {
+            final Map<String, String> pseudonyms = new HashMap<>();
+            pseudonyms.put(patientId.asText(), pidAsPseudonym);
+            replaceIds(jsonNode, idHasher.root(), pseudonyms);
+        }
+    }
+
+    /**
+     * Replace secondary IDs and patient references below given node in a single traversal.
+     */
+    private void replaceIds(JsonNode node, IdHasher.State state,
+        Map<String, String> pseudonyms) {
+        if (node.isObject()) {
+            final var fields = node.fields();
+            while (fields.hasNext()) {
+                final var field = fields.next();
+                final var fieldState = state.field(field.getKey());
+                if (fieldState.isDead()) {
+                    continue;
+                }
+                if (field.getValue().isContainerNode()) {
+                    replaceIds(field.getValue(), fieldState, pseudonyms);
+                } else {
+                    final var replacement = replaceId(field.getValue(), fieldState, pseudonyms);
+                    if (replacement != null) {
+                        field.setValue(TextNode.valueOf(replacement));
+                    }
+                }
+            }
+        } else if (node.isArray()) {
+            final var elementState = state.element();
+            if (elementState.isDead()) {
+                return;
+            }
+            final var array = (ArrayNode) node;
+            for (int i = 0; i < array.size(); i++) {
+                final var element = array.get(i);
+                if (element.isContainerNode()) {
+                    replaceIds(element, elementState, pseudonyms);
+                } else {
+                    final var replacement = replaceId(element, elementState, pseudonyms);
+                    if (replacement != null) {
+                        array.set(i, TextNode.valueOf(replacement));
+                    }
+                }
+            }
+        }
+    }
+
+    private String replaceId(JsonNode value, IdHasher.State state,
+        Map<String, String> pseudonyms) {
+        if (!value.isTextual() && !value.isNumber()) {
+            return null;
+        }
+        return switch (state.action()) {
+            case HASH -> idHasher.hash(value.asText());
+            case PATIENT -> pseudonyms.computeIfAbsent(value.asText(), this::getPseudonym);
+            case NONE -> null;
+        };
+    }
+
+    /**
+     * Resolve pseudonym of given original ID in configured target domain. If the pseudonym
+     * cache or table is enabled, gPas is only contacted if neither knows the ID.
+     *
+     * @param original original ID, e.g. patient ID
+     * @return pseudonym formatted as <code>system|value</code>
+     */
+    public String getPseudonym(String original) {
+        if (pseudonymCache != null) {
+            return pseudonymCache.computeIfAbsent(psnTargetDomain, original,
+                this::lookUpPseudonym);
+        }
+        return lookUpPseudonym(original);
+    }
+
+    private String lookUpPseudonym(String original) {
+        if (pseudonymTable == null) {
+            return requestPseudonym(original);
+        }
+        final var known = pseudonymTable.get(psnTargetDomain, original);
+        if (known != null) {
+            return known;
+        }
+        final var pseudonym = requestPseudonym(original);
+        pseudonymTable.put(psnTargetDomain, original, pseudonym);
+        return pseudonym;
+    }
+
+    protected String requestPseudonym(String original) {
+        if (pseudonymBatcher != null) {
+            return pseudonymBatcher.getPseudonym(original);
+        }
+
+        final var pseudonym = requestPseudonyms(Set.of(original)).get(original);
+        if (pseudonym == null) {
+            throw new PseudonymRequestFailed(
+                "gPas response does not contain a pseudonym for requested ID.");
+        }
+        return pseudonym;
+    }
+
+    /**
+     * Request pseudonyms of all given originals with one gPas call, i.e. a single
+     * <code>Parameters</code> resource with one <code>original</code> parameter per ID.
+     *
+     * @param originals original IDs
+     * @return pseudonyms formatted as <code>system|value</code> mapped by original ID
+     */
+    protected Map<String, String> requestPseudonyms(Set<String> originals) {
         var requestParameters = new Parameters();
         requestParameters.addParameter().setName("target")
             .setValue(new StringType().setValue(psnTargetDomain));
-        requestParameters.addParameter().setName("original")
-            .setValue(new StringType().setValue(patientId.asText()));
+        for (var original : originals) {
+            requestParameters.addParameter().setName("original")
+                .setValue(new StringType().setValue(original));
+        }
 
         var pseudonymParameter = getPseudonymParameters(requestParameters);
 
-        // todo: error handling
-        Identifier pseudonym = (Identifier) pseudonymParameter.getParameter().stream().findFirst()
-            .get().getPart().stream().filter(a -> a.getName().equals("pseudonym")).findFirst()
-            .orElseGet(
-                ParametersParameterComponent::new).getValue();
+        final Map<String, String> result = new HashMap<>();
+        for (var parameter : pseudonymParameter.getParameter()) {
+            final var original = findPart(parameter.getPart(), "original");
+            final var pseudonym = findPart(parameter.getPart(), "pseudonym");
+            if (!(pseudonym instanceof Identifier identifier)
+                || original == null && originals.size() != 1) {
+                log.warn("Ignoring incomplete parameter '{}' in gPas response.",
+                    parameter.getName());
+                continue;
+            }
 
-        // pseudonym
-        var pidAsPseudonym = pseudonym.getSystem() + "|" + pseudonym.getValue();
+            final String originalValue;
+            if (original == null) {
+                // single request - response does not need to echo the original
+                originalValue = originals.iterator().next();
+            } else {
+                originalValue = original instanceof Identifier id ? id.getValue()
+                    : original.primitiveValue();
+            }
 
-        // replace PID with pseudonym
-        ((ObjectNode) patientNode).put("id", pidAsPseudonym);
+            // pseudonym
+            result.put(originalValue, identifier.getSystem() + "|" + identifier.getValue());
+        }
+        return result;
+    }
 
-        // TODO: replace other ID properties with hashed values
+    private static Type findPart(List<ParametersParameterComponent> parts, String name) {
+        return parts.stream().filter(a -> a.getName().equals(name)).findFirst()
+            .map(ParametersParameterComponent::getValue).orElse(null);
     }
 }
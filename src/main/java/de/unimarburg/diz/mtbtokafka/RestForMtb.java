@@ -21,89 +21,365 @@
 package de.unimarburg.diz.mtbtokafka;
 
 import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import de.unimarburg.diz.mtbtokafka.BulkReport.DocumentStatus;
+import de.unimarburg.diz.mtbtokafka.PipelineMetrics.Failure;
+import de.unimarburg.diz.mtbtokafka.PipelineMetrics.Stage;
+import de.unimarburg.diz.mtbtokafka.exceptions.InvalidContentEncoding;
 import de.unimarburg.diz.mtbtokafka.exceptions.KafkaProduceFailed;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileTooLarge;
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
+import org.apache.kafka.common.header.Header;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
 /**
- * TODO: handle DELETE
+ * REST endpoints to produce MTB files to Kafka and to delete them again.
  */
 @RestController
 public class RestForMtb {
 
+
     private final PseudonymizerService pseudonymizerService;
     protected MtbProducer mtbProducer;
     private final Logger log = LoggerFactory.getLogger(RestForMtb.class);
     private final ObjectMapper objectMapper;
+    private final int bulkMaxInFlight;
+    private final MtbStreamRewriter streamRewriter;
+    private final PipelineMetrics metrics;
+    private final MtbFileDeduplicator deduplicator;
+    private final MtbValueFormat valueFormat;
+    private final MtbSchemaValidator validator;
+    private final long maxBodySize;
 
 
     @Autowired
-    public RestForMtb(MtbProducer mtbProducer, Optional<PseudonymizerService> pseudonymService) {
+    public RestForMtb(MtbProducer mtbProducer, Optional<PseudonymizerService> pseudonymService,
+        @Value("${mtb2kafka.bulk.maxInFlight:100}") int bulkMaxInFlight,
+        @Value("${mtb2kafka.streaming.enabled:false}") boolean streamingEnabled,
+        PipelineMetrics metrics, Optional<MtbFileDeduplicator> deduplicator,
+        Optional<MtbValueFormat> valueFormat, Optional<MtbSchemaValidator> validator,
+        @Value("${mtb2kafka.upload.maxBodySize:64MB}") DataSize maxBodySize) {
         this.mtbProducer = mtbProducer;
+        this.maxBodySize = maxBodySize.toBytes();
+        this.validator = validator.orElse(null);
+        this.metrics = metrics;
+        this.deduplicator = deduplicator.orElse(null);
+        this.valueFormat = valueFormat.filter(MtbValueFormat::isBinary).orElse(null);
         objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         this.pseudonymizerService = pseudonymService.orElse(null);
+        this.bulkMaxInFlight = Math.max(1, bulkMaxInFlight);
+        this.streamRewriter = streamingEnabled ? new MtbStreamRewriter(objectMapper.getFactory(),
+            pseudonymizerService != null ? pseudonymizerService.getIdHasher() : null) : null;
     }
 
 
-    @DeleteMapping("/mtbfile")
-    @ResponseStatus(HttpStatus.NOT_IMPLEMENTED)
-    public void deleteMtbFile() {
-        // TODO
-        // throw new NotImplementedException("currently not implemented!");
+    /**
+     * Delete MTB files of one or more episodes of a patient by producing tombstones with the
+     * same keys the files have been produced with. IDs are taken from the request body, so
+     * original patient IDs do not show up in access logs. If pseudonymization is enabled, the
+     * patient ID is resolved to its pseudonym only once; tombstones are produced without waiting
+     * for each other. Blobs of claim checked files are kept, see {@link ClaimCheck}.
+     *
+     * @param request original patient ID and episode IDs, as in the MTB file
+     * @return future completing with <code>202</code> once Kafka accepted all tombstones
+     */
+    @PostMapping("/mtbfile/delete")
+    public CompletableFuture<ResponseEntity<Void>> deleteMtbFiles(
+        @RequestBody DeleteRequest request) {
+        if (request == null || !isId(request.patientId()) || request.episodeIds() == null
+            || request.episodeIds().isEmpty()
+            || !request.episodeIds().stream().allMatch(RestForMtb::isId)) {
+            throw new IllegalArgumentException(
+                "patient and episode id must be provided. rejecting delete request!");
+        }
+
+        final var pid = pseudonymizerService != null
+            ? TextNode.valueOf(pseudonymizerService.getPseudonym(request.patientId().asText()))
+            : request.patientId();
+
+        final var tombstones = request.episodeIds().stream()
+            .map(eid -> keyOf(pid, eid))
+            .distinct()
+            .map(key -> mtbProducer.sendToKafkaAsync(key, null).thenAccept(accepted -> {
+                if (!accepted) {
+                    throw new CompletionException(
+                        new KafkaProduceFailed("Kafka did not accept tombstone"));
+                }
+                if (deduplicator != null) {
+                    deduplicator.deleted(key);
+                }
+            }))
+            .toArray(CompletableFuture[]::new);
+
+        log.debug("deleting {} episodes of one patient", tombstones.length);
+        return CompletableFuture.allOf(tombstones)
+            .thenApply(done -> ResponseEntity.accepted().build());
+    }
+
+    private static boolean isId(JsonNode id) {
+        return id != null && (id.isTextual() || id.isNumber())
+            && StringUtils.hasText(id.asText());
     }
 
     /**
-     * Main entry for MTB file processing
+     * @param pid       patient pseudonym, or original patient ID if pseudonymization is disabled
+     * @param episodeId original episode ID
+     * @return record key of the MTB file of this episode, formatted like {@link #getKey}
+     */
+    private String keyOf(JsonNode pid, JsonNode episodeId) {
+        final var idHasher =
+            pseudonymizerService != null ? pseudonymizerService.getIdHasher() : null;
+        final var eid = idHasher != null
+            && idHasher.actionAt("episode", "id") == IdHasher.Action.HASH
+            ? TextNode.valueOf(idHasher.hash(episodeId.asText())) : episodeId;
+        return formatKey(pid.toString(), eid.toString());
+    }
+
+    /**
+     * Main entry for MTB file processing. The body is read from the request stream, decoded
+     * if it is sent with <code>Content-Encoding: gzip</code> or <code>zstd</code>, and rejected
+     * as soon as it exceeds <code>mtb2kafka.upload.maxBodySize</code>. If
+     * <code>mtb2kafka.mtbProducerOutput.async</code> is enabled, the servlet thread is released
+     * while waiting for the broker acknowledgement.
      *
-     * @param newMtbFile input data
+     * @param body            request body stream
+     * @param contentEncoding <code>Content-Encoding</code> of the body
+     * @return future completing with <code>202</code> once Kafka accepted the file
      * @throws JacksonException     if input is invalid json
      * @throws ExecutionException   produce data into kafka failed
      * @throws InterruptedException produce data into kafka failed
      * @throws KafkaProduceFailed   if produce to Kafka fails
+     * @throws IOException          if reading the request body fails
      */
     @PostMapping("/mtbfile")
-    @ResponseStatus(HttpStatus.ACCEPTED)
-    public void acceptMtbFile(@RequestBody String newMtbFile)
-        throws JacksonException, ExecutionException, InterruptedException, KafkaProduceFailed {
-        processMtbFile(newMtbFile);
+    public CompletableFuture<ResponseEntity<Void>> acceptMtbFile(InputStream body,
+        @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false)
+        String contentEncoding)
+        throws IOException, ExecutionException, InterruptedException, KafkaProduceFailed {
+
+        metrics.inFlight().incrementAndGet();
+        if (mtbProducer.isAsync()) {
+            try {
+                return produceAsync(toMtbRecord(body, contentEncoding))
+                    .whenComplete((accepted, e) -> metrics.inFlight().decrementAndGet())
+                    .thenApply(accepted -> ResponseEntity.accepted().build());
+            } catch (IOException | RuntimeException e) {
+                metrics.inFlight().decrementAndGet();
+                throw e;
+            }
+        }
+
+        try {
+            produce(toMtbRecord(body, contentEncoding));
+        } finally {
+            metrics.inFlight().decrementAndGet();
+        }
+        return CompletableFuture.completedFuture(ResponseEntity.accepted().build());
+    }
+
+    /**
+     * Bulk entry for MTB file processing. Accepts newline delimited JSON or a JSON array of MTB
+     * files. Documents are parsed one at a time from the request stream and produced as they
+     * arrive; at most <code>mtb2kafka.bulk.maxInFlight</code> documents wait for their broker
+     * acknowledgement at the same time. The body may be sent with
+     * <code>Content-Encoding: gzip</code> or <code>zstd</code>; its size is not limited.
+     *
+     * @param body            request body stream
+     * @param contentEncoding <code>Content-Encoding</code> of the body
+     * @return status per document, <code>202</code> if all documents were accepted, otherwise
+     * <code>207</code>
+     * @throws IOException if reading the request body fails
+     */
+    @PostMapping("/mtbfile/bulk")
+    public ResponseEntity<BulkReport> acceptMtbFileBulk(InputStream body,
+        @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false)
+        String contentEncoding) throws IOException {
+        final var report = new BulkReport();
+        final Deque<CompletableFuture<DocumentStatus>> pending = new ArrayDeque<>();
+
+        try (JsonParser parser = objectMapper.getFactory()
+            .createParser(UploadStream.open(body, contentEncoding, -1))) {
+            int index = 0;
+            int line = 1;
+            try {
+                var token = parser.nextToken();
+                if (token == JsonToken.START_ARRAY) {
+                    token = parser.nextToken();
+                }
+                while (token != null && token != JsonToken.END_ARRAY) {
+                    line = parser.getTokenLocation().getLineNr();
+                    final long start = parser.getTokenLocation().getByteOffset();
+                    final var parseSample = metrics.start(Stage.PARSE);
+                    final JsonNode jsonNode;
+                    try {
+                        jsonNode = objectMapper.readTree(parser);
+                    } finally {
+                        metrics.stop(parseSample, Stage.PARSE);
+                    }
+                    final long size = parser.getCurrentLocation().getByteOffset() - start;
+                    metrics.received(size);
+
+                    pending.add(processBulkDocument(jsonNode, size, index, line));
+                    if (pending.size() >= bulkMaxInFlight) {
+                        report.add(pending.poll().join());
+                    }
+
+                    index++;
+                    token = parser.nextToken();
+                }
+            } catch (JacksonException jsonException) {
+                log.error("JSON parsing of bulk upload failed at document {}.", index,
+                    jsonException);
+                metrics.failed(Failure.INVALID_JSON);
+                pending.add(CompletableFuture.completedFuture(
+                    new DocumentStatus(index, line, BulkReport.REJECTED,
+                        "invalid JSON, remaining upload skipped: "
+                            + jsonException.getOriginalMessage())));
+            } catch (InvalidContentEncoding encodingException) {
+                log.error("Decoding of bulk upload failed at document {}.", index,
+                    encodingException);
+                metrics.failed(Failure.INVALID_ENCODING);
+                pending.add(CompletableFuture.completedFuture(
+                    new DocumentStatus(index, line, BulkReport.REJECTED,
+                        "invalid Content-Encoding, remaining upload skipped: "
+                            + encodingException.getMessage())));
+            }
+        } finally {
+            while (!pending.isEmpty()) {
+                report.add(pending.poll().join());
+            }
+        }
 
+        log.debug("bulk upload done: {} accepted, {} not accepted", report.getAccepted(),
+            report.getFailed());
+        return ResponseEntity.status(
+                report.getFailed() == 0 ? HttpStatus.ACCEPTED : HttpStatus.MULTI_STATUS)
+            .body(report);
+    }
+
+    private CompletableFuture<DocumentStatus> processBulkDocument(JsonNode jsonNode, long size,
+        int index, int line) {
+        if (mtbProducer.exceedsMaxRequestSize(size)) {
+            metrics.failed(Failure.PAYLOAD_TOO_LARGE);
+            return CompletableFuture.completedFuture(
+                new DocumentStatus(index, line, BulkReport.REJECTED,
+                    "document exceeds maximum record size"));
+        }
+        final MtbRecord mtbRecord;
+        try {
+            mtbRecord = toMtbRecord(jsonNode);
+        } catch (PseudonymRequestFailed e) {
+            metrics.failed(Failure.GPAS_UNAVAILABLE);
+            return CompletableFuture.completedFuture(
+                new DocumentStatus(index, line, BulkReport.FAILED, "gPas not available"));
+        } catch (MtbFileInvalid e) {
+            metrics.failed(Failure.SCHEMA_VIOLATION);
+            final var first = e.getViolations().get(0);
+            return CompletableFuture.completedFuture(
+                new DocumentStatus(index, line, BulkReport.REJECTED,
+                    e.getMessage() + ", first: " + first.path() + " " + first.message()));
+        } catch (IllegalArgumentException e) {
+            metrics.failed(Failure.MISSING_KEY);
+            return CompletableFuture.completedFuture(
+                new DocumentStatus(index, line, BulkReport.REJECTED,
+                    "patient and episode id must be provided"));
+        } catch (JacksonException | RuntimeException e) {
+            log.error("Processing of bulk document {} failed.", index, e);
+            metrics.failed(Failure.INTERNAL);
+            return CompletableFuture.completedFuture(
+                new DocumentStatus(index, line, BulkReport.FAILED,
+                    e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+        }
+        if (mtbRecord.isUnchanged()) {
+            return CompletableFuture.completedFuture(
+                new DocumentStatus(index, line, BulkReport.UNCHANGED, null));
+        }
+
+        metrics.bulkInFlight().incrementAndGet();
+        final var ackSample = metrics.start(Stage.KAFKA_ACK);
+        final CompletableFuture<Boolean> sent;
+        try {
+            sent = send(mtbRecord);
+        } finally {
+            metrics.detach(ackSample);
+        }
+        return sent
+            .handle((kafkaHasAccepted, e) -> {
+                metrics.stop(ackSample, Stage.KAFKA_ACK);
+                metrics.bulkInFlight().decrementAndGet();
+                if (e == null && kafkaHasAccepted) {
+                    accepted(mtbRecord);
+                    return new DocumentStatus(index, line, BulkReport.ACCEPTED, null);
+                }
+                metrics.failed(Failure.KAFKA_UNAVAILABLE);
+                return new DocumentStatus(index, line, BulkReport.FAILED,
+                    "Kafka did not accept document");
+            });
     }
 
     protected boolean processMtbFile(String data)
         throws JacksonException, InterruptedException, ExecutionException, KafkaProduceFailed {
-        try {
-            var jsonNode = objectMapper.readTree(data);
+        return produce(toMtbRecord(data));
+    }
 
-            if (pseudonymizerService != null) {
-                pseudonymizerService.pseudonymizeMtb(jsonNode);
+    private boolean produce(MtbRecord mtbRecord)
+        throws InterruptedException, ExecutionException, KafkaProduceFailed {
+        try {
+            if (mtbRecord.isUnchanged()) {
+                return true;
             }
 
-            final String key = getKey(jsonNode);
-
-            var kafkaHasAccepted = mtbProducer.sendToKafka(key,
-                objectMapper.writeValueAsString(jsonNode));
+            final var ackSample = metrics.start(Stage.KAFKA_ACK);
+            final boolean kafkaHasAccepted;
+            try {
+                kafkaHasAccepted = mtbRecord.binaryValue() != null
+                    ? mtbProducer.sendToKafka(mtbRecord.key(), mtbRecord.binaryValue(),
+                        headers(mtbRecord))
+                    : mtbRecord.fingerprint() == null
+                    ? mtbProducer.sendToKafka(mtbRecord.key(), mtbRecord.value())
+                    : mtbProducer.sendToKafka(mtbRecord.key(), mtbRecord.value(),
+                        MtbFileDeduplicator.header(mtbRecord.fingerprint()));
+            } finally {
+                metrics.stop(ackSample, Stage.KAFKA_ACK);
+            }
 
             if (!kafkaHasAccepted) {
                 throw new KafkaProduceFailed("Kafka processing failed");
             }
-        } catch (JacksonException jsonException) {
-            log.error("JSON parsing failed. Please check file generation process.", jsonException);
-            throw jsonException;
+            accepted(mtbRecord);
         } catch (InterruptedException | ExecutionException e) {
             // Handle serialization errors
             log.error("failed send data to kafka", e);
@@ -112,8 +388,290 @@ public class RestForMtb {
         return true;
     }
 
+    /**
+     * Same as {@link #processMtbFile(String)}, but does not block until Kafka accepted the
+     * file. Parsing and pseudonymization errors are thrown directly, produce errors complete
+     * the returned future exceptionally with {@link KafkaProduceFailed}.
+     */
+    protected CompletableFuture<Boolean> processMtbFileAsync(String data)
+        throws JacksonException {
+        return produceAsync(toMtbRecord(data));
+    }
+
+    private CompletableFuture<Boolean> produceAsync(MtbRecord mtbRecord) {
+        if (mtbRecord.isUnchanged()) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        final var ackSample = metrics.start(Stage.KAFKA_ACK);
+        final CompletableFuture<Boolean> sent;
+        try {
+            sent = send(mtbRecord);
+        } finally {
+            metrics.detach(ackSample);
+        }
+        return sent
+            .whenComplete((kafkaHasAccepted, e) -> metrics.stop(ackSample, Stage.KAFKA_ACK))
+            .thenApply(kafkaHasAccepted -> {
+                if (!kafkaHasAccepted) {
+                    throw new CompletionException(
+                        new KafkaProduceFailed("Kafka processing failed"));
+                }
+                accepted(mtbRecord);
+                return true;
+            });
+    }
+
+    private CompletableFuture<Boolean> send(MtbRecord mtbRecord) {
+        if (mtbRecord.binaryValue() != null) {
+            return mtbProducer.sendToKafkaAsync(mtbRecord.key(), mtbRecord.binaryValue(),
+                headers(mtbRecord));
+        }
+        if (mtbRecord.fingerprint() == null) {
+            return mtbProducer.sendToKafkaAsync(mtbRecord.key(), mtbRecord.value());
+        }
+        return mtbProducer.sendToKafkaAsync(mtbRecord.key(), mtbRecord.value(),
+            MtbFileDeduplicator.header(mtbRecord.fingerprint()));
+    }
+
+    private static Header[] headers(MtbRecord mtbRecord) {
+        return mtbRecord.fingerprint() == null ? new Header[0]
+            : new Header[]{MtbFileDeduplicator.header(mtbRecord.fingerprint())};
+    }
+
+    /**
+     * Remember the fingerprint of a record Kafka accepted.
+     */
+    void accepted(MtbRecord mtbRecord) {
+        if (deduplicator != null && mtbRecord.fingerprint() != null) {
+            deduplicator.accepted(mtbRecord.key(), mtbRecord.fingerprint());
+        }
+    }
+
+    /**
+     * Fingerprint the received MTB file and look up the fingerprint last produced with its
+     * key. Only the patient pseudonym is resolved for the lookup.
+     *
+     * @param data     received MTB file, or <code>null</code> to use jsonNode
+     * @param jsonNode parsed MTB file
+     *
+     * @return lookup result, <code>null</code> if deduplication is disabled or the key is
+     * incomplete
+     */
+    private FingerprintLookup lookUpFingerprint(Body data, JsonNode jsonNode)
+        throws JacksonException {
+        if (deduplicator == null) {
+            return null;
+        }
+        final MtbFileDeduplicator.Fingerprint fingerprint;
+        final var sample = metrics.start(Stage.FINGERPRINT);
+        try (JsonParser parser = data != null ? data.parser(objectMapper.getFactory())
+            : jsonNode.traverse()) {
+            fingerprint = MtbFileDeduplicator.fingerprint(parser);
+        } catch (JacksonException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            metrics.stop(sample, Stage.FINGERPRINT);
+        }
+        if (fingerprint.patientId() == null || fingerprint.episodeId() == null) {
+            return null;
+        }
+
+        final var pid = pseudonymizerService != null
+            ? TextNode.valueOf(timedPseudonym(fingerprint.patientId().asText()))
+            : fingerprint.patientId();
+        final var key = keyOf(pid, fingerprint.episodeId());
+        final boolean unchanged = deduplicator.isUnchanged(key, fingerprint.hash());
+        if (unchanged) {
+            log.debug("MTB file unchanged, skipping it.");
+        }
+        return new FingerprintLookup(key, fingerprint.hash(), unchanged);
+    }
+
+    MtbRecord toMtbRecord(String data) throws JacksonException {
+        metrics.received(data);
+        if (mtbProducer.exceedsMaxRequestSize(data)) {
+            throw new MtbFileTooLarge(
+                "MTB file exceeds maximum record size. rejecting current data!");
+        }
+        try {
+            if (streamRewriter != null) {
+                return rewrite(new Body(data, null));
+            }
+            final var sample = metrics.start(Stage.PARSE);
+            final JsonNode jsonNode;
+            try {
+                jsonNode = objectMapper.readTree(data);
+            } finally {
+                metrics.stop(sample, Stage.PARSE);
+            }
+            return toMtbRecord(jsonNode);
+        } catch (JacksonException jsonException) {
+            log.error("JSON parsing failed. Please check file generation process.", jsonException);
+            throw jsonException;
+        }
+    }
+
+    /**
+     * Same as {@link #toMtbRecord(String)}, reading the MTB file from a request body. In
+     * streaming mode the decoded body is kept as UTF-8 bytes, otherwise it is parsed directly
+     * from the stream.
+     */
+    private MtbRecord toMtbRecord(InputStream body, String contentEncoding) throws IOException {
+        try (var upload = UploadStream.open(body, contentEncoding, maxBodySize)) {
+            if (streamRewriter != null) {
+                final byte[] data = upload.readAllBytes();
+                if (data.length == 0) {
+                    throw new IllegalArgumentException(
+                        "empty request body. rejecting current data!");
+                }
+                received(data.length);
+                return rewrite(new Body(null, data));
+            }
+            final var sample = metrics.start(Stage.PARSE);
+            final JsonNode jsonNode;
+            try {
+                jsonNode = objectMapper.readTree(upload);
+            } finally {
+                metrics.stop(sample, Stage.PARSE);
+            }
+            received(upload.count());
+            if (jsonNode.isMissingNode()) {
+                throw new IllegalArgumentException("empty request body. rejecting current data!");
+            }
+            return toMtbRecord(jsonNode);
+        } catch (JacksonException jsonException) {
+            log.error("JSON parsing failed. Please check file generation process.", jsonException);
+            throw jsonException;
+        }
+    }
+
+    private void received(long bytes) {
+        metrics.received(bytes);
+        if (mtbProducer.exceedsMaxRequestSize(bytes)) {
+            throw new MtbFileTooLarge(
+                "MTB file exceeds maximum record size. rejecting current data!");
+        }
+    }
+
+    /**
+     * Streaming mode: validate, fingerprint and rewrite the received MTB file without building
+     * a tree.
+     */
+    private MtbRecord rewrite(Body data) throws JacksonException {
+        if (validator != null) {
+            final var sample = metrics.start(Stage.VALIDATE);
+            try (JsonParser parser = data.parser(objectMapper.getFactory())) {
+                validator.validate(parser);
+            } catch (JacksonException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                metrics.stop(sample, Stage.VALIDATE);
+            }
+        }
+        final var lookup = lookUpFingerprint(data, null);
+        if (lookup != null && lookup.unchanged()) {
+            return new MtbRecord(lookup.key(), null, lookup.fingerprint());
+        }
+        final UnaryOperator<String> pseudonym =
+            pseudonymizerService != null ? this::timedPseudonym : null;
+        final var sample = metrics.start(Stage.REWRITE);
+        if (valueFormat != null) {
+            final MtbStreamRewriter.BinaryResult result;
+            try {
+                result = data.text() != null
+                    ? streamRewriter.rewrite(data.text(), pseudonym, valueFormat)
+                    : streamRewriter.rewrite(data.bytes(), pseudonym, valueFormat);
+            } finally {
+                metrics.stop(sample, Stage.REWRITE);
+            }
+            metrics.produced(result.value().length);
+            return new MtbRecord(formatKey(result.patientId(), result.episodeId()),
+                null, result.value(), lookup != null ? lookup.fingerprint() : null);
+        }
+        final MtbStreamRewriter.Result result;
+        try {
+            result = data.text() != null
+                ? streamRewriter.rewrite(data.text(), pseudonym)
+                : streamRewriter.rewrite(data.bytes(), pseudonym);
+        } finally {
+            metrics.stop(sample, Stage.REWRITE);
+        }
+        final var mtbRecord = new MtbRecord(
+            formatKey(result.patientId(), result.episodeId()), result.json(),
+            lookup != null ? lookup.fingerprint() : null);
+        metrics.produced(mtbRecord.value());
+        return mtbRecord;
+    }
+
+    private MtbRecord toMtbRecord(JsonNode jsonNode) throws JacksonException {
+        if (validator != null) {
+            final var sample = metrics.start(Stage.VALIDATE);
+            try {
+                validator.validate(jsonNode);
+            } finally {
+                metrics.stop(sample, Stage.VALIDATE);
+            }
+        }
+        final var lookup = lookUpFingerprint(null, jsonNode);
+        if (lookup != null && lookup.unchanged()) {
+            return new MtbRecord(lookup.key(), null, lookup.fingerprint());
+        }
+        if (pseudonymizerService != null) {
+            final var sample = metrics.start(Stage.PSEUDONYMIZE);
+            try {
+                pseudonymizerService.pseudonymizeMtb(jsonNode);
+            } finally {
+                metrics.stop(sample, Stage.PSEUDONYMIZE);
+            }
+        }
+
+        var sample = metrics.start(Stage.KEY);
+        final String key;
+        try {
+            key = getKey(jsonNode);
+        } finally {
+            metrics.stop(sample, Stage.KEY);
+        }
+
+        sample = metrics.start(Stage.SERIALIZE);
+        final var fingerprint = lookup != null ? lookup.fingerprint() : null;
+        if (valueFormat != null) {
+            final byte[] value;
+            try {
+                value = valueFormat.write(jsonNode);
+            } finally {
+                metrics.stop(sample, Stage.SERIALIZE);
+            }
+            metrics.produced(value.length);
+            return new MtbRecord(key, null, value, fingerprint);
+        }
+        final String value;
+        try {
+            value = objectMapper.writeValueAsString(jsonNode);
+        } finally {
+            metrics.stop(sample, Stage.SERIALIZE);
+        }
+        metrics.produced(value);
+
+        return new MtbRecord(key, value, fingerprint);
+    }
+
+    private String timedPseudonym(String original) {
+        final var sample = metrics.start(Stage.PSEUDONYMIZE);
+        try {
+            return pseudonymizerService.getPseudonym(original);
+        } finally {
+            metrics.stop(sample, Stage.PSEUDONYMIZE);
+        }
+    }
+
     @NotNull
-    private String getKey(JsonNode jsonNode) throws JsonProcessingException {
+    String getKey(JsonNode jsonNode) throws JsonProcessingException {
 
         if (!jsonNode.hasNonNull("patient") || !jsonNode.hasNonNull("episode")) {
             throw new IllegalArgumentException(
@@ -123,7 +681,63 @@ public class RestForMtb {
         var patientId = jsonNode.get("patient").get("id");
         var episodeId = jsonNode.get("episode").get("id");
 
-        return String.format("{\"pid\": %s, \"eid\":%s}", patientId, episodeId);
+        return formatKey(patientId == null ? null : patientId.toString(),
+            episodeId == null ? null : episodeId.toString());
+    }
+
+    /**
+     * @param patientId JSON value of patient ID
+     * @param episodeId JSON value of episode ID
+     * @return record key
+     */
+    static String formatKey(String patientId, String episodeId) {
+        return MtbKey.format(patientId, episodeId);
     }
 
+    /**
+     * Body of a delete request. IDs keep their JSON type, a numeric episode ID is matched
+     * against files with the same numeric ID.
+     *
+     * @param patientId  original patient ID
+     * @param episodeIds episode IDs of this patient
+     */
+    public record DeleteRequest(JsonNode patientId, List<JsonNode> episodeIds) {
+
+    }
+
+    /**
+     * @param value       serialized MTB file, <code>null</code> if it did not change since it
+     *                    was produced last or if it is produced in a binary format
+     * @param binaryValue MTB file in binary {@link MtbValueFormat}, <code>null</code> if
+     *                    unchanged or produced as JSON text
+     * @param fingerprint content fingerprint, <code>null</code> if deduplication is disabled
+     */
+    record MtbRecord(String key, String value, byte[] binaryValue, Long fingerprint) {
+
+        MtbRecord(String key, String value) {
+            this(key, value, null, null);
+        }
+
+        MtbRecord(String key, String value, Long fingerprint) {
+            this(key, value, null, fingerprint);
+        }
+
+        boolean isUnchanged() {
+            return value == null && binaryValue == null;
+        }
+    }
+
+    /**
+     * Received MTB file, either as text or as UTF-8 bytes read from the request body.
+     */
+    private record Body(String text, byte[] bytes) {
+
+        JsonParser parser(JsonFactory factory) throws IOException {
+            return text != null ? factory.createParser(text) : factory.createParser(bytes);
+        }
+    }
+
+    private record FingerprintLookup(String key, long fingerprint, boolean unchanged) {
+
+    }
 }
@@ -21,12 +21,22 @@
 package de.unimarburg.diz.mtbtokafka;
 
 import com.fasterxml.jackson.core.JacksonException;
+import de.unimarburg.diz.mtbtokafka.PipelineMetrics.Failure;
+import de.unimarburg.diz.mtbtokafka.exceptions.GpasOverloaded;
+import de.unimarburg.diz.mtbtokafka.exceptions.InvalidContentEncoding;
 import de.unimarburg.diz.mtbtokafka.exceptions.KafkaProduceFailed;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileTooLarge;
+import de.unimarburg.diz.mtbtokafka.exceptions.Overloaded;
 import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import de.unimarburg.diz.mtbtokafka.exceptions.RequestBodyTooLarge;
+import de.unimarburg.diz.mtbtokafka.exceptions.UnsupportedContentEncoding;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -39,8 +49,16 @@ import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExcep
 @ControllerAdvice
 public class RestResponseEntityExceptionHandler extends ResponseEntityExceptionHandler {
 
+    private final PipelineMetrics metrics;
+
+    public RestResponseEntityExceptionHandler(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @ExceptionHandler(value = {JacksonException.class, InterruptedException.class,
-        ExecutionException.class, KafkaProduceFailed.class, IllegalArgumentException.class,PseudonymRequestFailed.class})
+        ExecutionException.class, KafkaProduceFailed.class, IllegalArgumentException.class,PseudonymRequestFailed.class,
+        MtbFileTooLarge.class, Overloaded.class, MtbFileInvalid.class,
+        UnsupportedContentEncoding.class, InvalidContentEncoding.class})
     protected ResponseEntity<Object> handleInvalidContent(
         Exception ex, WebRequest request) {
 
@@ -54,14 +72,29 @@ public class RestResponseEntityExceptionHandler extends ResponseEntityExceptionH
             return handleMissingKeyElements(ex, request);
         } else if (ex instanceof KafkaProduceFailed) {
             return handleProduceToKafkaFaild(ex, request);
+        } else if (ex instanceof PseudonymRequestFailed
+            && ex.getCause() instanceof GpasOverloaded overloaded) {
+            return handleGpasOverloaded(overloaded, request);
         } else if (ex instanceof PseudonymRequestFailed) {
             return handleGpasNoConnection(ex, request);
+        } else if (ex instanceof MtbFileTooLarge) {
+            return handlePayloadTooLarge(ex, request);
+        } else if (ex instanceof Overloaded overloaded) {
+            return handleOverloaded(overloaded, request);
+        } else if (ex instanceof MtbFileInvalid invalid) {
+            return handleSchemaViolation(invalid, request);
+        } else if (ex instanceof UnsupportedContentEncoding) {
+            return handleUnsupportedEncoding(ex, request);
+        } else if (ex instanceof InvalidContentEncoding) {
+            return handleInvalidEncoding(ex, request);
         }
+        metrics.failed(Failure.INTERNAL);
         return handleExceptionInternal(ex, "unknown",
             new HttpHeaders(), HttpStatus.INTERNAL_SERVER_ERROR, request);
     }
 
     private ResponseEntity<Object> handleGpasNoConnection(Exception ex, WebRequest request) {
+        metrics.failed(Failure.GPAS_UNAVAILABLE);
         var bodyOfResponse = "Could not process, could not connet to gPas. Check configuration "
             + "'mtb2kafka.pseudonym.gPasUrl' and if gPas can be reached from this instance.";
 
@@ -70,13 +103,79 @@ public class RestResponseEntityExceptionHandler extends ResponseEntityExceptionH
     }
 
     private ResponseEntity<Object> handleProduceToKafkaFaild(Exception ex, WebRequest request) {
+        metrics.failed(Failure.KAFKA_UNAVAILABLE);
         var bodyOfResponse = "Could not process, since Kafka was not reachable or did not accept last method. Try again.";
 
         return handleExceptionInternal(ex, bodyOfResponse,
             new HttpHeaders(), HttpStatus.SERVICE_UNAVAILABLE, request);
     }
 
+    private ResponseEntity<Object> handlePayloadTooLarge(Exception ex, WebRequest request) {
+        metrics.failed(Failure.PAYLOAD_TOO_LARGE);
+        var bodyOfResponse = ex instanceof RequestBodyTooLarge
+            ? "MTB file will not be accepted - it exceeds the maximum body size "
+                + "configured in 'mtb2kafka.upload.maxBodySize'."
+            : "MTB file will not be accepted - it exceeds the maximum record size "
+                + "configured in 'mtb2kafka.mtbProducerOutput.maxRequestSize'.";
+
+        return handleExceptionInternal(ex, bodyOfResponse,
+            new HttpHeaders(), HttpStatus.PAYLOAD_TOO_LARGE, request);
+    }
+
+    private ResponseEntity<Object> handleUnsupportedEncoding(Exception ex, WebRequest request) {
+        metrics.failed(Failure.UNSUPPORTED_ENCODING);
+        var bodyOfResponse = ex.getMessage();
+
+        return handleExceptionInternal(ex, bodyOfResponse,
+            new HttpHeaders(), HttpStatus.UNSUPPORTED_MEDIA_TYPE, request);
+    }
+
+    private ResponseEntity<Object> handleInvalidEncoding(Exception ex, WebRequest request) {
+        metrics.failed(Failure.INVALID_ENCODING);
+        var bodyOfResponse = "Request body could not be decoded, check that it is compressed "
+            + "as declared in 'Content-Encoding'.";
+
+        return handleExceptionInternal(ex, bodyOfResponse,
+            new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
+    }
+
+    private ResponseEntity<Object> handleOverloaded(Overloaded ex, WebRequest request) {
+        metrics.failed(Failure.OVERLOADED);
+        var bodyOfResponse = "Too many MTB files in process. Try again later.";
+
+        var header = new HttpHeaders();
+        header.add(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter().toSeconds()));
+
+        return handleExceptionInternal(ex, bodyOfResponse, header,
+            ex.isQueueFull() ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE,
+            request);
+    }
+
+    private ResponseEntity<Object> handleGpasOverloaded(GpasOverloaded ex, WebRequest request) {
+        metrics.failed(Failure.OVERLOADED);
+        var bodyOfResponse = "Too many concurrent gPas requests. Try again later.";
+
+        var header = new HttpHeaders();
+        header.add(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfter().toSeconds()));
+
+        return handleExceptionInternal(ex, bodyOfResponse, header,
+            HttpStatus.SERVICE_UNAVAILABLE, request);
+    }
+
+    private ResponseEntity<Object> handleSchemaViolation(MtbFileInvalid ex,
+        WebRequest request) {
+        metrics.failed(Failure.SCHEMA_VIOLATION);
+        var bodyOfResponse = Map.of("error", ex.getMessage(), "violations", ex.getViolations());
+
+        var header = new HttpHeaders();
+        header.setContentType(MediaType.APPLICATION_JSON);
+
+        return handleExceptionInternal(ex, bodyOfResponse, header, HttpStatus.BAD_REQUEST,
+            request);
+    }
+
     private ResponseEntity<Object> handleMissingKeyElements(Exception ex, WebRequest request) {
+        metrics.failed(Failure.MISSING_KEY);
         var bodyOfResponse = "MTB file will not be accepted - key elements 'patient id' or 'episode id' are missing.";
 
         return handleExceptionInternal(ex, bodyOfResponse,
@@ -86,6 +185,7 @@ public class RestResponseEntityExceptionHandler extends ResponseEntityExceptionH
     @Nullable
     private ResponseEntity<Object> handleMediaNotSupported(JacksonException ex,
         WebRequest request) {
+        metrics.failed(Failure.INVALID_JSON);
         var bodyOfResponse = "Please check sent document. "
             + "It may be invalid JSON or identifying MTB properties are missing.";
 
@@ -96,6 +196,7 @@ public class RestResponseEntityExceptionHandler extends ResponseEntityExceptionH
 
     protected ResponseEntity<Object> handleInternalError(
         Exception ex, WebRequest request) {
+        metrics.failed(Failure.INTERNAL);
 
         var bodyOfResponse = "Internal error occurred or Kafka is currently not available. "
             + "Date processing failed. If this persists, please contact support.";
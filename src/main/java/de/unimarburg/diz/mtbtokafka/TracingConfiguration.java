@@ -0,0 +1,66 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.observation.ObservationPredicate;
+import io.opentelemetry.exporter.otlp.http.trace.OtlpHttpSpanExporter;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Traces are recorded by the Micrometer OpenTelemetry bridge, see
+ * <code>management.tracing</code>. Observations of this service are
+ * <ul>
+ *     <li><code>mtb2kafka.stage</code> - one per {@link PipelineMetrics.Stage} of a file</li>
+ *     <li><code>mtb2kafka.gpas.request</code> - a gPas request including its retries, each
+ *     attempt is a <code>http.client.requests</code> child</li>
+ *     <li><code>mtb2kafka.kafka.send</code> - a record until the broker acknowledged it, its
+ *     trace context is sent as record header <code>traceparent</code></li>
+ * </ul>
+ */
+@Configuration
+public class TracingConfiguration {
+
+    private final Logger log = LoggerFactory.getLogger(TracingConfiguration.class);
+
+    /**
+     * Skips the observations of this service unless <code>mtb2kafka.tracing.enabled</code>,
+     * so they cost nothing if disabled.
+     */
+    @Bean
+    @ConditionalOnProperty(value = "mtb2kafka.tracing.enabled", havingValue = "false",
+        matchIfMissing = true)
+    public ObservationPredicate mtbObservationsDisabled() {
+        return (name, context) -> !name.startsWith("mtb2kafka.");
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "mtb2kafka.tracing.otlp.endpoint")
+    public SpanExporter otlpSpanExporter(
+        @Value("${mtb2kafka.tracing.otlp.endpoint}") String endpoint) {
+        log.info("Exporting spans to {}.", endpoint);
+        return OtlpHttpSpanExporter.builder().setEndpoint(endpoint).build();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import com.github.luben.zstd.ZstdInputStream;
+import de.unimarburg.diz.mtbtokafka.exceptions.InvalidContentEncoding;
+import de.unimarburg.diz.mtbtokafka.exceptions.RequestBodyTooLarge;
+import de.unimarburg.diz.mtbtokafka.exceptions.UnsupportedContentEncoding;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Request body decoded according to its <code>Content-Encoding</code>. Counts the decoded
+ * bytes and fails with {@link RequestBodyTooLarge} as soon as they exceed the limit, so neither
+ * large uploads nor highly compressed ones are buffered before they are rejected. Data which
+ * can not be decoded fails with {@link InvalidContentEncoding}, while failures reading the raw
+ * body are passed on unchanged.
+ */
+final class UploadStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final long maxBytes;
+    private final String contentEncoding;
+    private long count;
+    private long mark;
+
+    private UploadStream(InputStream decoded, long maxBytes, String contentEncoding) {
+        super(decoded);
+        this.maxBytes = maxBytes;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @param body            raw request body
+     * @param contentEncoding value of the <code>Content-Encoding</code> header, may be
+     *                        <code>null</code>; encodings are listed in the order they were
+     *                        applied
+     * @param maxBytes        maximum decoded size, <code>-1</code> for no limit
+     * @throws UnsupportedContentEncoding if an encoding is neither <code>gzip</code>,
+     *                                    <code>zstd</code> nor <code>identity</code>
+     * @throws InvalidContentEncoding     if the body does not start with data of its encoding
+     */
+    static UploadStream open(InputStream body, String contentEncoding, long maxBytes)
+        throws IOException {
+        if (contentEncoding == null) {
+            return new UploadStream(body, maxBytes, null);
+        }
+        InputStream decoded = new RawBody(body);
+        final var encodings = contentEncoding.split(",");
+        try {
+            for (int i = encodings.length - 1; i >= 0; i--) {
+                decoded = decode(decoded, encodings[i].trim().toLowerCase(Locale.ROOT));
+            }
+        } catch (IOException e) {
+            throw decodingFailed(e, contentEncoding);
+        }
+        return new UploadStream(decoded, maxBytes, contentEncoding);
+    }
+
+    /**
+     * @return failure reading the raw body
+     * @throws InvalidContentEncoding if decoding failed
+     */
+    private static IOException decodingFailed(IOException e, String contentEncoding) {
+        if (e instanceof RawBodyFailed failed) {
+            return failed.getCause();
+        }
+        if (contentEncoding == null) {
+            return e;
+        }
+        throw new InvalidContentEncoding("request body is no valid '" + contentEncoding
+            + "' data: " + e.getMessage(), e);
+    }
+
+    private static InputStream decode(InputStream in, String encoding) throws IOException {
+        return switch (encoding) {
+            case "", "identity" -> in;
+            case "gzip", "x-gzip" -> new GZIPInputStream(in, BUFFER_SIZE);
+            case "zstd" -> new ZstdInputStream(in);
+            default -> throw new UnsupportedContentEncoding(
+                "Content-Encoding '" + encoding + "' is not supported, use gzip or zstd.");
+        };
+    }
+
+    /**
+     * @return number of decoded bytes read so far
+     */
+    long count() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b;
+        try {
+            b = super.read();
+        } catch (IOException e) {
+            throw decodingFailed(e, contentEncoding);
+        }
+        if (b >= 0) {
+            counted(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int read;
+        try {
+            read = super.read(b, off, len);
+        } catch (IOException e) {
+            throw decodingFailed(e, contentEncoding);
+        }
+        if (read > 0) {
+            counted(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped;
+        try {
+            skipped = super.skip(n);
+        } catch (IOException e) {
+            throw decodingFailed(e, contentEncoding);
+        }
+        counted(skipped);
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        super.mark(readLimit);
+        mark = count;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        count = mark;
+    }
+
+    private void counted(long bytes) {
+        count += bytes;
+        if (maxBytes >= 0 && count > maxBytes) {
+            throw new RequestBodyTooLarge(
+                "request body exceeds " + maxBytes + " bytes. rejecting current data!");
+        }
+    }
+
+    /**
+     * Raw request body, marks its read failures to tell them apart from decoding failures.
+     */
+    private static final class RawBody extends FilterInputStream {
+
+        private RawBody(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw new RawBodyFailed(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw new RawBodyFailed(e);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                return super.skip(n);
+            } catch (IOException e) {
+                throw new RawBodyFailed(e);
+            }
+        }
+    }
+
+    private static final class RawBodyFailed extends IOException {
+
+        private RawBodyFailed(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
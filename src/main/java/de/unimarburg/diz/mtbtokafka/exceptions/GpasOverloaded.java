@@ -0,0 +1,45 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka.exceptions;
+
+import java.time.Duration;
+import org.springframework.web.client.RestClientException;
+
+/**
+ * If a gPas request is not sent since this instance already has the maximum number of
+ * concurrent gPas requests in flight. gPas itself did not fail, so the request is neither
+ * retried nor counted by the circuit breaker.
+ */
+public class GpasOverloaded extends RestClientException {
+
+    private final Duration retryAfter;
+
+    /**
+     * @param retryAfter estimated time until a request would get a permit
+     */
+    public GpasOverloaded(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -27,4 +27,8 @@ public class KafkaProduceFailed extends IOException {
     public KafkaProduceFailed(String kafkaProcessingFailed) {
         super(kafkaProcessingFailed);
     }
+
+    public KafkaProduceFailed(String kafkaProcessingFailed, Throwable cause) {
+        super(kafkaProcessingFailed, cause);
+    }
 }
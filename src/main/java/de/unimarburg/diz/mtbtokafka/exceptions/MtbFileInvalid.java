@@ -0,0 +1,49 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka.exceptions;
+
+import java.util.List;
+
+/**
+ * If MTB file does not match the configured JSON schema
+ */
+public class MtbFileInvalid extends RuntimeException {
+
+    /**
+     * @param path     JSON path of the invalid value, e.g. <code>$.diagnoses[1].id</code>
+     * @param rule     schema keyword, e.g. <code>required</code>
+     * @param location JSON pointer of the keyword in the schema
+     * @param message  description of the violation
+     */
+    public record Violation(String path, String rule, String location, String message) {
+
+    }
+
+    private final List<Violation> violations;
+
+    public MtbFileInvalid(String message, List<Violation> violations) {
+        super(message);
+        this.violations = List.copyOf(violations);
+    }
+
+    public List<Violation> getViolations() {
+        return violations;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka.exceptions;
+
+import java.time.Duration;
+
+/**
+ * If a request is not admitted since too many MTB files are in process
+ */
+public class Overloaded extends RuntimeException {
+
+    private final boolean queueFull;
+    private final Duration retryAfter;
+
+    /**
+     * @param queueFull  <code>true</code> if the request was rejected without waiting,
+     *                   <code>false</code> if it waited too long
+     * @param retryAfter estimated time until the request would be admitted
+     */
+    public Overloaded(String message, boolean queueFull, Duration retryAfter) {
+        super(message);
+        this.queueFull = queueFull;
+        this.retryAfter = retryAfter;
+    }
+
+    public boolean isQueueFull() {
+        return queueFull;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.Overloaded;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
+
+public class AdmissionControlTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void admit_limits_files_and_bytes() {
+        var fixture = newAdmissionControl(2, 0, Duration.ZERO);
+
+        var large = fixture.admit(DataSize.ofKilobytes(2).toBytes());
+        assertThrows(Overloaded.class, () -> fixture.admit(1));
+        large.close();
+
+        var first = fixture.admit(400);
+        var second = fixture.admit(400);
+        assertThat(fixture.inFlightBytes()).isEqualTo(800);
+        var overloaded = assertThrows(Overloaded.class, () -> fixture.admit(1));
+        assertThat(overloaded.isQueueFull()).isTrue();
+
+        first.close();
+        first.close();
+        assertThat(fixture.inFlight()).isEqualTo(1);
+        second.close();
+        assertThat(fixture.inFlightBytes()).isZero();
+        assertThat(registry.get("mtb2kafka.admission.requests").tag("result", "admitted")
+            .counter().count()).isEqualTo(3);
+    }
+
+    @Test
+    public void admit_waiting_requests_in_order() throws Exception {
+        var fixture = newAdmissionControl(1, 5, Duration.ofSeconds(5));
+        List<Integer> admitted = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            var permit = fixture.admit(0);
+            Future<?>[] waiting = new Future<?>[3];
+            for (int i = 0; i < waiting.length; i++) {
+                final int position = i;
+                waiting[i] = executor.submit(() -> {
+                    try (var ignored = fixture.admit(0)) {
+                        admitted.add(position);
+                    }
+                });
+                awaitQueueLength(fixture, i + 1);
+            }
+            permit.close();
+            for (var future : waiting) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(admitted).containsExactly(0, 1, 2);
+        assertThat(fixture.inFlight()).isZero();
+        assertThat(fixture.queueLength()).isZero();
+    }
+
+    @Test
+    public void admit_timeout_is_answered_with_service_unavailable() {
+        var fixture = newAdmissionControl(1, 1, Duration.ofMillis(50));
+        var permit = fixture.admit(0);
+
+        var overloaded = assertThrows(Overloaded.class, () -> fixture.admit(0));
+        permit.close();
+
+        assertThat(overloaded.isQueueFull()).isFalse();
+        assertThat(fixture.queueLength()).isZero();
+        var response = new RestResponseEntityExceptionHandler(new PipelineMetrics(registry))
+            .handleInvalidContent(overloaded,
+                new ServletWebRequest(new MockHttpServletRequest()));
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+        assertThat(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+    }
+
+    @Test
+    public void interceptor_releases_permit_after_completion() {
+        var fixture = newAdmissionControl(1, 0, Duration.ZERO);
+        var request = new MockHttpServletRequest("POST", "/mtbfile");
+        request.setContent(new byte[100]);
+        var response = new MockHttpServletResponse();
+
+        fixture.preHandle(request, response, null);
+        assertThat(fixture.inFlightBytes()).isEqualTo(100);
+        assertThrows(Overloaded.class, () -> fixture.preHandle(
+            new MockHttpServletRequest("POST", "/mtbfile"), response, null));
+        fixture.preHandle(new MockHttpServletRequest("DELETE", "/mtbfile"), response, null);
+
+        fixture.afterCompletion(request, response, null, null);
+        assertThat(fixture.inFlight()).isZero();
+    }
+
+    private AdmissionControl newAdmissionControl(int maxInFlight, int maxQueueLength,
+        Duration maxQueueWait) {
+        return new AdmissionControl(maxInFlight, DataSize.ofKilobytes(1), maxQueueLength,
+            maxQueueWait, registry);
+    }
+
+    private static void awaitQueueLength(AdmissionControl fixture, int length)
+        throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (fixture.queueLength() < length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(fixture.queueLength()).isEqualTo(length);
+    }
+}
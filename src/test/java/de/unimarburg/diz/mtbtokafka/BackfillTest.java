@@ -0,0 +1,217 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static de.unimarburg.diz.mtbtokafka.RestForMtbBuilder.restForMtb;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+public class BackfillTest {
+
+    private final List<String> sent = new ArrayList<>();
+
+    @Test
+    public void files_of_a_patient_are_produced_in_order(@TempDir Path dir) throws Exception {
+        final var source = Files.createDirectory(dir.resolve("mtb"));
+        for (int patient = 0; patient < 3; patient++) {
+            for (int episode = 0; episode < 5; episode++) {
+                Files.writeString(source.resolve("p" + patient + "-e" + episode + ".json"),
+                    mtbFile("p" + patient, "e" + episode));
+            }
+        }
+        Files.writeString(source.resolve("readme.txt"), "not an MTB file");
+
+        assertThat(newBackfill(dir, key -> true).run(source)).isTrue();
+
+        assertThat(sent).hasSize(15);
+        for (int patient = 0; patient < 3; patient++) {
+            final var prefix = "{\"pid\": \"p" + patient + "\"";
+            assertThat(sent.stream().filter(key -> key.startsWith(prefix)))
+                .containsExactly(key(patient, 0), key(patient, 1), key(patient, 2),
+                    key(patient, 3), key(patient, 4));
+        }
+    }
+
+    @Test
+    public void tar_entries_are_produced_and_invalid_files_listed(@TempDir Path dir)
+        throws Exception {
+        final Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("mtb/p0-e0.json", mtbFile("p0", "e0"));
+        entries.put("mtb/invalid.json", "{\"patient\": ");
+        entries.put("mtb/readme.txt", "not an MTB file");
+        entries.put("mtb/" + "long-name-".repeat(12) + ".json", mtbFile("p1", "e0"));
+        final var tar = dir.resolve("mtb.tar");
+        Files.write(tar, tar(entries));
+
+        assertThat(newBackfill(dir, key -> true).run(tar)).isTrue();
+
+        assertThat(sent).containsExactlyInAnyOrder(key(0, 0), key(1, 0));
+        assertThat(Files.readString(dir.resolve("backfill.checkpoint.failed")))
+            .startsWith("1\tmtb/invalid.json\t");
+    }
+
+    @Test
+    public void stopped_backfill_is_resumed_without_producing_twice(@TempDir Path dir)
+        throws Exception {
+        final var source = Files.createDirectory(dir.resolve("mtb"));
+        for (int patient = 0; patient < 4; patient++) {
+            for (int episode = 0; episode < 10; episode++) {
+                Files.writeString(source.resolve("p" + patient + "-e" + episode + ".json"),
+                    mtbFile("p" + patient, "e" + episode));
+            }
+        }
+
+        // patient 2 can not be produced
+        assertThat(newBackfill(dir, key -> !key.startsWith("{\"pid\": \"p2\"")).run(source))
+            .isFalse();
+        assertThat(sent).doesNotContain(key(2, 0));
+
+        assertThat(newBackfill(dir, key -> true).run(source)).isTrue();
+        assertThat(sent).hasSize(40).doesNotHaveDuplicates();
+    }
+
+    @Test
+    public void backfill_is_not_resumed_if_source_changed(@TempDir Path dir) throws Exception {
+        final var source = Files.createDirectory(dir.resolve("mtb"));
+        for (int patient = 0; patient < 4; patient++) {
+            Files.writeString(source.resolve("p" + patient + "-e0.json"),
+                mtbFile("p" + patient, "e0"));
+        }
+        assertThat(newBackfill(dir, key -> true).run(source)).isTrue();
+        final var checkpoint = Files.readString(dir.resolve("backfill.checkpoint"));
+        sent.clear();
+
+        // sorts before the completed files, all of them move one position
+        Files.writeString(source.resolve("a-e0.json"), mtbFile("a", "e0"));
+
+        final var backfill = newBackfill(dir, key -> true);
+        assertThatThrownBy(() -> backfill.run(source))
+            .isInstanceOf(IllegalStateException.class).hasMessageContaining("changed");
+        assertThat(sent).isEmpty();
+        assertThat(Files.readString(dir.resolve("backfill.checkpoint"))).isEqualTo(checkpoint);
+    }
+
+    @Test
+    public void file_without_patient_id_is_listed_and_backfill_continues(@TempDir Path dir)
+        throws Exception {
+        final var source = Files.createDirectory(dir.resolve("mtb"));
+        Files.writeString(source.resolve("a.json"), "{\"episode\": {\"id\": \"e0\"}}");
+        Files.writeString(source.resolve("b.json"), mtbFile("p0", "e0"));
+
+        try (var gpas = new GpasStub()) {
+            final var pseudonymizer = PseudonymizerServiceBuilder.pseudonymizer(gpas.baseUrl())
+                .build();
+            assertThat(newBackfill(dir, key -> true, pseudonymizer).run(source)).isTrue();
+        }
+
+        assertThat(sent).containsExactly(MtbKey.format(
+            "\"" + GpasStub.pseudonymOf("p0") + "\"", "\"e0\""));
+        assertThat(Files.readString(dir.resolve("backfill.checkpoint.failed")))
+            .startsWith("0\ta.json\t");
+    }
+
+    private Backfill newBackfill(Path dir, Predicate<String> accepted) throws Exception {
+        return newBackfill(dir, accepted, null);
+    }
+
+    /**
+     * @param pseudonymizer <code>null</code> to keep patient IDs
+     */
+    private Backfill newBackfill(Path dir, Predicate<String> accepted,
+        PseudonymizerService pseudonymizer) throws Exception {
+        final var producer = Mockito.mock(MtbProducer.class);
+        Mockito.when(producer.sendToKafka(Mockito.anyString(), Mockito.anyString()))
+            .thenAnswer(invocation -> {
+                final String key = invocation.getArgument(0);
+                if (!accepted.test(key)) {
+                    return false;
+                }
+                Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                synchronized (sent) {
+                    sent.add(key);
+                }
+                return true;
+            });
+        final var registry = new SimpleMeterRegistry();
+        final var restForMtb = restForMtb(producer).metrics(new PipelineMetrics(registry))
+            .pseudonymizer(pseudonymizer).build();
+        return new Backfill(restForMtb, "", 4, 2, dir.resolve("backfill.checkpoint").toString(),
+            Duration.ofMillis(1), 1, Duration.ZERO, registry);
+    }
+
+    private static String mtbFile(String patientId, String episodeId) {
+        return "{\"patient\": {\"id\": \"" + patientId + "\"}, \"episode\": {\"id\": \""
+            + episodeId + "\", \"patient\": \"" + patientId + "\"}}";
+    }
+
+    private static String key(int patient, int episode) {
+        return MtbKey.format("\"p" + patient + "\"", "\"e" + episode + "\"");
+    }
+
+    /**
+     * @return ustar archive, names longer than 100 characters as GNU long name entries
+     */
+    private static byte[] tar(Map<String, String> entries) throws IOException {
+        final var out = new ByteArrayOutputStream();
+        for (var entry : entries.entrySet()) {
+            final var name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 100) {
+                writeEntry(out, "././@LongLink", 'L', name);
+            }
+            writeEntry(out, entry.getKey(), '0',
+                entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(new byte[1024]);
+        return out.toByteArray();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, String name, char type,
+        byte[] content) throws IOException {
+        final var header = new byte[512];
+        final var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+        final var size = String.format("%011o", content.length)
+            .getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(size, 0, header, 124, size.length);
+        header[156] = (byte) type;
+        System.arraycopy("ustar".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 5);
+        out.write(header);
+        out.write(content);
+        out.write(new byte[(512 - content.length % 512) % 512]);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+public class ClaimCheckTest {
+
+    @Test
+    public void check_small_file_is_inline(@TempDir Path dir) throws Exception {
+        var fixture = new ClaimCheck(DataSize.ofKilobytes(1),
+            new FileSystemBlobStore(dir.toString()), new SimpleMeterRegistry());
+
+        assertThat(fixture.check("ä".repeat(512))).isNull();
+        try (var files = Files.list(dir)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    public void check_large_file_is_stored_once(@TempDir Path dir) throws Exception {
+        var blobStore = new FileSystemBlobStore(dir.toString());
+        var registry = new SimpleMeterRegistry();
+        var fixture = new ClaimCheck(DataSize.ofKilobytes(1), blobStore, registry);
+        var data = "{\"content\":\"" + "x".repeat(2048) + "\"}";
+
+        var reference = fixture.check(data);
+        assertThat(fixture.check(data).value()).isEqualTo(reference.value());
+
+        var claimCheck = new ObjectMapper().readTree(reference.value()).get("claimCheck");
+        var content = blobStore.get(URI.create(claimCheck.get("location").asText()));
+        assertThat(new String(content, StandardCharsets.UTF_8)).isEqualTo(data);
+        assertThat(claimCheck.get("size").asInt()).isEqualTo(content.length);
+        assertThat(claimCheck.get("sha256").asText()).isEqualTo(HexFormat.of()
+            .formatHex(MessageDigest.getInstance("SHA-256").digest(content)));
+        assertThat(new String(reference.header().value(), StandardCharsets.UTF_8))
+            .isEqualTo(claimCheck.get("location").asText());
+        try (var files = Files.list(dir)) {
+            assertThat(files).hasSize(1);
+        }
+        assertThat(registry.get("mtb2kafka.claimcheck.stored").summary().count())
+            .isEqualTo(2);
+    }
+
+    @Test
+    public void get_outside_of_directory_is_rejected(@TempDir Path dir) throws Exception {
+        var blobStore = new FileSystemBlobStore(dir.resolve("blobs").toString());
+
+        assertThrows(IllegalArgumentException.class,
+            () -> blobStore.get(dir.resolve("other.json").toUri()));
+        assertThrows(IllegalArgumentException.class,
+            () -> blobStore.put("../other.json", new byte[0]));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.unimarburg.diz.mtbtokafka.GpasCircuitBreaker.State;
+import java.time.Clock;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+
+public class GpasCircuitBreakerTest {
+
+    @Test
+    public void opens_once_failure_rate_reached() {
+        var fixture = new GpasCircuitBreaker(50, 10, 4, Duration.ofSeconds(30), 2,
+            Clock.systemUTC());
+
+        fixture.onSuccess();
+        fixture.onError();
+        fixture.onSuccess();
+        assertThat(fixture.getState()).isEqualTo(State.CLOSED);
+
+        fixture.onError();
+
+        assertThat(fixture.getState()).isEqualTo(State.OPEN);
+        assertThat(fixture.tryAcquirePermission()).isFalse();
+        assertThat(fixture.health().getStatus()).isEqualTo(Status.UP);
+        assertThat(fixture.health().getDetails()).containsEntry("state", State.OPEN);
+    }
+
+    @Test
+    public void half_open_failure_reopens_and_success_closes() {
+        var clock = new MutableClock();
+        var fixture = new GpasCircuitBreaker(50, 2, 2, Duration.ofSeconds(30), 2, clock);
+        fixture.onError();
+        fixture.onError();
+
+        clock.advance(Duration.ofSeconds(31));
+        assertThat(fixture.tryAcquirePermission()).isTrue();
+        assertThat(fixture.getState()).isEqualTo(State.HALF_OPEN);
+        fixture.onError();
+        assertThat(fixture.getState()).isEqualTo(State.OPEN);
+
+        clock.advance(Duration.ofSeconds(31));
+        assertThat(fixture.tryAcquirePermission()).isTrue();
+        assertThat(fixture.tryAcquirePermission()).isTrue();
+        assertThat(fixture.tryAcquirePermission()).isFalse();
+        fixture.onSuccess();
+        fixture.onSuccess();
+
+        assertThat(fixture.getState()).isEqualTo(State.CLOSED);
+        assertThat(fixture.health().getStatus()).isEqualTo(Status.UP);
+    }
+
+    @Test
+    public void released_permission_frees_half_open_probe() {
+        var clock = new MutableClock();
+        var fixture = new GpasCircuitBreaker(50, 2, 2, Duration.ofSeconds(30), 1, clock);
+        fixture.onError();
+        fixture.onError();
+        clock.advance(Duration.ofSeconds(31));
+
+        assertThat(fixture.tryAcquirePermission()).isTrue();
+        assertThat(fixture.tryAcquirePermission()).isFalse();
+        fixture.releasePermission();
+
+        assertThat(fixture.getState()).isEqualTo(State.HALF_OPEN);
+        assertThat(fixture.tryAcquirePermission()).isTrue();
+    }
+}
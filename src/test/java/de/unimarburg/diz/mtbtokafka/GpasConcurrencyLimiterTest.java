@@ -0,0 +1,165 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.GpasOverloaded;
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+
+public class GpasConcurrencyLimiterTest {
+
+    @Test
+    public void intercept_limits_concurrent_requests() throws Exception {
+        var fixture = new GpasConcurrencyLimiter(2, Duration.ofSeconds(5));
+        var concurrent = new AtomicInteger();
+        var maxConcurrent = new AtomicInteger();
+        ClientHttpRequestExecution execution = (request, body) -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrent.decrementAndGet();
+            return Mockito.mock(ClientHttpResponse.class);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ClientHttpResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(executor.submit(() -> {
+                    // closed by RestTemplate after reading the body
+                    try (var response = fixture.intercept(null, new byte[0], execution)) {
+                        return response;
+                    }
+                }));
+            }
+            for (var response : responses) {
+                assertThat(response.get(5, TimeUnit.SECONDS)).isNotNull();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(maxConcurrent.get()).isEqualTo(2);
+        assertThat(fixture.inFlight()).isZero();
+    }
+
+    @Test
+    public void intercept_rejects_after_max_wait() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var fixture = new GpasConcurrencyLimiter(1, Duration.ofMillis(50));
+        fixture.bindTo(registry);
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> fixture.intercept(null, new byte[0], (request, body) -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Mockito.mock(ClientHttpResponse.class);
+            }));
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+            var rejected = assertThrows(GpasOverloaded.class, () -> fixture.intercept(null,
+                new byte[0], (request, body) -> Mockito.mock(ClientHttpResponse.class)));
+            assertThat(rejected.getRetryAfter()).isEqualTo(Duration.ofSeconds(1));
+            var response = new RestResponseEntityExceptionHandler(new PipelineMetrics(registry))
+                .handleInvalidContent(new PseudonymRequestFailed("limit reached", rejected),
+                    new ServletWebRequest(new MockHttpServletRequest()));
+            assertThat(response.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+            assertThat(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+            assertThat(registry.get("mtb2kafka.pipeline.failures").tag("cause", "overloaded")
+                .counter().count()).isEqualTo(1);
+            assertThat(registry.get("mtb2kafka.gpas.requests.inflight").gauge().value())
+                .isEqualTo(1);
+            assertThat(registry.get("mtb2kafka.gpas.requests.rejected").counter().count())
+                .isEqualTo(1);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void permit_is_held_until_response_is_closed() throws Exception {
+        var fixture = new GpasConcurrencyLimiter(1, Duration.ZERO);
+        var failing = new GpasConcurrencyLimiter(1, Duration.ZERO);
+
+        var response = fixture.intercept(null, new byte[0],
+            (request, body) -> Mockito.mock(ClientHttpResponse.class));
+        assertThat(fixture.inFlight()).isEqualTo(1);
+        assertThrows(GpasOverloaded.class, () -> fixture.intercept(null, new byte[0],
+            (request, body) -> Mockito.mock(ClientHttpResponse.class)));
+        response.close();
+        response.close();
+        assertThat(fixture.inFlight()).isZero();
+
+        assertThrows(IOException.class, () -> failing.intercept(null, new byte[0],
+            (request, body) -> {
+                throw new IOException("connection refused");
+            }));
+        assertThat(failing.inFlight()).isZero();
+    }
+
+    @Test
+    public void newVirtualThreadPerTaskExecutor_requires_java_21() throws Exception {
+        if (Runtime.version().feature() < 21) {
+            assertThrows(IllegalStateException.class,
+                VirtualThreadConfiguration::newVirtualThreadPerTaskExecutor);
+            return;
+        }
+        var executor = VirtualThreadConfiguration.newVirtualThreadPerTaskExecutor();
+        try {
+            assertThat(executor.submit(() -> Thread.currentThread().toString()).get())
+                .contains("VirtualThread");
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Parameters;
+
+/**
+ * Minimal local gPas <code>$pseudonymizeAllowCreate</code> endpoint for tests. Every original
+ * is mapped to <code>psn-{original}</code>, and all received HTTP requests are counted.
+ */
+public class GpasStub implements AutoCloseable {
+
+    public static final String PSEUDONYM_SYSTEM = "https://ths-greifswald.de/gpas";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final HttpServer server;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile int failStatus;
+    private final List<String> traceparents = new CopyOnWriteArrayList<>();
+
+    public GpasStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public int requestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @param status HTTP status returned for all following requests, <code>0</code> to answer
+     *               normally again
+     */
+    public void failWith(int status) {
+        this.failStatus = status;
+    }
+
+    /**
+     * @return <code>traceparent</code> headers of all requests, in order
+     */
+    public List<String> traceparents() {
+        return List.copyOf(traceparents);
+    }
+
+    public static String pseudonymOf(String original) {
+        return PSEUDONYM_SYSTEM + "|psn-" + original;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        final var traceparent = exchange.getRequestHeaders().getFirst("traceparent");
+        if (traceparent != null) {
+            traceparents.add(traceparent);
+        }
+        if (failStatus != 0) {
+            exchange.sendResponseHeaders(failStatus, -1);
+            exchange.close();
+            return;
+        }
+
+        final var parser = fhirContext.newJsonParser();
+        final var request = (Parameters) parser.parseResource(
+            new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+
+        final var response = new Parameters();
+        for (var parameter : request.getParameter()) {
+            if (!parameter.getName().equals("original")) {
+                continue;
+            }
+            final var original = parameter.getValue().primitiveValue();
+            final var result = response.addParameter().setName("pseudonym");
+            result.addPart().setName("original")
+                .setValue(new Identifier().setSystem("urn:original").setValue(original));
+            result.addPart().setName("pseudonym")
+                .setValue(new Identifier().setSystem(PSEUDONYM_SYSTEM).setValue("psn-" + original));
+        }
+
+        final byte[] body = parser.encodeResourceToString(response)
+            .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.unimarburg.diz.mtbtokafka.IdHasher.Action;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class IdHasherTest {
+
+    static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+
+    @Test
+    public void actionAt_matches_rules() {
+        var fixture = new IdHasher(KEY, List.of("consent.id", "diagnoses[*].id", "*.specimen"),
+            List.of("**.patient"));
+
+        assertThat(fixture.actionAt("consent", "id")).isEqualTo(Action.HASH);
+        assertThat(fixture.actionAt("consent", "patient")).isEqualTo(Action.PATIENT);
+        assertThat(fixture.actionAt("episode", "id")).isEqualTo(Action.NONE);
+        assertThat(fixture.actionAt("ngsReports", "specimen")).isEqualTo(Action.HASH);
+        assertThat(fixture.root().field("diagnoses").element().field("id").action())
+            .isEqualTo(Action.HASH);
+        assertThat(fixture.root().field("diagnoses").field("id").action())
+            .isEqualTo(Action.NONE);
+        assertThat(fixture.root().field("ngsReports").element().field("simpleVariants")
+            .element().field("patient").action()).isEqualTo(Action.PATIENT);
+    }
+
+    @Test
+    public void actionAt_patient_id_is_never_matched() {
+        var fixture = new IdHasher(KEY, List.of("**.id"), List.of());
+
+        assertThat(fixture.actionAt("patient", "id")).isEqualTo(Action.NONE);
+        assertThat(fixture.actionAt("episode", "id")).isEqualTo(Action.HASH);
+        assertThat(fixture.actionAt("episode", "patient", "id")).isEqualTo(Action.HASH);
+    }
+
+    @Test
+    public void field_names_not_in_rules_share_one_state() {
+        var fixture = new IdHasher(KEY, List.of("**.id", "*.specimen"), List.of());
+        var root = fixture.root();
+
+        assertThat(root.field("client-1")).isSameAs(root.field("client-2"));
+        assertThat(fixture.actionAt("client-1", "id")).isEqualTo(Action.HASH);
+        assertThat(fixture.actionAt("client-1", "specimen")).isEqualTo(Action.HASH);
+        assertThat(fixture.actionAt("client-1", "other")).isEqualTo(Action.NONE);
+    }
+
+    @Test
+    public void hash_is_deterministic_and_keyed() {
+        var fixture = new IdHasher(KEY, List.of("**.id"), List.of());
+        var otherKey = new IdHasher(Base64.getEncoder().encodeToString(
+            "another-secret-key".getBytes(StandardCharsets.UTF_8)),
+            List.of("**.id"), List.of());
+
+        assertThat(fixture.hash("episode-1")).isEqualTo(fixture.hash("episode-1"))
+            .isNotEqualTo(fixture.hash("episode-2"))
+            .isNotEqualTo(otherKey.hash("episode-1"))
+            .doesNotContain("episode-1");
+    }
+
+    @Test
+    public void short_key_rejected() {
+        assertThrows(IllegalStateException.class,
+            () -> new IdHasher("c2hvcnQ=", List.of("**.id"), List.of()));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.kafka.core.KafkaTemplate;
+
+public class KafkaIngestionTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final PipelineMetrics metrics = new PipelineMetrics(registry);
+
+    @SuppressWarnings("unchecked")
+    private final KafkaTemplate<String, byte[]> kafkaTemplate = Mockito.mock(KafkaTemplate.class);
+
+    @Test
+    public void batch_is_produced_and_invalid_records_go_to_dead_letter_topic() {
+        var fixture = new KafkaIngestion(restForMtb(Optional.empty()), kafkaTemplate,
+            "mtb-out", "mtb-raw-dlt", 2, null, null, metrics, registry);
+
+        fixture.onMessage(List.of(
+            new ConsumerRecord<>("mtb-raw", 0, 0, "a", RestForMtbTest.MTB_FILE_DUMMY),
+            new ConsumerRecord<>("mtb-raw", 0, 1, "b", "{\"patient\": "),
+            new ConsumerRecord<>("mtb-raw", 0, 2, "c", null)));
+
+        var sent = sentRecords(2);
+        assertThat(sent.get(0).topic()).isEqualTo("mtb-out");
+        assertThat(sent.get(0).key()).isEqualTo(MtbKey.format(
+            "\"fc7e5ddc-c70d-45fd-8cf5-799d50871ce9\"",
+            "\"5e28e38d-e172-43a9-bcde-257c5f7970d9\""));
+        assertThat(new String(sent.get(0).value(), StandardCharsets.UTF_8))
+            .contains("\"insurance\":\"Barmer\"");
+        assertThat(sent.get(1).topic()).isEqualTo("mtb-raw-dlt");
+        assertThat(sent.get(1).key()).isEqualTo("b");
+
+        assertThat(registry.get("mtb2kafka.ingest.records").tag("result", "produced").counter()
+            .count()).isEqualTo(1);
+        assertThat(registry.get("mtb2kafka.ingest.records").tag("result", "rejected").counter()
+            .count()).isEqualTo(1);
+    }
+
+    @Test
+    public void binary_format_sets_content_type_header() throws Exception {
+        var valueFormat = new MtbValueFormat("smile", "");
+        var restForMtb = RestForMtbBuilder.restForMtb(producer()).metrics(metrics)
+            .valueFormat(valueFormat).build();
+        var fixture = new KafkaIngestion(restForMtb, kafkaTemplate, "mtb-out", "", 2,
+            valueFormat, null, metrics, registry);
+
+        fixture.onMessage(List.of(
+            new ConsumerRecord<>("mtb-raw", 0, 0, null, RestForMtbTest.MTB_FILE_DUMMY)));
+
+        var sent = sentRecords(1).get(0);
+        assertThat(sent.headers().lastHeader(MtbValueFormat.CONTENT_TYPE_HEADER)).isNotNull();
+        assertThat(valueFormat.read(sent.value()).at("/patient/insurance").asText())
+            .isEqualTo("Barmer");
+    }
+
+    @Test
+    public void gpas_failure_aborts_batch() {
+        var pseudonymizer = Mockito.mock(PseudonymizerService.class);
+        Mockito.doThrow(new PseudonymRequestFailed("gPas not available"))
+            .when(pseudonymizer).pseudonymizeMtb(Mockito.any());
+        var fixture = new KafkaIngestion(restForMtb(Optional.of(pseudonymizer)), kafkaTemplate,
+            "mtb-out", "mtb-raw-dlt", 2, null, null, metrics, registry);
+
+        assertThrows(PseudonymRequestFailed.class, () -> fixture.onMessage(List.of(
+            new ConsumerRecord<>("mtb-raw", 0, 0, null, RestForMtbTest.MTB_FILE_DUMMY))));
+        Mockito.verify(kafkaTemplate, Mockito.never()).send(Mockito.<ProducerRecord<String,
+            byte[]>>any());
+    }
+
+    @Test
+    public void unexpected_failure_aborts_batch_until_max_attempts() {
+        var pseudonymizer = Mockito.mock(PseudonymizerService.class);
+        Mockito.doThrow(new IllegalStateException("unexpected"))
+            .when(pseudonymizer).pseudonymizeMtb(Mockito.any());
+        var fixture = new KafkaIngestion(restForMtb(Optional.of(pseudonymizer)), kafkaTemplate,
+            "mtb-out", "mtb-raw-dlt", 2, null, null, metrics, registry);
+        var batch = List.of(
+            new ConsumerRecord<>("mtb-raw", 0, 0, "a", RestForMtbTest.MTB_FILE_DUMMY));
+
+        assertThrows(IllegalStateException.class, () -> fixture.onMessage(batch));
+        Mockito.verify(kafkaTemplate, Mockito.never()).send(Mockito.<ProducerRecord<String,
+            byte[]>>any());
+        assertThat(registry.get("mtb2kafka.ingest.records").tag("result", "rejected").counter()
+            .count()).isZero();
+
+        fixture.onMessage(batch);
+        var sent = sentRecords(1);
+        assertThat(sent.get(0).topic()).isEqualTo("mtb-raw-dlt");
+        assertThat(sent.get(0).key()).isEqualTo("a");
+        assertThat(registry.get("mtb2kafka.ingest.records").tag("result", "rejected").counter()
+            .count()).isEqualTo(1);
+    }
+
+    @Test
+    public void record_without_patient_goes_to_dead_letter_topic() throws Exception {
+        try (var gpas = new GpasStub()) {
+            var pseudonymizer = PseudonymizerServiceBuilder.pseudonymizer(gpas.baseUrl()).build();
+            var fixture = new KafkaIngestion(restForMtb(Optional.of(pseudonymizer)),
+                kafkaTemplate, "mtb-out", "mtb-raw-dlt", 2, null, null, metrics, registry);
+
+            fixture.onMessage(List.of(
+                new ConsumerRecord<>("mtb-raw", 0, 0, "a", "{\"episode\": {\"id\": \"e\"}}"),
+                new ConsumerRecord<>("mtb-raw", 0, 1, "b", RestForMtbTest.MTB_FILE_DUMMY)));
+
+            var sent = sentRecords(2);
+            assertThat(sent.get(0).topic()).isEqualTo("mtb-raw-dlt");
+            assertThat(sent.get(0).key()).isEqualTo("a");
+            assertThat(sent.get(1).topic()).isEqualTo("mtb-out");
+            assertThat(gpas.requestCount()).isEqualTo(1);
+            assertThat(registry.get("mtb2kafka.pipeline.failures").tag("cause", "missing_key")
+                .counter().count()).isEqualTo(1);
+        }
+    }
+
+    private RestForMtb restForMtb(Optional<PseudonymizerService> pseudonymizer) {
+        return RestForMtbBuilder.restForMtb(producer())
+            .pseudonymizer(pseudonymizer.orElse(null)).metrics(metrics).build();
+    }
+
+    private static MtbProducer producer() {
+        return Mockito.mock(MtbProducer.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ProducerRecord<String, byte[]>> sentRecords(int count) {
+        ArgumentCaptor<ProducerRecord<String, byte[]>> captor =
+            ArgumentCaptor.forClass(ProducerRecord.class);
+        Mockito.verify(kafkaTemplate, Mockito.times(count)).send(captor.capture());
+        return captor.getAllValues();
+    }
+}
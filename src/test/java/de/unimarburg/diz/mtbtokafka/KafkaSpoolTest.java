@@ -0,0 +1,218 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.unit.DataSize;
+
+public class KafkaSpoolTest {
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+    private final List<Headers> sentHeaders = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean kafkaAvailable = new AtomicBoolean(false);
+
+    @Test
+    public void spooled_records_are_drained_in_order(@TempDir Path dir) throws Exception {
+        var registry = new SimpleMeterRegistry();
+        try (var fixture = newSpool(dir, DataSize.ofKilobytes(1), DataSize.ofKilobytes(4),
+            registry)) {
+            for (int i = 0; i < 20; i++) {
+                assertThat(fixture.append("key-" + i, "value-" + i)).isTrue();
+            }
+            assertThat(fixture.hasPending()).isTrue();
+            assertThat(registry.get("mtb2kafka.spool.records").gauge().value()).isEqualTo(20);
+
+            kafkaAvailable.set(true);
+            awaitDrained(fixture);
+
+            assertThat(sent).hasSize(20);
+            for (int i = 0; i < 20; i++) {
+                assertThat(sent.get(i)).isEqualTo("key-" + i + "=value-" + i);
+            }
+            assertThat(registry.get("mtb2kafka.spool.drained").counter().count()).isEqualTo(20);
+        }
+        try (var files = Files.list(dir)) {
+            assertThat(files.filter(f -> f.toString().endsWith(".segment")).count())
+                .isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void pending_records_survive_restart_and_torn_record_is_ignored(@TempDir Path dir)
+        throws Exception {
+        try (var fixture = newSpool(dir, DataSize.ofKilobytes(1), DataSize.ofKilobytes(4),
+            new SimpleMeterRegistry())) {
+            fixture.append("key-1", "value-1");
+            fixture.append("key-2", "value-2");
+        }
+        tearTail(dir);
+
+        try (var restarted = newSpool(dir, DataSize.ofKilobytes(1), DataSize.ofKilobytes(4),
+            new SimpleMeterRegistry())) {
+            assertThat(restarted.pendingRecords()).isEqualTo(2);
+            restarted.append("key-3", null);
+
+            kafkaAvailable.set(true);
+            awaitDrained(restarted);
+        }
+
+        assertThat(sent).containsExactly("key-1=value-1", "key-2=value-2", "key-3=null");
+    }
+
+    @Test
+    public void headers_are_replayed_with_record(@TempDir Path dir) throws Exception {
+        try (var fixture = newSpool(dir, DataSize.ofKilobytes(1), DataSize.ofKilobytes(4),
+            new SimpleMeterRegistry())) {
+            fixture.append("key-1", "value-1",
+                new RecordHeader("claim-check", "blob-1".getBytes(StandardCharsets.UTF_8)),
+                new RecordHeader("empty", null));
+        }
+
+        try (var restarted = newSpool(dir, DataSize.ofKilobytes(1), DataSize.ofKilobytes(4),
+            new SimpleMeterRegistry())) {
+            kafkaAvailable.set(true);
+            awaitDrained(restarted);
+        }
+
+        assertThat(sent).containsExactly("key-1=value-1");
+        var headers = sentHeaders.get(0).toArray();
+        assertThat(headers).hasSize(2);
+        assertThat(headers[0].key()).isEqualTo("claim-check");
+        assertThat(new String(headers[0].value(), StandardCharsets.UTF_8)).isEqualTo("blob-1");
+        assertThat(headers[1].key()).isEqualTo("empty");
+        assertThat(headers[1].value()).isNull();
+    }
+
+    @Test
+    public void missing_checkpointed_segment_is_skipped(@TempDir Path dir) throws Exception {
+        try (var fixture = newSpool(dir, DataSize.ofBytes(128), DataSize.ofKilobytes(4),
+            new SimpleMeterRegistry())) {
+            for (int i = 0; i < 12; i++) {
+                assertThat(fixture.append("key-" + i, "value-" + i)).isTrue();
+            }
+        }
+        final List<Path> segments;
+        try (var files = Files.list(dir)) {
+            segments = files.filter(f -> f.toString().endsWith(".segment")).sorted().toList();
+        }
+        assertThat(segments).hasSizeGreaterThan(1);
+        // crash after the first segment was deleted, but before the checkpoint was moved on
+        Files.delete(segments.get(0));
+
+        try (var restarted = newSpool(dir, DataSize.ofBytes(128), DataSize.ofKilobytes(4),
+            new SimpleMeterRegistry())) {
+            assertThat(restarted.pendingRecords()).isBetween(1L, 11L);
+            kafkaAvailable.set(true);
+            awaitDrained(restarted);
+        }
+
+        assertThat(sent).isNotEmpty().last().isEqualTo("key-11=value-11");
+        assertThat(sent).doesNotContain("key-0=value-0");
+    }
+
+    @Test
+    public void append_full_spool_is_rejected(@TempDir Path dir) throws Exception {
+        try (var fixture = newSpool(dir, DataSize.ofBytes(128), DataSize.ofBytes(256),
+            new SimpleMeterRegistry())) {
+            int appended = 0;
+            while (fixture.append("key", "value-" + appended)) {
+                appended++;
+            }
+
+            assertThat(appended).isGreaterThan(0);
+            assertThat(fixture.pendingRecords()).isEqualTo(appended);
+            assertThat(fixture.append("key", "x".repeat(200))).isFalse();
+        }
+    }
+
+    private KafkaSpool newSpool(Path dir, DataSize segmentSize, DataSize maxSize,
+        SimpleMeterRegistry registry) throws IOException {
+        @SuppressWarnings("unchecked")
+        KafkaTemplate<String, String> kafkaTemplate = Mockito.mock(KafkaTemplate.class);
+        Mockito.when(kafkaTemplate.send(Mockito.<ProducerRecord<String, String>>any()))
+            .thenAnswer(invocation -> {
+                if (!kafkaAvailable.get()) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("down"));
+                }
+                ProducerRecord<String, String> record = invocation.getArgument(0);
+                assertThat(record.topic()).isEqualTo("topic");
+                sent.add(record.key() + "=" + record.value());
+                sentHeaders.add(record.headers());
+                return CompletableFuture.completedFuture(Mockito.mock(SendResult.class));
+            });
+        return new KafkaSpool(kafkaTemplate, "topic", dir.toString(), segmentSize, maxSize,
+            Duration.ofSeconds(1), Duration.ofMillis(10), registry);
+    }
+
+    /**
+     * Simulate a crash while writing a record: length is set, but content is incomplete.
+     */
+    private static void tearTail(Path dir) throws IOException {
+        final Path segment;
+        try (var files = Files.list(dir)) {
+            segment = files.filter(f -> f.toString().endsWith(".segment")).findFirst()
+                .orElseThrow();
+        }
+        try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int position = 0;
+            int length;
+            while ((length = readInt(file, position)) > 0) {
+                position += 8 + length;
+            }
+            file.seek(position);
+            file.writeInt(42);
+            file.writeInt(4711);
+        }
+    }
+
+    private static int readInt(RandomAccessFile file, int position) throws IOException {
+        file.seek(position);
+        return file.readInt();
+    }
+
+    private static void awaitDrained(KafkaSpool spool) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (spool.hasPending() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(spool.hasPending()).isFalse();
+    }
+}
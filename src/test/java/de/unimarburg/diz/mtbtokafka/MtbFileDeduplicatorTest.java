@@ -0,0 +1,135 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.Test;
+
+public class MtbFileDeduplicatorTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void fingerprint_ignores_formatting_and_field_order() throws IOException {
+        var original = fingerprint(RestForMtbTest.MTB_FILE_DUMMY);
+        var reordered = fingerprint("""
+            {"episode": {"patient": "fc7e5ddc-c70d-45fd-8cf5-799d50871ce9",
+            "id": "5e28e38d-e172-43a9-bcde-257c5f7970d9", "period": {"start": "2023-06-29"}},
+            "consent": {"status": "active", "id": "e53ee7ba-a8e8-4262-8f7d-f80a81f31dc0",
+            "patient": "fc7e5ddc-c70d-45fd-8cf5-799d50871ce9"},
+            "patient": {"insurance": "Barmer", "birthDate": "1975-01", "gender": "male",
+            "id": "fc7e5ddc-c70d-45fd-8cf5-799d50871ce9"}}""");
+        var changed = fingerprint(RestForMtbTest.MTB_FILE_DUMMY.replace("2023-06-29",
+            "2023-06-30"));
+
+        assertThat(reordered).isEqualTo(original);
+        assertThat(changed.hash()).isNotEqualTo(original.hash());
+        assertThat(original.patientId().asText()).isEqualTo(
+            "fc7e5ddc-c70d-45fd-8cf5-799d50871ce9");
+        assertThat(original.episodeId().asText()).isEqualTo(
+            "5e28e38d-e172-43a9-bcde-257c5f7970d9");
+        assertThat(fingerprint("{\"episode\": {\"id\": 123}}").episodeId().isNumber()).isTrue();
+        assertThat(fingerprint("[1, 2]").hash()).isNotEqualTo(fingerprint("[2, 1]").hash());
+        assertThat(fingerprint("{\"a\": 1}").hash()).isEqualTo(fingerprint("{\"a\": 1.0}").hash());
+        assertThat(fingerprint("{\"a\": 9007199254740993}").hash())
+            .isNotEqualTo(fingerprint("{\"a\": 9007199254740992}").hash());
+        assertThat(fingerprint("{\"a\": 0.10000000000000000001}").hash())
+            .isNotEqualTo(fingerprint("{\"a\": 0.1}").hash());
+    }
+
+    @Test
+    public void isUnchanged_only_after_accepted_and_evicts_least_recently_used() {
+        var registry = new SimpleMeterRegistry();
+        var fixture = new MtbFileDeduplicator(2, false, "topic", Optional.empty(), registry);
+
+        assertThat(fixture.isUnchanged("key-1", 42)).isFalse();
+        fixture.accepted("key-1", 42);
+        fixture.accepted("key-2", 42);
+        assertThat(fixture.isUnchanged("key-1", 42)).isTrue();
+        assertThat(fixture.isUnchanged("key-1", 43)).isFalse();
+
+        fixture.accepted("key-3", 42);
+        assertThat(fixture.isUnchanged("key-2", 42)).isFalse();
+        fixture.deleted("key-3");
+        assertThat(fixture.isUnchanged("key-3", 42)).isFalse();
+
+        assertThat(registry.get("mtb2kafka.dedup.lookups").tag("result", "unchanged")
+            .counter().count()).isEqualTo(1);
+        assertThat(registry.get("mtb2kafka.dedup.lookups").tag("result", "changed")
+            .counter().count()).isEqualTo(4);
+    }
+
+    @Test
+    public void rebuild_reads_fingerprints_from_topic() {
+        var fixture = new MtbFileDeduplicator(10, false, "topic", Optional.empty(),
+            new SimpleMeterRegistry());
+        var partition = new TopicPartition("topic", 0);
+        var consumer = new MockConsumer<String, byte[]>(OffsetResetStrategy.EARLIEST);
+        consumer.updatePartitions("topic",
+            List.of(new PartitionInfo("topic", 0, null, null, null)));
+        consumer.updateBeginningOffsets(Map.of(partition, 0L));
+        consumer.updateEndOffsets(Map.of(partition, 5L));
+        consumer.schedulePollTask(() -> {
+            consumer.addRecord(consumerRecord(0, "key-1", "v", 1L));
+            consumer.addRecord(consumerRecord(1, "key-2", "v", 2L));
+            consumer.addRecord(consumerRecord(2, "key-1", "v", 3L));
+            consumer.addRecord(consumerRecord(3, "key-2", null, null));
+            consumer.addRecord(consumerRecord(4, "key-3", "v", null));
+        });
+
+        fixture.rebuild(consumer, "topic");
+
+        assertThat(fixture.size()).isEqualTo(1);
+        assertThat(fixture.isUnchanged("key-1", 3)).isTrue();
+    }
+
+    private MtbFileDeduplicator.Fingerprint fingerprint(String json) throws IOException {
+        try (var parser = objectMapper.getFactory().createParser(json)) {
+            return MtbFileDeduplicator.fingerprint(parser);
+        }
+    }
+
+    private static ConsumerRecord<String, byte[]> consumerRecord(long offset, String key,
+        String value, Long fingerprint) {
+        var headers = new RecordHeaders();
+        if (fingerprint != null) {
+            headers.add(MtbFileDeduplicator.FINGERPRINT_HEADER,
+                ByteBuffer.allocate(Long.BYTES).putLong(fingerprint).array());
+        }
+        return new ConsumerRecord<>("topic", 0, offset, 0L, TimestampType.CREATE_TIME, 0, 0, key,
+            value == null ? null : value.getBytes(), headers, Optional.empty());
+    }
+}
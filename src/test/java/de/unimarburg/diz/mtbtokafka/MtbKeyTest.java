@@ -0,0 +1,64 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class MtbKeyTest {
+
+    @Test
+    public void format_matches_previous_key_format() {
+        assertThat(MtbKey.format("\"pid-1\"", "\"eid-1\""))
+            .isEqualTo(String.format("{\"pid\": %s, \"eid\":%s}", "\"pid-1\"", "\"eid-1\""));
+        assertThat(MtbKey.format("42", null)).isEqualTo("{\"pid\": 42, \"eid\":null}");
+    }
+
+    @Test
+    public void patientId_is_parsed_from_key() {
+        assertThat(MtbKey.patientId(MtbKey.format("\"pid-1\"", "\"eid-1\"")))
+            .isEqualTo("\"pid-1\"");
+        assertThat(MtbKey.patientId(MtbKey.format("\"a\\\", \\\"eid\\\":\"", "1")))
+            .isEqualTo("\"a\\\", \\\"eid\\\":\"");
+        assertThat(MtbKey.patientId(MtbKey.format("42", "\"eid-1\""))).isEqualTo("42");
+        assertThat(MtbKey.patientId("R7dWqnZ0Yh1Q")).isNull();
+    }
+
+    @Test
+    public void encode_is_compact_and_decoded_again() {
+        var serializer = new MtbKeySerializer();
+        var deserializer = new MtbKeyDeserializer();
+        for (String key : new String[]{
+            MtbKey.format("\"" + "p".repeat(200) + "\"", "\"5e28e38d-e172-43a9-bcde\""),
+            MtbKey.format("\"pid-ä\"", "\"e\\\"id\""),
+            MtbKey.format("42", "null"),
+            "R7dWqnZ0Yh1Q"}) {
+            var encoded = serializer.serialize("topic", key);
+
+            assertThat(deserializer.deserialize("topic", encoded)).isEqualTo(key);
+            assertThat(encoded.length)
+                .isLessThanOrEqualTo(key.getBytes(StandardCharsets.UTF_8).length);
+        }
+        var key = MtbKey.format("\"pid-1\"", "\"eid-1\"");
+        assertThat(MtbKey.encode(key)).hasSize(13);
+    }
+}
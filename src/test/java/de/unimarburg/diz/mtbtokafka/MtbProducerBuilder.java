@@ -0,0 +1,90 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.observation.ObservationRegistry;
+import java.time.Duration;
+import java.util.Optional;
+import org.springframework.kafka.core.KafkaTemplate;
+
+/**
+ * Builds {@link MtbProducer} with the defaults of <code>application.yml</code> for tests.
+ */
+public class MtbProducerBuilder {
+
+    private final KafkaTemplate<String, String> kafkaTemplate;
+    private String topic = "dummyTopicName";
+    private boolean async;
+    private Duration sendTimeout = Duration.ofSeconds(30);
+    private KafkaSpool spool;
+    private ClaimCheck claimCheck;
+    private MtbValueFormat valueFormat;
+    private ObservationRegistry observationRegistry;
+
+    private MtbProducerBuilder(KafkaTemplate<String, String> kafkaTemplate) {
+        this.kafkaTemplate = kafkaTemplate;
+    }
+
+    public static MtbProducerBuilder producer(KafkaTemplate<String, String> kafkaTemplate) {
+        return new MtbProducerBuilder(kafkaTemplate);
+    }
+
+    public MtbProducerBuilder topic(String topic) {
+        this.topic = topic;
+        return this;
+    }
+
+    public MtbProducerBuilder async(boolean async) {
+        this.async = async;
+        return this;
+    }
+
+    public MtbProducerBuilder sendTimeout(Duration sendTimeout) {
+        this.sendTimeout = sendTimeout;
+        return this;
+    }
+
+    public MtbProducerBuilder spool(KafkaSpool spool) {
+        this.spool = spool;
+        return this;
+    }
+
+    public MtbProducerBuilder claimCheck(ClaimCheck claimCheck) {
+        this.claimCheck = claimCheck;
+        return this;
+    }
+
+    public MtbProducerBuilder valueFormat(MtbValueFormat valueFormat) {
+        this.valueFormat = valueFormat;
+        return this;
+    }
+
+    public MtbProducerBuilder observationRegistry(ObservationRegistry observationRegistry) {
+        this.observationRegistry = observationRegistry;
+        return this;
+    }
+
+    public MtbProducer build() {
+        return new MtbProducer(kafkaTemplate, topic, async, sendTimeout,
+            Optional.ofNullable(spool), Optional.ofNullable(claimCheck),
+            Optional.ofNullable(valueFormat), Optional.ofNullable(observationRegistry));
+    }
+}
@@ -20,31 +20,174 @@
 
 package de.unimarburg.diz.mtbtokafka;
 
+import static de.unimarburg.diz.mtbtokafka.MtbProducerBuilder.producer;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.KafkaProduceFailed;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeader;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.unit.DataSize;
 
 public class MtbProducerTest {
 
 
     @Test
     public void sendJsonMessageTest()
-        throws ExecutionException, InterruptedException {
+        throws ExecutionException, InterruptedException, TimeoutException {
 
         final String dummyTopicName = "dummyTopicName";
 
         var kafkaTemplateMocked = Mockito.mock(KafkaTemplate.class);
         var futureMocked = Mockito.mock(java.util.concurrent.CompletableFuture.class);
 
-        Mockito.when(futureMocked.get()).thenReturn("unitTest");
+        Mockito.when(futureMocked.get(Mockito.anyLong(), Mockito.any(TimeUnit.class)))
+            .thenReturn("unitTest");
         Mockito.when(kafkaTemplateMocked.sendDefault(RestForMtbTest.MTB_FILE_DUMMY_KEY,
             RestForMtbTest.MTB_FILE_DUMMY)).thenReturn(futureMocked);
 
-        var fixture = new MtbProducer(kafkaTemplateMocked,  dummyTopicName);
+        var fixture = producer(kafkaTemplateMocked).topic(dummyTopicName).build();
 
-        fixture.sendToKafka(RestForMtbTest.MTB_FILE_DUMMY_KEY, RestForMtbTest.MTB_FILE_DUMMY);
+        assertThat(fixture.sendToKafka(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY)).isTrue();
         Mockito.verify(kafkaTemplateMocked)
             .sendDefault(RestForMtbTest.MTB_FILE_DUMMY_KEY, RestForMtbTest.MTB_FILE_DUMMY);
     }
+
+    @Test
+    public void sendJsonMessageAsync_timeout_failsWithKafkaProduceFailed() {
+        var kafkaTemplateMocked = Mockito.mock(KafkaTemplate.class);
+        Mockito.when(kafkaTemplateMocked.sendDefault(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY)).thenReturn(new CompletableFuture<>());
+
+        var fixture = producer(kafkaTemplateMocked).async(true).sendTimeout(Duration.ofMillis(50))
+            .build();
+
+        var result = fixture.sendToKafkaAsync(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY);
+
+        var thrown = assertThrows(ExecutionException.class, result::get);
+        assertThat(thrown.getCause()).isInstanceOf(KafkaProduceFailed.class);
+    }
+
+    @Test
+    public void sendJsonMessage_failed_send_is_spooled() throws Exception {
+        var kafkaTemplateMocked = Mockito.mock(KafkaTemplate.class);
+        Mockito.when(kafkaTemplateMocked.sendDefault(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+                RestForMtbTest.MTB_FILE_DUMMY))
+            .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("down")));
+        var spool = Mockito.mock(KafkaSpool.class);
+        Mockito.when(spool.append(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY)).thenReturn(true);
+
+        var fixture = producer(kafkaTemplateMocked).sendTimeout(Duration.ofSeconds(1))
+            .spool(spool).build();
+
+        assertThat(fixture.sendToKafka(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY)).isTrue();
+        Mockito.verify(spool).append(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY);
+    }
+
+    @Test
+    public void sendJsonMessage_spooled_record_keeps_headers() throws Exception {
+        var kafkaTemplateMocked = Mockito.mock(KafkaTemplate.class);
+        Mockito.when(kafkaTemplateMocked.getDefaultTopic()).thenReturn("dummyTopicName");
+        Mockito.when(kafkaTemplateMocked.send(Mockito.any(ProducerRecord.class)))
+            .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("down")));
+        var spool = Mockito.mock(KafkaSpool.class);
+        var header = new RecordHeader("fingerprint", new byte[]{1});
+        Mockito.when(spool.append(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY, header)).thenReturn(true);
+
+        var fixture = producer(kafkaTemplateMocked).sendTimeout(Duration.ofSeconds(1))
+            .spool(spool).build();
+
+        assertThat(fixture.sendToKafka(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY, header)).isTrue();
+        Mockito.verify(spool).append(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY, header);
+    }
+
+    @Test
+    public void exceedsMaxRequestSize_uses_producer_config() {
+        var kafkaTemplateMocked = Mockito.mock(KafkaTemplate.class);
+        var producerFactory = Mockito.mock(ProducerFactory.class);
+        Mockito.when(kafkaTemplateMocked.getProducerFactory()).thenReturn(producerFactory);
+        Mockito.when(producerFactory.getConfigurationProperties()).thenReturn(
+            KafkaProducerConfiguration.producerConfigs("zstd", Duration.ofMillis(20),
+                DataSize.ofKilobytes(256), DataSize.ofBytes(10), true, "all"));
+
+        var fixture = producer(kafkaTemplateMocked).build();
+
+        assertThat(fixture.exceedsMaxRequestSize("0123456789")).isFalse();
+        assertThat(fixture.exceedsMaxRequestSize("012345678ä")).isTrue();
+        assertThat(fixture.exceedsMaxRequestSize("01234567890")).isTrue();
+    }
+
+    @Test
+    public void sendJsonMessage_large_file_is_sent_as_reference() throws Exception {
+        var kafkaTemplateMocked = Mockito.mock(KafkaTemplate.class);
+        Mockito.when(kafkaTemplateMocked.getDefaultTopic()).thenReturn("dummyTopicName");
+        Mockito.when(kafkaTemplateMocked.send(Mockito.any(ProducerRecord.class)))
+            .thenReturn(CompletableFuture.completedFuture(Mockito.mock(SendResult.class)));
+        var claimCheck = Mockito.mock(ClaimCheck.class);
+        Mockito.when(claimCheck.threshold()).thenReturn(1024L);
+        Mockito.when(claimCheck.check(RestForMtbTest.MTB_FILE_DUMMY)).thenReturn(
+            new ClaimCheck.Reference("{\"claimCheck\":{}}",
+                new RecordHeader(ClaimCheck.CLAIM_CHECK_HEADER, new byte[0])));
+
+        var fixture = producer(kafkaTemplateMocked).sendTimeout(Duration.ofSeconds(1))
+            .claimCheck(claimCheck).build();
+
+        assertThat(fixture.sendToKafka(RestForMtbTest.MTB_FILE_DUMMY_KEY,
+            RestForMtbTest.MTB_FILE_DUMMY)).isTrue();
+        var sent = ArgumentCaptor.forClass(ProducerRecord.class);
+        Mockito.verify(kafkaTemplateMocked).send(sent.capture());
+        assertThat(sent.getValue().key()).isEqualTo(RestForMtbTest.MTB_FILE_DUMMY_KEY);
+        assertThat(sent.getValue().value()).isEqualTo("{\"claimCheck\":{}}");
+        assertThat(sent.getValue().headers().lastHeader(ClaimCheck.CLAIM_CHECK_HEADER))
+            .isNotNull();
+    }
+
+    @Test
+    public void sendJsonMessage_binary_format_uses_one_producer_per_key() throws Exception {
+        var kafkaTemplateMocked = Mockito.mock(KafkaTemplate.class);
+        var binaryTemplateMocked = Mockito.mock(KafkaTemplate.class);
+        Mockito.when(binaryTemplateMocked.getDefaultTopic()).thenReturn("dummyTopicName");
+        Mockito.when(binaryTemplateMocked.send(Mockito.any(ProducerRecord.class)))
+            .thenReturn(CompletableFuture.completedFuture(Mockito.mock(SendResult.class)));
+
+        var valueFormat = Mockito.spy(new MtbValueFormat("cbor", ""));
+        Mockito.doReturn(binaryTemplateMocked).when(valueFormat).template(kafkaTemplateMocked);
+
+        var fixture = producer(kafkaTemplateMocked).sendTimeout(Duration.ofSeconds(1))
+            .valueFormat(valueFormat).build();
+
+        assertThat(fixture.sendToKafka(RestForMtbTest.MTB_FILE_DUMMY_KEY, new byte[]{1}))
+            .isTrue();
+        assertThat(fixture.sendToKafkaAsync(RestForMtbTest.MTB_FILE_DUMMY_KEY, (String) null)
+            .get()).isTrue();
+
+        var sent = ArgumentCaptor.forClass(ProducerRecord.class);
+        Mockito.verify(binaryTemplateMocked, Mockito.times(2)).send(sent.capture());
+        Mockito.verify(kafkaTemplateMocked, Mockito.never()).sendDefault(Mockito.any(),
+            Mockito.any());
+        assertThat(sent.getAllValues().get(0).headers()
+            .lastHeader(MtbValueFormat.CONTENT_TYPE_HEADER).value())
+            .isEqualTo("application/cbor".getBytes(StandardCharsets.UTF_8));
+        assertThat(sent.getAllValues().get(1).value()).isNull();
+    }
 }
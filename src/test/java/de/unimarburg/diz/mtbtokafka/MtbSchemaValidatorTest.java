@@ -0,0 +1,148 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static de.unimarburg.diz.mtbtokafka.RestForMtbBuilder.restForMtb;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid;
+import de.unimarburg.diz.mtbtokafka.exceptions.MtbFileInvalid.Violation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.core.io.ClassPathResource;
+
+public class MtbSchemaValidatorTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void bundled_schema_reports_violations_with_path_and_rule() throws Exception {
+        var fixture = new MtbSchemaValidator(new ClassPathResource("mtbfile.schema.json"), 20,
+            registry);
+        validate(fixture, RestForMtbTest.MTB_FILE_DUMMY);
+
+        var violations = violations(fixture, """
+            {"patient": {"gender": "m", "birthDate": "1975"},
+             "episode": {"id": ""},
+             "diagnoses": [{"id": "d1"}, {"id": 42}]}
+            """);
+
+        assertThat(violations).extracting(Violation::path, Violation::rule)
+            .containsExactlyInAnyOrder(tuple("$.patient.gender", "enum"),
+                tuple("$.patient.birthDate", "pattern"), tuple("$.patient", "required"),
+                tuple("$.episode.id", "minLength"), tuple("$.diagnoses[1].id", "type"));
+        assertThat(registry.get("mtb2kafka.validation.violations").tag("rule", "required")
+            .tag("schema.path", "#/properties/patient/required").counter().count()).isEqualTo(1);
+        assertThat(registry.get("mtb2kafka.validation.violations").tag("rule", "type")
+            .tag("schema.path", "#/definitions/id/type").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void combinators_and_recursive_references() throws Exception {
+        var fixture = new MtbSchemaValidator(objectMapper.readTree("""
+            {"$ref": "#/definitions/node",
+             "definitions": {
+               "node": {
+                 "type": "object",
+                 "required": ["value"],
+                 "properties": {
+                   "value": {"oneOf": [{"type": "integer", "minimum": 0},
+                                       {"type": "string", "maxLength": 3}]},
+                   "children": {"type": "array", "items": {"$ref": "#/definitions/node"}},
+                   "tag": {"anyOf": [{"const": "a"}, {"const": 1}], "not": {"const": 1}}
+                 },
+                 "additionalProperties": false
+               }
+             }}
+            """), 20, registry);
+        validate(fixture, """
+            {"value": 1, "tag": "a", "children": [{"value": "abc", "children": []}]}
+            """);
+
+        var violations = violations(fixture, """
+            {"value": -1, "tag": 1, "children": [{"value": "abcd", "other": true}, {}]}
+            """);
+
+        // oneOf reports the violations of its subschemas
+        assertThat(violations).extracting(Violation::path, Violation::rule)
+            .containsExactlyInAnyOrder(tuple("$.value", "type"), tuple("$.value", "minimum"),
+                tuple("$.tag", "not"), tuple("$.children[0].value", "type"),
+                tuple("$.children[0].value", "maxLength"),
+                tuple("$.children[0]", "additionalProperties"),
+                tuple("$.children[1]", "required"));
+    }
+
+    @Test
+    public void all_matching_property_schemas_apply() throws Exception {
+        var fixture = new MtbSchemaValidator(objectMapper.readTree("""
+            {"type": "object",
+             "properties": {"id": {"type": "string"}},
+             "patternProperties": {"^i": {"minLength": 2}, "d$": {"pattern": "^[0-9]+$"}}}
+            """), 20, registry);
+        validate(fixture, "{\"id\": \"42\"}");
+
+        assertThat(violations(fixture, "{\"id\": \"a\"}"))
+            .extracting(Violation::path, Violation::rule)
+            .containsExactlyInAnyOrder(tuple("$.id", "minLength"), tuple("$.id", "pattern"));
+    }
+
+    @Test
+    public void validation_stops_at_max_violations() throws Exception {
+        var fixture = new MtbSchemaValidator(objectMapper.readTree("""
+            {"type": "array", "items": {"type": "string"}}
+            """), 2, registry);
+
+        var invalid = assertThrows(MtbFileInvalid.class, () -> validate(fixture, "[1, 2, 3, 4]"));
+
+        assertThat(invalid.getViolations()).hasSize(2);
+        assertThat(invalid.getMessage()).contains("2 or more violations");
+    }
+
+    @Test
+    public void invalid_mtb_file_is_rejected_before_gpas_request() throws Exception {
+        var pseudonymizer = Mockito.mock(PseudonymizerService.class);
+        var validator = new MtbSchemaValidator(new ClassPathResource("mtbfile.schema.json"), 20,
+            registry);
+        var fixture = restForMtb(Mockito.mock(MtbProducer.class)).pseudonymizer(pseudonymizer)
+            .metrics(new PipelineMetrics(registry)).validator(validator).build();
+
+        assertThrows(MtbFileInvalid.class,
+            () -> fixture.toMtbRecord("{\"patient\": {}, \"episode\": {\"id\": \"e1\"}}"));
+        Mockito.verifyNoInteractions(pseudonymizer);
+    }
+
+    private void validate(MtbSchemaValidator fixture, String mtbFile) throws Exception {
+        try (var parser = objectMapper.getFactory().createParser(mtbFile)) {
+            fixture.validate(parser);
+        }
+    }
+
+    private List<Violation> violations(MtbSchemaValidator fixture, String mtbFile) {
+        return assertThrows(MtbFileInvalid.class, () -> validate(fixture, mtbFile))
+            .getViolations();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class MtbStreamRewriterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MtbStreamRewriter fixture = new MtbStreamRewriter(objectMapper.getFactory());
+
+    @Test
+    public void rewrite_matches_tree_based_processing() throws Exception {
+        var result = fixture.rewrite(RestForMtbTest.MTB_FILE_DUMMY, original -> "psn-" + original);
+
+        var expected = (ObjectNode) objectMapper.readTree(RestForMtbTest.MTB_FILE_DUMMY);
+        ((ObjectNode) expected.get("patient")).put("id",
+            "psn-fc7e5ddc-c70d-45fd-8cf5-799d50871ce9");
+
+        assertThat(objectMapper.readTree(result.json())).isEqualTo(expected);
+        assertThat(RestForMtb.formatKey(result.patientId(), result.episodeId())).isEqualTo(
+            RestForMtb.formatKey(expected.get("patient").get("id").toString(),
+                expected.get("episode").get("id").toString()));
+    }
+
+    @Test
+    public void rewrite_only_replaces_top_level_patient_id() throws Exception {
+        var result = fixture.rewrite(RestForMtbTest.MTB_FILE_DUMMY, original -> "psn");
+        var rewritten = objectMapper.readTree(result.json());
+
+        assertThat(rewritten.get("patient").get("id").asText()).isEqualTo("psn");
+        assertThat(rewritten.get("episode").get("id").asText()).isEqualTo(
+            "5e28e38d-e172-43a9-bcde-257c5f7970d9");
+        assertThat(rewritten.get("episode").get("patient").asText()).isEqualTo(
+            "fc7e5ddc-c70d-45fd-8cf5-799d50871ce9");
+        assertThat(result.episodeId()).isEqualTo("\"5e28e38d-e172-43a9-bcde-257c5f7970d9\"");
+    }
+
+    @Test
+    public void rewrite_numeric_ids_keyed_like_tree_based_processing() throws Exception {
+        final var mtbFile = "{\"patient\": {\"id\": 1e2}, "
+            + "\"episode\": {\"id\": 12345678901234567890}}";
+        var expected = objectMapper.readTree(mtbFile);
+        var originals = new ArrayList<String>();
+
+        var kept = fixture.rewrite(mtbFile, null);
+        var pseudonymized = fixture.rewrite(mtbFile, original -> {
+            originals.add(original);
+            return "psn";
+        });
+
+        assertThat(RestForMtb.formatKey(kept.patientId(), kept.episodeId())).isEqualTo(
+            RestForMtb.formatKey(expected.get("patient").get("id").toString(),
+                expected.get("episode").get("id").toString()));
+        assertThat(originals).containsExactly(expected.get("patient").get("id").asText());
+        assertThat(pseudonymized.episodeId()).isEqualTo(kept.episodeId());
+    }
+
+    @Test
+    public void rewrite_missing_episode_rejected() {
+        assertThrows(IllegalArgumentException.class,
+            () -> fixture.rewrite("{\"patient\": {\"id\": \"1\"}}", original -> "psn"));
+    }
+
+    @Test
+    public void rewrite_missing_patient_id_rejected_if_replaced() throws Exception {
+        for (var mtbFile : List.of("{\"patient\": {}, \"episode\": {\"id\": \"e\"}}",
+            "{\"patient\": \"p\", \"episode\": {\"id\": \"e\"}}",
+            "{\"patient\": {\"id\": null}, \"episode\": {\"id\": \"e\"}}")) {
+            assertThrows(IllegalArgumentException.class,
+                () -> fixture.rewrite(mtbFile, original -> "psn"), mtbFile);
+            assertThat(fixture.rewrite(mtbFile, null).json()).isNotEmpty();
+        }
+    }
+
+    @Test
+    public void rewrite_invalid_json_rejected() {
+        assertThrows(JacksonException.class,
+            () -> fixture.rewrite("{\"patient\": {\"id\": \"1\"}", original -> "psn"));
+    }
+
+    @Test
+    public void rewrite_hashes_ids_like_tree_based_processing() throws Exception {
+        var idHasher = new IdHasher(IdHasherTest.KEY, List.of("**.id"), List.of("**.patient"));
+        var hashingFixture = new MtbStreamRewriter(objectMapper.getFactory(), idHasher);
+
+        var result = hashingFixture.rewrite(RestForMtbTest.MTB_FILE_DUMMY,
+            original -> "psn-" + original);
+
+        var rewritten = objectMapper.readTree(result.json());
+        assertThat(rewritten.get("consent").get("id").asText()).isEqualTo(
+            idHasher.hash("e53ee7ba-a8e8-4262-8f7d-f80a81f31dc0"));
+        assertThat(rewritten.get("consent").get("patient").asText()).isEqualTo(
+            "psn-fc7e5ddc-c70d-45fd-8cf5-799d50871ce9");
+        assertThat(rewritten.get("episode").get("patient").asText()).isEqualTo(
+            "psn-fc7e5ddc-c70d-45fd-8cf5-799d50871ce9");
+        assertThat(result.episodeId()).isEqualTo(
+            '"' + idHasher.hash("5e28e38d-e172-43a9-bcde-257c5f7970d9") + '"');
+        assertThat(result.json()).doesNotContain("\"fc7e5ddc-c70d-45fd-8cf5-799d50871ce9\"");
+    }
+}
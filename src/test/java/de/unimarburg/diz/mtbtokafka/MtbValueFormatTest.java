@@ -0,0 +1,100 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MtbValueFormatTest {
+
+    private static final String SCHEMA = """
+        {"type": "record", "name": "MtbFile", "fields": [
+          {"name": "patient", "type": {"type": "record", "name": "Patient", "fields": [
+            {"name": "id", "type": "string"},
+            {"name": "birthDate", "type": ["null", "string"], "default": null}]}},
+          {"name": "episode", "type": {"type": "record", "name": "Episode", "fields": [
+            {"name": "id", "type": "string"}]}},
+          {"name": "variants", "type": {"type": "array", "items": {"type": "record",
+            "name": "Variant", "fields": [
+              {"name": "readDepth", "type": "int"},
+              {"name": "allelicFrequency", "type": "double"}]}}}
+        ]}
+        """;
+
+    private static final String MTB_FILE = """
+        {"patient": {"id": "p-1", "birthDate": "1975-01"}, "episode": {"id": "e-1"},
+         "variants": [{"readDepth": 42, "allelicFrequency": 0.25}]}
+        """;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void write_smile_and_cbor_are_read_back() throws Exception {
+        final JsonNode mtbFile = objectMapper.readTree(RestForMtbTest.MTB_FILE_DUMMY);
+        for (String format : new String[]{"smile", "cbor"}) {
+            var fixture = new MtbValueFormat(format, "");
+
+            var value = fixture.write(mtbFile);
+
+            assertThat(fixture.isBinary()).isTrue();
+            assertThat(value.length).isLessThan(RestForMtbTest.MTB_FILE_DUMMY.length());
+            assertThat(fixture.read(value)).isEqualTo(mtbFile);
+        }
+        assertThat(new MtbValueFormat("json", "").isBinary()).isFalse();
+    }
+
+    @Test
+    public void write_avro_follows_local_schema(@TempDir Path dir) throws Exception {
+        var schema = Files.writeString(dir.resolve("mtbfile.avsc"), SCHEMA);
+        var fixture = new MtbValueFormat("avro", schema.toString());
+        final JsonNode mtbFile = objectMapper.readTree(MTB_FILE);
+
+        var tree = fixture.write(mtbFile);
+        var streamed = new ByteArrayOutputStream();
+        try (var parser = objectMapper.createParser(MTB_FILE);
+            var generator = fixture.createGenerator(streamed)) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        }
+
+        assertThat(streamed.toByteArray()).isEqualTo(tree);
+        assertThat(fixture.read(tree)).isEqualTo(mtbFile);
+    }
+
+    @Test
+    public void write_avro_rejects_fields_not_in_schema(@TempDir Path dir) throws Exception {
+        var schema = Files.writeString(dir.resolve("mtbfile.avsc"), SCHEMA);
+        var fixture = new MtbValueFormat("avro", schema.toString());
+
+        assertThrows(Exception.class, () -> fixture.write(
+            objectMapper.readTree(MTB_FILE.replace("\"p-1\"", "\"p-1\", \"gender\": \"male\""))));
+        assertThrows(IllegalStateException.class, () -> new MtbValueFormat("avro", ""));
+    }
+}
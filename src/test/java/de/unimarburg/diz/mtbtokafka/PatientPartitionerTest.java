@@ -0,0 +1,89 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.jupiter.api.Test;
+
+public class PatientPartitionerTest {
+
+    private final PatientPartitioner fixture = new PatientPartitioner();
+
+    @Test
+    public void partition_episodes_of_patient_share_partition() {
+        var cluster = cluster(12);
+        for (int patient = 0; patient < 100; patient++) {
+            final var pid = "\"pid-" + patient + "\"";
+            Set<Integer> partitions = IntStream.range(0, 10)
+                .mapToObj(episode -> partition(MtbKey.format(pid, "\"eid-" + episode + "\""),
+                    cluster))
+                .collect(Collectors.toSet());
+            assertThat(partitions).hasSize(1);
+        }
+    }
+
+    @Test
+    public void partition_growing_topic_moves_patients_to_new_partitions_only() {
+        List<Integer> moved = new ArrayList<>();
+        for (int patient = 0; patient < 10_000; patient++) {
+            final var pid = "\"pid-" + patient + "\"";
+            final int before = PatientPartitioner.partition(pid, 8);
+            final int after = PatientPartitioner.partition(pid, 10);
+            if (before != after) {
+                moved.add(after);
+            }
+        }
+
+        assertThat(moved).allMatch(partition -> partition >= 8);
+        // (10 - 8) / 10 of the patients
+        assertThat(moved.size()).isBetween(1_800, 2_200);
+    }
+
+    @Test
+    public void partition_other_keys_like_default_partitioner() {
+        final var key = "R7dWqnZ0Yh1Q";
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        assertThat(fixture.partition("topic", key, keyBytes, null, null, cluster(12)))
+            .isEqualTo(Utils.toPositive(Utils.murmur2(keyBytes)) % 12);
+    }
+
+    private int partition(String key, Cluster cluster) {
+        return fixture.partition("topic", key, MtbKey.encode(key), null, null, cluster);
+    }
+
+    private static Cluster cluster(int partitions) {
+        final var node = new Node(0, "localhost", 9092);
+        return new Cluster("cluster", List.of(node), IntStream.range(0, partitions)
+            .mapToObj(p -> new PartitionInfo("topic", p, node, new Node[]{node},
+                new Node[]{node})).toList(), Set.of(), Set.of());
+    }
+}
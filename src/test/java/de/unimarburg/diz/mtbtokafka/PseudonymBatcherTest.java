@@ -0,0 +1,182 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+public class PseudonymBatcherTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final ObservationRegistry registry = ObservationRegistry.create();
+
+    @Test
+    public void batches_are_sent_concurrently_up_to_limit() throws Exception {
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var allStarted = new CountDownLatch(3);
+        var release = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(6);
+
+        try (var fixture = new PseudonymBatcher(1, Duration.ZERO, 3, TIMEOUT, registry,
+            originals -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                allStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return originals.stream().collect(Collectors.toMap(o -> o, o -> "psn-" + o));
+            })) {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                final var original = "pid-" + i;
+                results.add(executor.submit(() -> fixture.getPseudonym(original)));
+            }
+
+            assertThat(allStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            Thread.sleep(100);
+            assertThat(running).hasValue(3);
+            release.countDown();
+
+            for (int i = 0; i < 6; i++) {
+                assertThat(results.get(i).get(5, TimeUnit.SECONDS)).isEqualTo("psn-pid-" + i);
+            }
+            assertThat(maxRunning).hasValue(3);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void lookups_queued_while_senders_are_busy_join_one_batch() throws Exception {
+        var batchSizes = new ArrayList<Integer>();
+        var firstStarted = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(5);
+
+        try (var fixture = new PseudonymBatcher(10, Duration.ZERO, 1, TIMEOUT, registry,
+            originals -> {
+                synchronized (batchSizes) {
+                    batchSizes.add(originals.size());
+                }
+                firstStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return originals.stream().collect(Collectors.toMap(o -> o, o -> "psn-" + o));
+            })) {
+            var first = executor.submit(() -> fixture.getPseudonym("pid-0"));
+            assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            List<Future<String>> queued = new ArrayList<>();
+            for (int i = 1; i < 5; i++) {
+                final var original = "pid-" + i;
+                queued.add(executor.submit(() -> fixture.getPseudonym(original)));
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("psn-pid-0");
+            for (var result : queued) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).startsWith("psn-pid-");
+            }
+            assertThat(batchSizes).containsExactly(1, 4);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void lookup_fails_after_timeout() {
+        var release = new CountDownLatch(1);
+
+        try (var fixture = new PseudonymBatcher(1, Duration.ZERO, 1, Duration.ofMillis(50),
+            registry, originals -> {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Map.of();
+            })) {
+            assertThrows(PseudonymRequestFailed.class, () -> fixture.getPseudonym("pid-0"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void lookup_after_close_fails() {
+        var fixture = new PseudonymBatcher(1, Duration.ZERO, 1, TIMEOUT, registry,
+            originals -> originals.stream().collect(Collectors.toMap(o -> o, o -> "psn-" + o)));
+        assertThat(fixture.getPseudonym("pid-0")).isEqualTo("psn-pid-0");
+
+        fixture.close();
+
+        var failed = assertThrows(PseudonymRequestFailed.class,
+            () -> fixture.getPseudonym("pid-1"));
+        assertThat(failed).hasMessageContaining("shut down");
+    }
+
+    @Test
+    public void batch_is_sent_in_observation_of_first_lookup() {
+        registry.observationConfig().observationHandler(context -> true);
+        var current = new AtomicReference<Observation>();
+
+        try (var fixture = new PseudonymBatcher(1, Duration.ZERO, 1, TIMEOUT, registry,
+            originals -> {
+                current.set(registry.getCurrentObservation());
+                return originals.stream().collect(Collectors.toMap(o -> o, o -> "psn-" + o));
+            })) {
+            var caller = Observation.start("caller", registry);
+            try (var scope = caller.openScope()) {
+                assertThat(fixture.getPseudonym("pid-0")).isEqualTo("psn-pid-0");
+            } finally {
+                caller.stop();
+            }
+            assertThat(current).hasValue(caller);
+
+            assertThat(fixture.getPseudonym("pid-1")).isEqualTo("psn-pid-1");
+            assertThat(current.get()).isNull();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PseudonymCacheTest {
+
+    private static final String DOMAIN = "demo.study.demo";
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[16]);
+
+    @Test
+    public void computeIfAbsent_second_call_is_served_from_cache() {
+        var registry = new SimpleMeterRegistry();
+        var fixture = new PseudonymCache(10, Duration.ofMinutes(1), "", "", registry,
+            Clock.systemUTC());
+        var loaderCalls = new AtomicInteger();
+
+        var first = fixture.computeIfAbsent(DOMAIN, "pid-1",
+            o -> "psn|" + o + loaderCalls.incrementAndGet());
+        var second = fixture.computeIfAbsent(DOMAIN, "pid-1",
+            o -> "psn|" + o + loaderCalls.incrementAndGet());
+
+        assertThat(second).isEqualTo(first);
+        assertThat(loaderCalls).hasValue(1);
+        assertThat(registry.get("mtb2kafka.pseudonym.cache.gets").tag("result", "hit").counter()
+            .count()).isEqualTo(1);
+        assertThat(registry.get("mtb2kafka.pseudonym.cache.gets").tag("result", "miss")
+            .counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrent_misses_of_same_id_call_loader_once() throws Exception {
+        var fixture = new PseudonymCache(10, Duration.ofMinutes(1), "", "",
+            new SimpleMeterRegistry(), Clock.systemUTC());
+        var loaderCalls = new AtomicInteger();
+        var loading = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = executor.submit(() -> fixture.computeIfAbsent(DOMAIN, "pid-1",
+                o -> {
+                    loaderCalls.incrementAndGet();
+                    loading.countDown();
+                    await(release);
+                    return "psn-1";
+                }));
+            assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+
+            var waiting = executor.submit(() -> fixture.computeIfAbsent(DOMAIN, "pid-1", o -> {
+                loaderCalls.incrementAndGet();
+                return "other";
+            }));
+            Thread.sleep(100);
+            release.countDown();
+
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("psn-1");
+            assertThat(waiting.get(5, TimeUnit.SECONDS)).isEqualTo("psn-1");
+            assertThat(loaderCalls).hasValue(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failed_load_is_not_cached() {
+        var fixture = new PseudonymCache(10, Duration.ofMinutes(1), "", "",
+            new SimpleMeterRegistry(), Clock.systemUTC());
+
+        assertThatThrownBy(() -> fixture.computeIfAbsent(DOMAIN, "pid-1", o -> {
+            throw new IllegalStateException("gPas down");
+        })).isInstanceOf(IllegalStateException.class);
+
+        assertThat(fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "psn-1")).isEqualTo("psn-1");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void computeIfAbsent_domains_are_separated() {
+        var fixture = new PseudonymCache(10, Duration.ofMinutes(1), "", "",
+            new SimpleMeterRegistry(), Clock.systemUTC());
+
+        fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "a");
+
+        assertThat(fixture.computeIfAbsent("other.domain", "pid-1", o -> "b")).isEqualTo("b");
+    }
+
+    @Test
+    public void least_recently_used_entry_is_evicted() {
+        var registry = new SimpleMeterRegistry();
+        var fixture = new PseudonymCache(2, Duration.ofMinutes(1), "", "", registry,
+            Clock.systemUTC());
+
+        fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "1");
+        fixture.computeIfAbsent(DOMAIN, "pid-2", o -> "2");
+        fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "x");
+        fixture.computeIfAbsent(DOMAIN, "pid-3", o -> "3");
+
+        assertThat(fixture.size()).isEqualTo(2);
+        assertThat(fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "x")).isEqualTo("1");
+        assertThat(fixture.computeIfAbsent(DOMAIN, "pid-2", o -> "new")).isEqualTo("new");
+        assertThat(registry.get("mtb2kafka.pseudonym.cache.evictions").tag("cause", "size")
+            .counter().count()).isGreaterThanOrEqualTo(1);
+    }
+
+    @Test
+    public void expired_entry_is_reloaded() {
+        var clock = new MutableClock();
+        var fixture = new PseudonymCache(10, Duration.ofMinutes(1), "", "",
+            new SimpleMeterRegistry(), clock);
+
+        fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "old");
+        clock.advance(Duration.ofMinutes(2));
+
+        assertThat(fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "new")).isEqualTo("new");
+    }
+
+    @Test
+    public void persisted_cache_is_loaded_encrypted(@TempDir Path tempDir) throws Exception {
+        var file = tempDir.resolve("cache.bin");
+        var fixture = new PseudonymCache(10, Duration.ofMinutes(1), file.toString(), KEY,
+            new SimpleMeterRegistry(), Clock.systemUTC());
+        fixture.computeIfAbsent(DOMAIN, "pid-1", o -> "psn-1");
+        fixture.persist();
+
+        assertThat(new String(Files.readAllBytes(file))).doesNotContain("pid-1");
+
+        var restarted = new PseudonymCache(10, Duration.ofMinutes(1), file.toString(), KEY,
+            new SimpleMeterRegistry(), Clock.systemUTC());
+        assertThat(restarted.size()).isEqualTo(1);
+        assertThat(restarted.computeIfAbsent(DOMAIN, "pid-1", o -> "x")).isEqualTo("psn-1");
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Properties;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PseudonymTableTest {
+
+    static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+
+    @TempDir
+    Path stateDir;
+
+    private TopologyTestDriver driver;
+    private TestInputTopic<String, String> topic;
+
+    @BeforeEach
+    public void setUp() {
+        var properties = new Properties();
+        properties.put(StreamsConfig.APPLICATION_ID_CONFIG, "pseudonym-table-test");
+        properties.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:9092");
+        properties.put(StreamsConfig.STATE_DIR_CONFIG, stateDir.toString());
+        driver = new TopologyTestDriver(PseudonymTable.topology("pseudonyms"), properties);
+        topic = driver.createInputTopic("pseudonyms", new StringSerializer(),
+            new StringSerializer());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        driver.close();
+    }
+
+    @Test
+    public void get_returns_pseudonym_written_by_any_instance() {
+        var registry = new SimpleMeterRegistry();
+        var instance1 = newTable(KEY, registry);
+        var instance2 = newTable(KEY, new SimpleMeterRegistry());
+
+        assertThat(instance2.get("domain", "pid-1")).isNull();
+        instance1.put("domain", "pid-1", "system|psn-1");
+
+        assertThat(instance2.get("domain", "pid-1")).isEqualTo("system|psn-1");
+        assertThat(instance2.get("other-domain", "pid-1")).isNull();
+        assertThat(registry.get("mtb2kafka.pseudonym.table.lookups").tag("result", "miss")
+            .counter().count()).isZero();
+    }
+
+    @Test
+    public void table_records_do_not_contain_original_or_pseudonym() {
+        var fixture = newTable(KEY, new SimpleMeterRegistry());
+        fixture.put("domain", "pid-1", "system|psn-1");
+
+        var store = driver.<String, String>getKeyValueStore(PseudonymTable.STORE_NAME);
+        try (var all = store.all()) {
+            var entry = all.next();
+            assertThat(entry.key).isEqualTo(fixture.key("domain", "pid-1"))
+                .doesNotContain("pid-1");
+            assertThat(entry.value).doesNotContain("psn-1");
+        }
+    }
+
+    @Test
+    public void get_with_other_key_is_a_miss() {
+        newTable(KEY, new SimpleMeterRegistry()).put("domain", "pid-1", "system|psn-1");
+        var registry = new SimpleMeterRegistry();
+        var otherKey = newTable(Base64.getEncoder().encodeToString(
+            "another-secret-key".getBytes()), registry);
+
+        assertThat(otherKey.get("domain", "pid-1")).isNull();
+        assertThat(registry.get("mtb2kafka.pseudonym.table.lookups").tag("result", "miss")
+            .counter().count()).isEqualTo(1);
+    }
+
+    /**
+     * Table instance writing to and reading from the test driver.
+     */
+    PseudonymTable newTable(String key, SimpleMeterRegistry registry) {
+        return new PseudonymTable(key, topic::pipeInput,
+            () -> driver.getKeyValueStore(PseudonymTable.STORE_NAME), null, registry);
+    }
+}
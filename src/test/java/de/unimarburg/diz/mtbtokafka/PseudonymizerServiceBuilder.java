@@ -0,0 +1,114 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.observation.ObservationRegistry;
+import java.time.Duration;
+import java.util.Optional;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Builds {@link PseudonymizerService} with the defaults of <code>application.yml</code> for
+ * tests.
+ */
+public class PseudonymizerServiceBuilder {
+
+    private final String gPasUrl;
+    private String target = "demo.study.demo";
+    private RestTemplate restTemplate = new RestTemplate();
+    private RetryTemplate retryTemplate = new RetryTemplate();
+    private GpasCircuitBreaker circuitBreaker;
+    private PseudonymCache cache;
+    private PseudonymTable table;
+    private IdHasher idHasher;
+    private boolean batchEnabled;
+    private int batchMaxSize = 50;
+    private Duration batchMaxWait = Duration.ofMillis(20);
+    private int batchMaxConcurrent = 20;
+    private final Duration retryBudget = Duration.ofSeconds(5);
+    private final Duration readTimeout = Duration.ofSeconds(10);
+    private ObservationRegistry observationRegistry;
+
+    private PseudonymizerServiceBuilder(String gPasUrl) {
+        this.gPasUrl = gPasUrl;
+    }
+
+    public static PseudonymizerServiceBuilder pseudonymizer(String gPasUrl) {
+        return new PseudonymizerServiceBuilder(gPasUrl);
+    }
+
+    public PseudonymizerServiceBuilder target(String target) {
+        this.target = target;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder restTemplate(RestTemplate restTemplate) {
+        this.restTemplate = restTemplate;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder retryTemplate(RetryTemplate retryTemplate) {
+        this.retryTemplate = retryTemplate;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder circuitBreaker(GpasCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder cache(PseudonymCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder table(PseudonymTable table) {
+        this.table = table;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder idHasher(IdHasher idHasher) {
+        this.idHasher = idHasher;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder batch(int maxSize, Duration maxWait, int maxConcurrent) {
+        this.batchEnabled = true;
+        this.batchMaxSize = maxSize;
+        this.batchMaxWait = maxWait;
+        this.batchMaxConcurrent = maxConcurrent;
+        return this;
+    }
+
+    public PseudonymizerServiceBuilder observationRegistry(ObservationRegistry observationRegistry) {
+        this.observationRegistry = observationRegistry;
+        return this;
+    }
+
+    public PseudonymizerService build() {
+        return new PseudonymizerService(gPasUrl, target, restTemplate, retryTemplate,
+            Optional.ofNullable(circuitBreaker), Optional.ofNullable(cache),
+            Optional.ofNullable(table), Optional.ofNullable(idHasher), batchEnabled, batchMaxSize,
+            batchMaxWait, batchMaxConcurrent, retryBudget, readTimeout,
+            Optional.ofNullable(observationRegistry));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import static de.unimarburg.diz.mtbtokafka.PseudonymizerServiceBuilder.pseudonymizer;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.unimarburg.diz.mtbtokafka.exceptions.GpasOverloaded;
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RestTemplate;
+
+public class PseudonymizerServiceTest {
+
+    private GpasStub gpas;
+    private PseudonymizerService fixture;
+
+    @BeforeEach
+    public void startGpas() throws Exception {
+        gpas = new GpasStub();
+    }
+
+    @AfterEach
+    public void stopGpas() {
+        if (fixture != null) {
+            fixture.close();
+        }
+        gpas.close();
+    }
+
+    @Test
+    public void pseudonymizeMtb_replaces_patient_id() throws Exception {
+        fixture = pseudonymizer(gpas.baseUrl()).build();
+        var mtbFile = new ObjectMapper().readTree(RestForMtbTest.MTB_FILE_DUMMY);
+
+        fixture.pseudonymizeMtb(mtbFile);
+
+        assertThat(mtbFile.get("patient").get("id").asText()).isEqualTo(
+            GpasStub.pseudonymOf("fc7e5ddc-c70d-45fd-8cf5-799d50871ce9"));
+        assertThat(gpas.requestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void pseudonymizeMtb_missing_ids_rejected_without_gpas_request() throws Exception {
+        fixture = pseudonymizer(gpas.baseUrl()).build();
+        var mapper = new ObjectMapper();
+
+        for (var mtbFile : List.of("{\"episode\": {\"id\": \"e\"}}",
+            "{\"patient\": {}, \"episode\": {\"id\": \"e\"}}",
+            "{\"patient\": \"p\", \"episode\": {\"id\": \"e\"}}",
+            "{\"patient\": {\"id\": null}, \"episode\": {\"id\": \"e\"}}",
+            "{\"patient\": {\"id\": \"p\"}, \"episode\": \"e\"}", "[]")) {
+            var jsonNode = mapper.readTree(mtbFile);
+            assertThrows(IllegalArgumentException.class, () -> fixture.pseudonymizeMtb(jsonNode),
+                mtbFile);
+        }
+        assertThat(gpas.requestCount()).isZero();
+    }
+
+    @Test
+    public void pseudonymizeMtb_hashes_secondary_ids_and_references() throws Exception {
+        var idHasher = new IdHasher(IdHasherTest.KEY, List.of("**.id"), List.of("**.patient"));
+        fixture = pseudonymizer(gpas.baseUrl()).idHasher(idHasher).build();
+        var mtbFile = new ObjectMapper().readTree(RestForMtbTest.MTB_FILE_DUMMY);
+
+        fixture.pseudonymizeMtb(mtbFile);
+
+        var pseudonym = GpasStub.pseudonymOf("fc7e5ddc-c70d-45fd-8cf5-799d50871ce9");
+        assertThat(mtbFile.get("patient").get("id").asText()).isEqualTo(pseudonym);
+        assertThat(mtbFile.get("consent").get("patient").asText()).isEqualTo(pseudonym);
+        assertThat(mtbFile.get("episode").get("patient").asText()).isEqualTo(pseudonym);
+        assertThat(mtbFile.get("episode").get("id").asText()).isEqualTo(
+            idHasher.hash("5e28e38d-e172-43a9-bcde-257c5f7970d9"));
+        assertThat(gpas.requestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getPseudonym_cached_ids_do_not_call_gpas() {
+        var cache = new PseudonymCache(10, Duration.ofMinutes(1), "", "",
+            new SimpleMeterRegistry(), Clock.systemUTC());
+        fixture = pseudonymizer(gpas.baseUrl()).cache(cache).build();
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(fixture.getPseudonym("pid-1")).isEqualTo(GpasStub.pseudonymOf("pid-1"));
+        }
+
+        assertThat(gpas.requestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getPseudonym_table_is_asked_before_gpas() {
+        var table = Mockito.mock(PseudonymTable.class);
+        Mockito.when(table.get("demo.study.demo", "pid-1")).thenReturn("system|known");
+        fixture = pseudonymizer(gpas.baseUrl()).table(table).build();
+
+        assertThat(fixture.getPseudonym("pid-1")).isEqualTo("system|known");
+        assertThat(gpas.requestCount()).isZero();
+
+        assertThat(fixture.getPseudonym("pid-2")).isEqualTo(GpasStub.pseudonymOf("pid-2"));
+        assertThat(gpas.requestCount()).isEqualTo(1);
+        Mockito.verify(table).put("demo.study.demo", "pid-2", GpasStub.pseudonymOf("pid-2"));
+    }
+
+    @Test
+    public void getPseudonym_concurrent_lookups_are_batched() throws Exception {
+        final int lookups = 40;
+        fixture = pseudonymizer(gpas.baseUrl()).batch(lookups, Duration.ofMillis(500), 4)
+            .build();
+
+        var executor = Executors.newFixedThreadPool(lookups);
+        try {
+            List<Callable<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < lookups; i++) {
+                final var original = "pid-" + i;
+                tasks.add(() -> fixture.getPseudonym(original));
+            }
+            List<Future<String>> results = executor.invokeAll(tasks);
+
+            for (int i = 0; i < lookups; i++) {
+                assertThat(results.get(i).get()).isEqualTo(GpasStub.pseudonymOf("pid-" + i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(gpas.requestCount()).isLessThan(lookups / 4);
+    }
+
+    @Test
+    public void getPseudonym_pooled_client_reuses_connection() {
+        var config = new GpasClientConfiguration();
+        var connectionManager = config.gPasConnectionManager(4, Duration.ofSeconds(5));
+        var httpClient = config.gPasHttpClient(connectionManager, Duration.ofSeconds(1),
+            Duration.ofSeconds(5), Duration.ofSeconds(30));
+        var registry = new SimpleMeterRegistry();
+        config.gPasConnectionPoolMetrics(connectionManager).bindTo(registry);
+
+        fixture = pseudonymizer(gpas.baseUrl()).restTemplate(
+            config.gPasRestTemplate(httpClient,
+                config.gPasConcurrencyLimiter(4, Duration.ofSeconds(1)), Optional.empty()))
+            .build();
+        for (int i = 0; i < 5; i++) {
+            assertThat(fixture.getPseudonym("pid-" + i)).isEqualTo(
+                GpasStub.pseudonymOf("pid-" + i));
+        }
+
+        assertThat(connectionManager.getTotalStats().getAvailable()).isEqualTo(1);
+        assertThat(registry.get("mtb2kafka.gpas.pool.connections").tag("state", "available")
+            .gauge().value()).isEqualTo(1);
+        connectionManager.close();
+    }
+
+    @Test
+    public void getPseudonym_open_circuit_fails_fast() {
+        var config = new GpasClientConfiguration();
+        var breaker = new GpasCircuitBreaker(50, 4, 4, Duration.ofMinutes(1), 1,
+            Clock.systemUTC());
+        fixture = pseudonymizer(gpas.baseUrl()).retryTemplate(
+            config.gPasRetryTemplate(2, Duration.ofMillis(1), 1, Duration.ofMillis(1),
+                Duration.ofSeconds(1))).circuitBreaker(breaker).build();
+        gpas.failWith(503);
+
+        for (int i = 0; i < 4; i++) {
+            final var original = "pid-" + i;
+            assertThrows(PseudonymRequestFailed.class, () -> fixture.getPseudonym(original));
+        }
+        assertThat(breaker.getState()).isEqualTo(GpasCircuitBreaker.State.OPEN);
+        final int requestsWhenOpened = gpas.requestCount();
+
+        assertThrows(PseudonymRequestFailed.class, () -> fixture.getPseudonym("pid-x"));
+        assertThat(gpas.requestCount()).isEqualTo(requestsWhenOpened);
+    }
+
+    @Test
+    public void getPseudonym_client_errors_do_not_open_circuit() {
+        var breaker = new GpasCircuitBreaker(50, 4, 4, Duration.ofMinutes(1), 1,
+            Clock.systemUTC());
+        fixture = pseudonymizer(gpas.baseUrl()).circuitBreaker(breaker).build();
+        gpas.failWith(400);
+
+        for (int i = 0; i < 8; i++) {
+            final var original = "pid-" + i;
+            assertThrows(PseudonymRequestFailed.class, () -> fixture.getPseudonym(original));
+        }
+
+        assertThat(breaker.getState()).isEqualTo(GpasCircuitBreaker.State.CLOSED);
+        assertThat(breaker.failureRate()).isZero();
+    }
+
+    @Test
+    public void getPseudonym_local_concurrency_limit_is_neither_retried_nor_counted()
+        throws Exception {
+        var config = new GpasClientConfiguration();
+        var registry = new SimpleMeterRegistry();
+        var limiter = config.gPasConcurrencyLimiter(1, Duration.ZERO);
+        limiter.bindTo(registry);
+        var restTemplate = new RestTemplate();
+        restTemplate.getInterceptors().add(limiter);
+        var breaker = new GpasCircuitBreaker(50, 4, 4, Duration.ofMinutes(1), 1,
+            Clock.systemUTC());
+        fixture = pseudonymizer(gpas.baseUrl()).restTemplate(restTemplate)
+            .retryTemplate(config.gPasRetryTemplate(3, Duration.ofMillis(1), 1,
+                Duration.ofMillis(1), Duration.ofSeconds(1)))
+            .circuitBreaker(breaker).build();
+
+        // a request in flight, its response not closed yet
+        try (var inFlight = limiter.intercept(null, new byte[0],
+            (request, body) -> Mockito.mock(ClientHttpResponse.class))) {
+            for (int i = 0; i < 4; i++) {
+                final var original = "pid-" + i;
+                var failed = assertThrows(PseudonymRequestFailed.class,
+                    () -> fixture.getPseudonym(original));
+                assertThat(failed.getCause()).isInstanceOf(GpasOverloaded.class);
+            }
+        }
+
+        assertThat(registry.get("mtb2kafka.gpas.requests.rejected").counter().count())
+            .isEqualTo(4);
+        assertThat(gpas.requestCount()).isZero();
+        assertThat(breaker.getState()).isEqualTo(GpasCircuitBreaker.State.CLOSED);
+        assertThat(breaker.failureRate()).isZero();
+    }
+}
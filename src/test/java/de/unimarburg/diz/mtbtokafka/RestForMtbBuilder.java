@@ -0,0 +1,96 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package de.unimarburg.diz.mtbtokafka;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Optional;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Builds {@link RestForMtb} with the defaults of <code>application.yml</code> for tests.
+ */
+public class RestForMtbBuilder {
+
+    private final MtbProducer producer;
+    private PseudonymizerService pseudonymizer;
+    private int bulkMaxInFlight = 100;
+    private boolean streaming;
+    private PipelineMetrics metrics;
+    private MtbFileDeduplicator deduplicator;
+    private MtbValueFormat valueFormat;
+    private MtbSchemaValidator validator;
+    private DataSize maxBodySize = DataSize.ofMegabytes(64);
+
+    private RestForMtbBuilder(MtbProducer producer) {
+        this.producer = producer;
+    }
+
+    public static RestForMtbBuilder restForMtb(MtbProducer producer) {
+        return new RestForMtbBuilder(producer);
+    }
+
+    public RestForMtbBuilder pseudonymizer(PseudonymizerService pseudonymizer) {
+        this.pseudonymizer = pseudonymizer;
+        return this;
+    }
+
+    public RestForMtbBuilder bulkMaxInFlight(int bulkMaxInFlight) {
+        this.bulkMaxInFlight = bulkMaxInFlight;
+        return this;
+    }
+
+    public RestForMtbBuilder streaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    public RestForMtbBuilder metrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public RestForMtbBuilder deduplicator(MtbFileDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+        return this;
+    }
+
+    public RestForMtbBuilder valueFormat(MtbValueFormat valueFormat) {
+        this.valueFormat = valueFormat;
+        return this;
+    }
+
+    public RestForMtbBuilder validator(MtbSchemaValidator validator) {
+        this.validator = validator;
+        return this;
+    }
+
+    public RestForMtbBuilder maxBodySize(DataSize maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    public RestForMtb build() {
+        return new RestForMtb(producer, Optional.ofNullable(pseudonymizer), bulkMaxInFlight,
+            streaming, metrics != null ? metrics : new PipelineMetrics(new SimpleMeterRegistry()),
+            Optional.ofNullable(deduplicator), Optional.ofNullable(valueFormat),
+            Optional.ofNullable(validator), maxBodySize);
+    }
+}
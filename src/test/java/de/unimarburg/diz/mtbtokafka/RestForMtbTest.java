@@ -20,28 +20,62 @@
 
 package de.unimarburg.diz.mtbtokafka;
 
+import static de.unimarburg.diz.mtbtokafka.RestForMtbBuilder.restForMtb;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.luben.zstd.Zstd;
+import de.unimarburg.diz.mtbtokafka.BulkReport.DocumentStatus;
 import de.unimarburg.diz.mtbtokafka.exceptions.KafkaProduceFailed;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
+import org.apache.kafka.common.header.Header;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.http.HttpMessageConvertersAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.servlet.WebMvcAutoConfiguration;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.web.client.RestTemplate;
 
 @AutoConfigureMockMvc
+@ImportAutoConfiguration({JacksonAutoConfiguration.class,
+    HttpMessageConvertersAutoConfiguration.class, WebMvcAutoConfiguration.class})
 @SpringBootTest(classes = {RestForMtb.class, RestTemplate.class,
-    RestResponseEntityExceptionHandler.class})
+    RestResponseEntityExceptionHandler.class, PipelineMetrics.class, SimpleMeterRegistry.class},
+    properties = "mtb2kafka.upload.maxBodySize=4KB")
 public class RestForMtbTest {
 
     public final static String MTB_FILE_DUMMY = """
@@ -77,6 +111,9 @@ public class RestForMtbTest {
     @Autowired
     private RestForMtb fixture;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Test
     public void processMtbFile_valid_input_return_true()
         throws JacksonException, ExecutionException, InterruptedException, KafkaProduceFailed {
@@ -94,14 +131,45 @@ public class RestForMtbTest {
     @Test
     public void rest_call_accepted() throws Exception {
         given(producer.sendToKafka(anyString(), anyString())).willReturn(true);
-        var result = mockMvc.perform(
+        var asyncResult = mockMvc.perform(
                 post("/mtbfile").content(MTB_FILE_DUMMY).contentType(MediaType.APPLICATION_JSON))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        var result = mockMvc.perform(asyncDispatch(asyncResult))
             .andExpect(status().isAccepted())
             .andReturn();
 
         assertThat(result.getResponse().getContentAsString()).isNotNull();
     }
 
+    @Test
+    public void rest_call_async_accepted() throws Exception {
+        given(producer.isAsync()).willReturn(true);
+        given(producer.sendToKafkaAsync(anyString(), anyString())).willReturn(
+            CompletableFuture.completedFuture(true));
+        var asyncResult = mockMvc.perform(
+                post("/mtbfile").content(MTB_FILE_DUMMY).contentType(MediaType.APPLICATION_JSON))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(asyncResult))
+            .andExpect(status().isAccepted());
+    }
+
+    @Test
+    public void rest_call_async_kafka_produce_faild() throws Exception {
+        given(producer.isAsync()).willReturn(true);
+        given(producer.sendToKafkaAsync(anyString(), anyString())).willReturn(
+            CompletableFuture.failedFuture(new KafkaProduceFailed("unit test")));
+        var asyncResult = mockMvc.perform(
+                post("/mtbfile").content(MTB_FILE_DUMMY).contentType(MediaType.APPLICATION_JSON))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(asyncResult))
+            .andExpect(status().isServiceUnavailable());
+    }
+
 
     @Test
     public void rest_call_invalid_file() throws Exception {
@@ -133,4 +201,328 @@ public class RestForMtbTest {
             .andExpect(status().isServiceUnavailable())
             .andReturn();
     }
+
+    @Test
+    public void rest_call_records_stage_metrics() throws Exception {
+        given(producer.sendToKafka(anyString(), anyString())).willReturn(true);
+        var parseCount = stageCount("parse");
+        var ackCount = stageCount("kafka_ack");
+
+        var asyncResult = mockMvc.perform(
+                post("/mtbfile").content(MTB_FILE_DUMMY).contentType(MediaType.APPLICATION_JSON))
+            .andReturn();
+        mockMvc.perform(asyncDispatch(asyncResult)).andExpect(status().isAccepted());
+
+        assertThat(stageCount("parse")).isEqualTo(parseCount + 1);
+        assertThat(stageCount("kafka_ack")).isEqualTo(ackCount + 1);
+        assertThat(meterRegistry.get("mtb2kafka.pipeline.inflight").tag("endpoint", "mtbfile")
+            .gauge().value()).isZero();
+    }
+
+    @Test
+    public void rest_call_missing_properties_counts_failure() throws Exception {
+        var failures = meterRegistry.get("mtb2kafka.pipeline.failures")
+            .tag("cause", "missing_key").counter();
+        var before = failures.count();
+
+        mockMvc.perform(post("/mtbfile").content("{\"test\": \"input\"}")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+
+        assertThat(failures.count()).isEqualTo(before + 1);
+    }
+
+    private long stageCount(String stage) {
+        return meterRegistry.get("mtb2kafka.pipeline.stage").tag("stage", stage).timer().count();
+    }
+
+    @Test
+    public void rest_call_delete_tombstone_key_matches_produced_key() throws Exception {
+        given(producer.sendToKafkaAsync(anyString(), isNull())).willReturn(
+            CompletableFuture.completedFuture(true));
+        var producedKey = fixture.toMtbRecord(MTB_FILE_DUMMY).key();
+
+        var asyncResult = mockMvc.perform(post("/mtbfile/delete")
+                .content("""
+                    {"patientId": "fc7e5ddc-c70d-45fd-8cf5-799d50871ce9",
+                     "episodeIds": ["5e28e38d-e172-43a9-bcde-257c5f7970d9"]}""")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        mockMvc.perform(asyncDispatch(asyncResult)).andExpect(status().isAccepted());
+
+        verify(producer).sendToKafkaAsync(producedKey, null);
+    }
+
+    @Test
+    public void rest_call_delete_numeric_episode_id_matches_produced_key() throws Exception {
+        given(producer.sendToKafkaAsync(anyString(), isNull())).willReturn(
+            CompletableFuture.completedFuture(true));
+        var producedKey = fixture.toMtbRecord(MTB_FILE_DUMMY.replace(
+            "\"5e28e38d-e172-43a9-bcde-257c5f7970d9\"", "123")).key();
+
+        var asyncResult = mockMvc.perform(post("/mtbfile/delete")
+                .content("""
+                    {"patientId": "fc7e5ddc-c70d-45fd-8cf5-799d50871ce9",
+                     "episodeIds": [123]}""")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        mockMvc.perform(asyncDispatch(asyncResult)).andExpect(status().isAccepted());
+
+        assertThat(producedKey).contains("123").doesNotContain("\"123\"");
+        verify(producer).sendToKafkaAsync(producedKey, null);
+    }
+
+    @Test
+    public void rest_call_delete_all_episodes_of_patient() throws Exception {
+        given(producer.sendToKafkaAsync(anyString(), isNull())).willReturn(
+            CompletableFuture.completedFuture(true));
+
+        var asyncResult = mockMvc.perform(post("/mtbfile/delete")
+                .content("{\"patientId\": \"pid-1\", \"episodeIds\": [\"eid-1\", \"eid-2\"]}")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        mockMvc.perform(asyncDispatch(asyncResult)).andExpect(status().isAccepted());
+
+        verify(producer).sendToKafkaAsync(RestForMtb.formatKey("\"pid-1\"", "\"eid-1\""), null);
+        verify(producer).sendToKafkaAsync(RestForMtb.formatKey("\"pid-1\"", "\"eid-2\""), null);
+    }
+
+    @Test
+    public void rest_call_delete_missing_episode() throws Exception {
+        mockMvc.perform(post("/mtbfile/delete")
+                .content("{\"patientId\": \"pid-1\", \"episodeIds\": []}")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void rest_call_payload_too_large() throws Exception {
+        given(producer.exceedsMaxRequestSize(anyLong())).willReturn(true);
+        mockMvc.perform(
+                post("/mtbfile").content(MTB_FILE_DUMMY).contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isPayloadTooLarge());
+        verify(producer, never()).sendToKafka(anyString(), anyString());
+    }
+
+    @Test
+    public void rest_call_gzip_and_zstd_encoded_uploads_accepted() throws Exception {
+        given(producer.sendToKafka(anyString(), anyString())).willReturn(true);
+        final byte[] data = MTB_FILE_DUMMY.getBytes(StandardCharsets.UTF_8);
+
+        for (var encoded : new Object[][]{{"gzip", gzip(data)}, {"zstd", Zstd.compress(data)}}) {
+            var asyncResult = mockMvc.perform(post("/mtbfile").content((byte[]) encoded[1])
+                    .header(HttpHeaders.CONTENT_ENCODING, encoded[0])
+                    .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+            mockMvc.perform(asyncDispatch(asyncResult)).andExpect(status().isAccepted());
+        }
+
+        verify(producer, times(2)).sendToKafka(anyString(), anyString());
+    }
+
+    @Test
+    public void rest_call_body_exceeding_max_body_size_after_decoding() throws Exception {
+        final var padded = MTB_FILE_DUMMY.replace("\"male\"", "\"male" + " ".repeat(8192) + "\"");
+
+        mockMvc.perform(post("/mtbfile")
+                .content(gzip(padded.getBytes(StandardCharsets.UTF_8)))
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isPayloadTooLarge());
+        verify(producer, never()).sendToKafka(anyString(), anyString());
+    }
+
+    @Test
+    public void rest_call_unsupported_content_encoding() throws Exception {
+        mockMvc.perform(post("/mtbfile").content(MTB_FILE_DUMMY)
+                .header(HttpHeaders.CONTENT_ENCODING, "br")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isUnsupportedMediaType());
+    }
+
+    @Test
+    public void rest_call_plain_body_labelled_gzip() throws Exception {
+        var failures = meterRegistry.get("mtb2kafka.pipeline.failures")
+            .tag("cause", "invalid_encoding").counter();
+        var before = failures.count();
+
+        mockMvc.perform(post("/mtbfile").content(MTB_FILE_DUMMY)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+
+        assertThat(failures.count()).isEqualTo(before + 1);
+        verify(producer, never()).sendToKafka(anyString(), anyString());
+    }
+
+    @Test
+    public void rest_call_truncated_zstd_body() throws Exception {
+        final byte[] compressed = Zstd.compress(MTB_FILE_DUMMY.getBytes(StandardCharsets.UTF_8));
+
+        mockMvc.perform(post("/mtbfile")
+                .content(Arrays.copyOf(compressed, compressed.length / 2))
+                .header(HttpHeaders.CONTENT_ENCODING, "zstd")
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        verify(producer, never()).sendToKafka(anyString(), anyString());
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        final var out = new ByteArrayOutputStream();
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void rest_call_bulk_ndjson_reports_per_document() throws Exception {
+        given(producer.sendToKafkaAsync(anyString(), anyString())).willReturn(
+            CompletableFuture.completedFuture(true));
+        final String singleLine = MTB_FILE_DUMMY.replaceAll("\\s*\\n\\s*", "");
+        final String bodyContent = singleLine + "\n{\"test\": \"input\"}\n" + singleLine + "\n";
+
+        mockMvc.perform(post("/mtbfile/bulk").content(bodyContent)
+                .contentType("application/x-ndjson"))
+            .andExpect(status().isMultiStatus())
+            .andExpect(jsonPath("$.accepted").value(2))
+            .andExpect(jsonPath("$.failed").value(1))
+            .andExpect(jsonPath("$.documents[1].status").value(BulkReport.REJECTED))
+            .andExpect(jsonPath("$.documents[1].line").value(2))
+            .andExpect(jsonPath("$.documents[2].status").value(BulkReport.ACCEPTED));
+    }
+
+    @Test
+    public void rest_call_bulk_json_array_accepted() throws Exception {
+        given(producer.sendToKafkaAsync(anyString(), anyString())).willReturn(
+            CompletableFuture.completedFuture(true));
+        final String bodyContent = "[" + MTB_FILE_DUMMY + "," + MTB_FILE_DUMMY + "]";
+
+        mockMvc.perform(post("/mtbfile/bulk").content(bodyContent)
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isAccepted())
+            .andExpect(jsonPath("$.accepted").value(2))
+            .andExpect(jsonPath("$.failed").value(0));
+    }
+
+    @Test
+    public void rest_call_bulk_invalid_json_skips_remaining() throws Exception {
+        given(producer.sendToKafkaAsync(anyString(), anyString())).willReturn(
+            CompletableFuture.completedFuture(true));
+        final String bodyContent =
+            "[" + MTB_FILE_DUMMY + ", {\"test\": }, " + MTB_FILE_DUMMY + "]";
+
+        mockMvc.perform(post("/mtbfile/bulk").content(bodyContent)
+                .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isMultiStatus())
+            .andExpect(jsonPath("$.accepted").value(1))
+            .andExpect(jsonPath("$.documents[1].status").value(BulkReport.REJECTED));
+    }
+
+    @Test
+    public void bulk_unexpected_error_is_reported_as_internal_failure() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var pseudonymizer = Mockito.mock(PseudonymizerService.class);
+        Mockito.doAnswer(invocation -> {
+            if (invocation.<JsonNode>getArgument(0).has("patient")) {
+                throw new IllegalStateException("pseudonymizer not ready");
+            }
+            return null;
+        }).when(pseudonymizer).pseudonymizeMtb(any());
+        var restForMtb = restForMtb(producer).pseudonymizer(pseudonymizer)
+            .metrics(new PipelineMetrics(registry)).build();
+        final String singleLine = MTB_FILE_DUMMY.replaceAll("\\s*\\n\\s*", "");
+
+        var report = restForMtb.acceptMtbFileBulk(new ByteArrayInputStream(
+            (singleLine + "\n{\"test\": \"input\"}\n").getBytes(StandardCharsets.UTF_8)),
+            null).getBody();
+
+        assertThat(report.getDocuments()).extracting(DocumentStatus::status)
+            .containsExactly(BulkReport.FAILED, BulkReport.REJECTED);
+        assertThat(report.getDocuments().get(0).message()).isEqualTo("pseudonymizer not ready");
+        assertThat(registry.get("mtb2kafka.pipeline.failures").tag("cause", "internal").counter()
+            .count()).isEqualTo(1);
+        assertThat(registry.get("mtb2kafka.pipeline.failures").tag("cause", "missing_key").counter()
+            .count()).isEqualTo(1);
+    }
+
+    @Test
+    public void bulk_document_without_patient_id_is_rejected() throws Exception {
+        given(producer.sendToKafkaAsync(anyString(), anyString())).willReturn(
+            CompletableFuture.completedFuture(true));
+        var registry = new SimpleMeterRegistry();
+        final String singleLine = MTB_FILE_DUMMY.replaceAll("\\s*\\n\\s*", "");
+
+        try (var gpas = new GpasStub()) {
+            var restForMtb = restForMtb(producer)
+                .pseudonymizer(PseudonymizerServiceBuilder.pseudonymizer(gpas.baseUrl()).build())
+                .metrics(new PipelineMetrics(registry)).build();
+
+            var report = restForMtb.acceptMtbFileBulk(new ByteArrayInputStream((singleLine
+                + "\n{\"episode\": {\"id\": \"e\"}}\n"
+                + "{\"patient\": {\"gender\": \"male\"}, \"episode\": {\"id\": \"e\"}}\n")
+                .getBytes(StandardCharsets.UTF_8)), null).getBody();
+
+            assertThat(report.getDocuments()).extracting(DocumentStatus::status)
+                .containsExactly(BulkReport.ACCEPTED, BulkReport.REJECTED, BulkReport.REJECTED);
+            assertThat(gpas.requestCount()).isEqualTo(1);
+        }
+        assertThat(registry.get("mtb2kafka.pipeline.failures").tag("cause", "missing_key")
+            .counter().count()).isEqualTo(2);
+        assertThat(registry.get("mtb2kafka.pipeline.failures").tag("cause", "internal")
+            .counter().count()).isZero();
+    }
+
+    @Test
+    public void processMtbFile_payload_size_is_recorded_in_bytes() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var restForMtb = restForMtb(producer).metrics(new PipelineMetrics(registry)).build();
+        given(producer.sendToKafka(anyString(), anyString())).willReturn(true);
+        final String data = MTB_FILE_DUMMY.replace("2023-06-29", "2023-06-29 äöü");
+
+        restForMtb.processMtbFile(data);
+
+        assertThat(registry.get("mtb2kafka.pipeline.payload.size").tag("direction", "received")
+            .summary().totalAmount())
+            .isEqualTo(data.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void processMtbFile_unchanged_resubmission_is_not_produced() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var deduplicator = new MtbFileDeduplicator(10, false, "topic", Optional.empty(),
+            registry);
+        var restForMtb = restForMtb(producer).bulkMaxInFlight(1)
+            .metrics(new PipelineMetrics(registry)).deduplicator(deduplicator).build();
+        given(producer.sendToKafka(anyString(), anyString(), any(Header.class)))
+            .willReturn(true);
+
+        restForMtb.processMtbFile(MTB_FILE_DUMMY);
+        restForMtb.processMtbFile(MTB_FILE_DUMMY.replace("\t", "  "));
+        restForMtb.processMtbFile(MTB_FILE_DUMMY.replace("2023-06-29", "2023-06-30"));
+
+        verify(producer, times(2)).sendToKafka(anyString(), anyString(), any(Header.class));
+        assertThat(registry.get("mtb2kafka.dedup.lookups").tag("result", "unchanged")
+            .counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void toMtbRecord_binary_format_tree_and_streaming_are_equal() throws Exception {
+        var valueFormat = new MtbValueFormat("smile", "");
+        var metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        var tree = restForMtb(producer).metrics(metrics).valueFormat(valueFormat).build()
+            .toMtbRecord(MTB_FILE_DUMMY);
+        var streaming = restForMtb(producer).streaming(true).metrics(metrics)
+            .valueFormat(valueFormat).build().toMtbRecord(MTB_FILE_DUMMY);
+
+        assertThat(tree.value()).isNull();
+        assertThat(streaming.key()).isEqualTo(tree.key());
+        assertThat(valueFormat.read(streaming.binaryValue()))
+            .isEqualTo(valueFormat.read(tree.binaryValue()))
+            .isEqualTo(new ObjectMapper().readTree(MTB_FILE_DUMMY));
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ This file is part of MTB-TO-KAFKA.
+
+ MTB-TO-KAFKA - Input MTB file via REST > gPas pseudonym > produce to Apache Kafka topic
+ Copyright (C) 2023  Datenintegrationszentrum Philipps-Universität Marburg
+
+ MTB-TO-KAFKA is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Affero General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ MTB-TO-KAFKA is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Affero General Public License for more details.
+
+ You should have received a copy of the GNU Affero General Public License
+ along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+package de.unimarburg.diz.mtbtokafka;
+
+import static de.unimarburg.diz.mtbtokafka.PseudonymizerServiceBuilder.pseudonymizer;
+import static de.unimarburg.diz.mtbtokafka.RestForMtbBuilder.restForMtb;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import de.unimarburg.diz.mtbtokafka.exceptions.PseudonymRequestFailed;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler.FirstMatchingCompositeObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.observation.transport.ReceiverContext;
+import io.micrometer.tracing.handler.DefaultTracingObservationHandler;
+import io.micrometer.tracing.handler.PropagatingReceiverTracingObservationHandler;
+import io.micrometer.tracing.handler.PropagatingSenderTracingObservationHandler;
+import io.micrometer.tracing.otel.bridge.OtelBaggageManager;
+import io.micrometer.tracing.otel.bridge.OtelCurrentTraceContext;
+import io.micrometer.tracing.otel.bridge.OtelPropagator;
+import io.micrometer.tracing.otel.bridge.OtelTracer;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Observations traced by the Micrometer OpenTelemetry bridge, set up like Spring Boot does.
+ */
+public class TracingTest {
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String CALLER_SPAN_ID = "00f067aa0ba902b7";
+
+    private final InMemorySpanExporter exporter = InMemorySpanExporter.create();
+    private final ObservationRegistry registry = ObservationRegistry.create();
+    private final List<ProducerRecord<String, String>> sent = new CopyOnWriteArrayList<>();
+
+    public TracingTest() {
+        final var openTelemetry = OpenTelemetrySdk.builder()
+            .setTracerProvider(SdkTracerProvider.builder()
+                .addSpanProcessor(SimpleSpanProcessor.create(exporter)).build())
+            .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+            .build();
+        final var otelTracer = openTelemetry.getTracer("test");
+        final var currentTraceContext = new OtelCurrentTraceContext();
+        final var tracer = new OtelTracer(otelTracer, currentTraceContext, event -> {
+        }, new OtelBaggageManager(currentTraceContext, List.of(), List.of()));
+        final var propagator = new OtelPropagator(openTelemetry.getPropagators(), otelTracer);
+        registry.observationConfig().observationHandler(
+            new FirstMatchingCompositeObservationHandler(
+                new PropagatingSenderTracingObservationHandler<>(tracer, propagator),
+                new PropagatingReceiverTracingObservationHandler<>(tracer, propagator),
+                new DefaultTracingObservationHandler(tracer)));
+    }
+
+    @Test
+    public void received_trace_is_continued_and_propagated_to_kafka_header() throws Exception {
+        var fixture = restForMtb(producer()).metrics(
+            new PipelineMetrics(new SimpleMeterRegistry(), Optional.of(registry))).build();
+
+        var server = serverRequest();
+        try (var scope = server.openScope()) {
+            fixture.processMtbFile(RestForMtbTest.MTB_FILE_DUMMY);
+            assertThat(registry.getCurrentObservation()).isSameAs(server);
+        } finally {
+            server.stop();
+        }
+
+        assertThat(exporter.getFinishedSpanItems()).extracting(SpanData::getTraceId)
+            .containsOnly(TRACE_ID);
+        final var serverSpan = span("http.server.requests");
+        assertThat(serverSpan.getParentSpanId()).isEqualTo(CALLER_SPAN_ID);
+        final var stages = exporter.getFinishedSpanItems().stream()
+            .filter(span -> span.getAttributes().get(AttributeKey.stringKey("stage")) != null)
+            .toList();
+        assertThat(stages)
+            .allMatch(span -> span.getParentSpanId().equals(serverSpan.getSpanId()))
+            .extracting(SpanData::getName)
+            .containsExactly("parse", "key", "serialize", "kafka_ack");
+
+        final var send = span("mtb-out send");
+        assertThat(send.getParentSpanId()).isEqualTo(span("kafka_ack").getSpanId());
+        assertThat(send.getAttributes().get(AttributeKey.stringKey("topic"))).isEqualTo("mtb-out");
+        assertThat(sent).hasSize(1);
+        assertThat(header(sent.get(0), "traceparent"))
+            .isEqualTo("00-" + TRACE_ID + "-" + send.getSpanId() + "-01");
+        assertThat(header(sent.get(0), "tracestate")).isEqualTo("caller=1");
+    }
+
+    @Test
+    public void async_stage_is_left_by_calling_thread() throws Exception {
+        var fixture = restForMtb(producer()).metrics(
+            new PipelineMetrics(new SimpleMeterRegistry(), Optional.of(registry))).build();
+
+        var server = serverRequest();
+        try (var scope = server.openScope()) {
+            fixture.processMtbFileAsync(RestForMtbTest.MTB_FILE_DUMMY).get();
+            assertThat(registry.getCurrentObservation()).isSameAs(server);
+        } finally {
+            server.stop();
+        }
+
+        assertThat(span("mtb-out send").getParentSpanId())
+            .isEqualTo(span("kafka_ack").getSpanId());
+    }
+
+    @Test
+    public void gpas_attempts_are_traced_as_children_of_the_request() throws Exception {
+        try (var gpas = new GpasStub()) {
+            var config = new GpasClientConfiguration();
+            var restTemplate = new RestTemplate();
+            restTemplate.setObservationRegistry(registry);
+            var fixture = pseudonymizer(gpas.baseUrl()).restTemplate(restTemplate)
+                .retryTemplate(config.gPasRetryTemplate(3, Duration.ofMillis(1), 1,
+                    Duration.ofMillis(1), Duration.ofSeconds(5)))
+                .observationRegistry(registry).build();
+            gpas.failWith(503);
+
+            assertThrows(PseudonymRequestFailed.class, () -> fixture.getPseudonym("pid-1"));
+
+            final var request = span("gpas pseudonymize");
+            assertThat(request.getStatus().getStatusCode()).isEqualTo(StatusCode.ERROR);
+            final var attempts = exporter.getFinishedSpanItems().stream()
+                .filter(span -> !span.equals(request)).toList();
+            assertThat(attempts).hasSize(3)
+                .allMatch(attempt -> attempt.getStatus().getStatusCode() == StatusCode.ERROR)
+                .allMatch(attempt -> attempt.getParentSpanId().equals(request.getSpanId()));
+            assertThat(gpas.traceparents()).containsExactlyElementsOf(attempts.stream()
+                .map(attempt -> "00-" + attempt.getTraceId() + "-" + attempt.getSpanId() + "-01")
+                .toList());
+        }
+    }
+
+    @Test
+    public void observations_are_skipped_if_tracing_is_disabled() throws Exception {
+        registry.observationConfig()
+            .observationPredicate(new TracingConfiguration().mtbObservationsDisabled());
+        var fixture = restForMtb(producer()).metrics(
+            new PipelineMetrics(new SimpleMeterRegistry(), Optional.of(registry))).build();
+
+        var server = serverRequest();
+        try (var scope = server.openScope()) {
+            fixture.processMtbFile(RestForMtbTest.MTB_FILE_DUMMY);
+        } finally {
+            server.stop();
+        }
+
+        assertThat(exporter.getFinishedSpanItems()).extracting(SpanData::getName)
+            .containsExactly("http.server.requests");
+        assertThat(sent).hasSize(1);
+    }
+
+    private MtbProducer producer() {
+        @SuppressWarnings("unchecked")
+        KafkaTemplate<String, String> kafkaTemplate = Mockito.mock(KafkaTemplate.class);
+        Mockito.when(kafkaTemplate.getDefaultTopic()).thenReturn("mtb-out");
+        Mockito.when(kafkaTemplate.send(Mockito.<ProducerRecord<String, String>>any()))
+            .thenAnswer(invocation -> {
+                sent.add(invocation.getArgument(0));
+                return CompletableFuture.completedFuture(Mockito.mock(SendResult.class));
+            });
+        return MtbProducerBuilder.producer(kafkaTemplate).topic("mtb-out")
+            .observationRegistry(registry).build();
+    }
+
+    /**
+     * @return started observation of a request sent by a sampled caller
+     */
+    private Observation serverRequest() {
+        var request = new ReceiverContext<Map<String, String>>(Map::get);
+        request.setCarrier(Map.of("traceparent", "00-" + TRACE_ID + "-" + CALLER_SPAN_ID + "-01",
+            "tracestate", "caller=1"));
+        return Observation.createNotStarted("http.server.requests", () -> request, registry)
+            .start();
+    }
+
+    private SpanData span(String name) {
+        return exporter.getFinishedSpanItems().stream()
+            .filter(span -> span.getName().equals(name)).findFirst().orElseThrow();
+    }
+
+    private static String header(ProducerRecord<?, ?> record, String name) {
+        return new String(record.headers().lastHeader(name).value(), StandardCharsets.UTF_8);
+    }
+}